@@ -0,0 +1,140 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Message;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.os.Debug;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.util.CPIMMessage;
+import org.kontalk.util.XMPPUtils;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Compares allocations of the streaming decryption of XMPP payloads with
+ * the old approach of buffering the decrypted data and parsing strings.
+ * Both paths run on the same encrypted payload.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PGPCoderAllocationTest {
+
+    private static final String PASSPHRASE = "test";
+    private static final int MESSAGES = 200;
+
+    private static PGPCoder sCoder;
+    private static byte[] sEncrypted;
+    private static String sBody;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        EndpointServer server = new EndpointServer("kontalk.test", "127.0.0.1", 5222);
+        PGP.PGPKeyPairRing ring = PersonalKey.create(new Date())
+            .storeNetwork("alice", server.getNetwork(), "Alice", PASSPHRASE);
+        PersonalKey key = PersonalKey.load(ring.secretKey, ring.publicKey, PASSPHRASE, null);
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 8192)
+            body.append("Lorem ipsum dolor sit amet, àèìòù. ");
+        sBody = body.toString();
+
+        // a message to ourselves, so we can also verify it
+        sEncrypted = new PGPCoder(server, key, new PGPPublicKeyRing[] { ring.publicKey })
+            .encryptStanza("<message type='chat' id='test'><body>" + sBody + "</body></message>");
+        sCoder = new PGPCoder(server, key, ring.publicKey);
+    }
+
+    /** The old way: literal data is buffered and parsed as strings. */
+    private static Message decryptString() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<>();
+        sCoder.decryptFile(new ByteArrayInputStream(sEncrypted), true, out, errors);
+        assertTrue(errors.isEmpty());
+
+        CPIMMessage msg = CPIMMessage.parse(out.toString("UTF-8"));
+        return XMPPUtils.parseMessageStanza(msg.getBody().toString());
+    }
+
+    /** The streaming way: the stanza is parsed while being decrypted. */
+    private static Message decryptStream() throws Exception {
+        Coder.DecryptOutput result = sCoder.decryptText(sEncrypted, true);
+        assertTrue(result.errors.isEmpty());
+        return result.stanza;
+    }
+
+    /** Returns the bytes allocated by this thread for each message. */
+    @SuppressWarnings("deprecation")
+    private static long measure(boolean streaming) throws Exception {
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < MESSAGES; i++) {
+                if (streaming)
+                    decryptStream();
+                else
+                    decryptString();
+            }
+            return Debug.getThreadAllocSize() / MESSAGES;
+        }
+        finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    @Test
+    public void testSameResult() throws Exception {
+        assertEquals(sBody, decryptString().getBody());
+        assertEquals(sBody, decryptStream().getBody());
+    }
+
+    @Test
+    public void testAllocations() throws Exception {
+        // warm up
+        for (int i = 0; i < 10; i++) {
+            decryptString();
+            decryptStream();
+        }
+
+        long stringAlloc = measure(false);
+        long streamAlloc = measure(true);
+
+        String report = sEncrypted.length + " bytes payload: " + stringAlloc +
+            " bytes allocated per message (string), " + streamAlloc +
+            " bytes allocated per message (stream)";
+        assertTrue(report, streamAlloc > 0);
+        // the old way kept at least one more copy of the whole body
+        assertTrue(report, stringAlloc - streamAlloc >= sBody.length());
+    }
+
+}
@@ -29,15 +29,23 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.espresso.intent.rule.IntentsTestRule;
 import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 
 import org.kontalk.TestUtils;
+import org.kontalk.util.StartupTrace;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class ConversationsActivityTest {
+    private static final String TAG = ConversationsActivityTest.class.getSimpleName();
+
+    private static final long FIRST_FRAME_TIMEOUT = 10000;
+    /** Upper bound for drawing the first frame after onCreate. */
+    private static final long FIRST_FRAME_MAX_TIME = 5000;
 
     @Rule
     public IntentsTestRule<ConversationsActivity> mActivityRule =
@@ -59,4 +67,23 @@ public class ConversationsActivityTest {
         assertTrue(solo.waitForActivity(NumberValidation.class));
     }
 
+    @Test
+    public void testTimeToFirstFrame() throws Exception {
+        TestUtils.skipIfDefaultAccountDoesNotExist();
+
+        ConversationsActivity activity = mActivityRule.launchActivity(null);
+        long timeout = System.currentTimeMillis() + FIRST_FRAME_TIMEOUT;
+        long firstFrame;
+        while ((firstFrame = activity.getFirstFrameTime()) == 0) {
+            if (System.currentTimeMillis() > timeout)
+                fail("first frame not drawn");
+            Thread.sleep(10);
+        }
+        Log.i(TAG, "time to first frame: " + firstFrame + " ms");
+
+        // the first frame mark stops startup tracing
+        assertTrue("startup trace not finished", StartupTrace.isFinished());
+        assertTrue("first frame took " + firstFrame + " ms", firstFrame <= FIRST_FRAME_MAX_TIME);
+    }
+
 }
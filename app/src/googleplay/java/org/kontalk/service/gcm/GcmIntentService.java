@@ -101,8 +101,8 @@ public class GcmIntentService extends IntentService {
                         Preferences.setLastPushNotification(
                             System.currentTimeMillis());
 
-                        // test message center connection
-                        MessageCenterService.test(getApplicationContext());
+                        // receive messages (or test connection if already connected)
+                        MessageCenterService.drain(getApplicationContext());
                     }
 
                 }
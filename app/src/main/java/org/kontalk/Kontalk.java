@@ -39,12 +39,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.Process;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
 
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.PersonalKeyCache;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.reporting.ReportingManager;
@@ -61,8 +63,10 @@ import org.kontalk.sync.SyncAdapter;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.SearchActivity;
+import org.kontalk.util.InternalTrustStore;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.StartupTrace;
 
 
 /**
@@ -74,6 +78,7 @@ public class Kontalk extends Application {
 
     // @deprecated
     static {
+        StartupTrace.start();
         try {
             Class.forName(MediaStorage.class.getName());
         }
@@ -156,6 +161,7 @@ public class Kontalk extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        long trace = StartupTrace.begin();
 
         if (BuildConfig.DEBUG) {
             StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().detectAll().build());
@@ -167,34 +173,42 @@ public class Kontalk extends Application {
         // because we need access to the reporting opt-in preference.
         // However this call will not be reported if it crashes
         Preferences.init(this);
+        trace = StartupTrace.end("preferences", trace);
 
         // init logging system
         // done after preferences because we need to access debug log preference
         Log.init(this);
+        trace = StartupTrace.end("log", trace);
 
         // register reporting manager
         if (Preferences.isReportingEnabled(this))
             ReportingManager.register(this);
+        trace = StartupTrace.end("reporting", trace);
 
-        // register security provider
+        // register security provider (in the background)
         SecureConnectionManager.init(this);
+        // this must be done before anything needs random numbers
         try {
-            PGP.registerProvider();
+            PGP.applyPRNGFixes();
         }
         catch (PGP.PRNGFixException e) {
             ReportingManager.logException(e);
             Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
         }
+        trace = StartupTrace.end("security", trace);
 
         // init contacts
         Contact.init(this, new Handler());
+        trace = StartupTrace.end("contacts", trace);
 
         // init notification system
         MessagingNotification.init(this);
+        trace = StartupTrace.end("notifications", trace);
 
         // init emoji manager
         // FIXME this is taking a very long time
         EmojiManager.install(new EmojiOneProvider());
+        trace = StartupTrace.end("emoji", trace);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.registerOnSharedPreferenceChangeListener(mPrefListener);
@@ -237,6 +251,7 @@ public class Kontalk extends Application {
                         MessagesProviderClient.deleteDatabase(Kontalk.this);
                         // invalidate cached personal key
                         invalidatePersonalKey();
+                        PersonalKeyCache.clear(Kontalk.this);
                     }
                 }
             };
@@ -247,10 +262,44 @@ public class Kontalk extends Application {
         else {
             // ensure everything is cleared up
             MessagesProviderClient.deleteDatabase(Kontalk.this);
+            PersonalKeyCache.clear(Kontalk.this);
         }
 
         // enable/disable components
         setServicesEnabled(this, account != null);
+        StartupTrace.end("account", trace);
+
+        deferredInit(account != null);
+    }
+
+    /**
+     * Initialization not needed to show the first activity, done in the
+     * background. Anything done here is initialized lazily anyway if needed
+     * before this is completed.
+     */
+    private void deferredInit(final boolean hasAccount) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long trace = StartupTrace.begin();
+
+                // crypto provider is slow to create
+                PGP.getProvider();
+                trace = StartupTrace.end("crypto provider", trace);
+
+                // trust store will be needed to connect
+                if (hasAccount) {
+                    try {
+                        InternalTrustStore.getTrustStore(Kontalk.this);
+                    }
+                    catch (Exception e) {
+                        Log.w(TAG, "unable to load trust store", e);
+                    }
+                    StartupTrace.end("trust store", trace);
+                }
+            }
+        }, "DeferredInit").start();
     }
 
     private void xmppUpgrade() {
@@ -22,11 +22,14 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import android.content.Context;
 
+import org.kontalk.util.AsyncLogWriter;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.RotatingFileWriter;
 import org.kontalk.util.SystemUtils;
@@ -40,22 +43,32 @@ import org.kontalk.util.SystemUtils;
 public final class Log {
 
     private static final String LOG_FILENAME = "kontalk-android.log";
+    /** Log lines buffered before being written to file. */
+    private static final int LOG_BUFFER_SIZE = 2048;
+    /** Debug logging must never slow down the app: drop lines under overload. */
+    private static final AsyncLogWriter.OverflowPolicy LOG_OVERFLOW_POLICY =
+        AsyncLogWriter.OverflowPolicy.DROP;
+
     private static DateFormat DATE_FORMAT;  // created on demand
 
-    private static RotatingFileWriter sLogFileWriter;
+    private static volatile AsyncLogWriter sLogFileWriter;
     private static File sLogFile;
 
     public static void init(Context context) {
         try {
             if (Preferences.isDebugLogEnabled(context)) {
-                DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-                sLogFile = new File(context.getExternalCacheDir(), LOG_FILENAME);
-                sLogFileWriter = new RotatingFileWriter(sLogFile);
+                if (sLogFileWriter == null) {
+                    DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+                    sLogFile = new File(context.getExternalCacheDir(), LOG_FILENAME);
+                    sLogFileWriter = new AsyncLogWriter(new RotatingFileWriter(sLogFile),
+                        LOG_BUFFER_SIZE, LOG_OVERFLOW_POLICY);
+                }
             }
             else {
-                if (sLogFileWriter != null) {
-                    sLogFileWriter.abort();
+                AsyncLogWriter writer = sLogFileWriter;
+                if (writer != null) {
                     sLogFileWriter = null;
+                    writer.abort();
                 }
                 DATE_FORMAT = null;
             }
@@ -65,8 +78,18 @@ public final class Log {
         }
     }
 
-    public static File getLogFile() {
-        return sLogFile;
+    /** Returns all log files, oldest first. Pending log lines are written first. */
+    public static List<File> getLogFiles() {
+        AsyncLogWriter writer = sLogFileWriter;
+        if (writer != null) {
+            try {
+                writer.flush();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        return sLogFile != null ? RotatingFileWriter.getFiles(sLogFile,
+            RotatingFileWriter.getDefaultSegments()) : Collections.<File>emptyList();
     }
 
     public static boolean isDebug() {
@@ -109,14 +132,15 @@ public final class Log {
     }
 
     private static void log(String tag, int level, String msg) {
-        if (sLogFileWriter != null) {
+        AsyncLogWriter writer = sLogFileWriter;
+        if (writer != null) {
             try {
-                sLogFileWriter.println(buildLog(tag, level, msg));
-                sLogFileWriter.flush();
+                // written asynchronously
+                writer.println(buildLog(tag, level, msg));
             }
             catch (IOException e) {
                 // disable logging but keep the file
-                SystemUtils.closeStream(sLogFileWriter);
+                SystemUtils.closeStream(writer);
                 sLogFileWriter = null;
             }
         }
@@ -66,8 +66,10 @@ import org.kontalk.R;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.PersonalKeyCache;
 import org.kontalk.crypto.PersonalKeyExporter;
 import org.kontalk.provider.Keyring;
+import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.ui.MainActivity;
 import org.kontalk.ui.NumberValidation;
 import org.kontalk.util.MessageUtils;
@@ -178,13 +180,21 @@ public class Authenticator extends AbstractAccountAuthenticator {
         String pubKeyData = m.getUserData(acc, DATA_PUBLICKEY);
         String bridgeCertData = m.getUserData(acc, DATA_BRIDGECERT);
 
-        if (privKeyData != null && pubKeyData != null && bridgeCertData != null)
-            return PersonalKey
-                .load(Base64.decode(privKeyData, Base64.DEFAULT),
-                      Base64.decode(pubKeyData, Base64.DEFAULT),
-                      passphrase,
-                      Base64.decode(bridgeCertData, Base64.DEFAULT)
-                );
+        if (privKeyData != null && pubKeyData != null && bridgeCertData != null) {
+            byte[] privateKey = Base64.decode(privKeyData, Base64.DEFAULT);
+            byte[] publicKey = Base64.decode(pubKeyData, Base64.DEFAULT);
+            byte[] bridgeCert = Base64.decode(bridgeCertData, Base64.DEFAULT);
+
+            // try the decrypted key cache first
+            byte[] binding = PersonalKeyCache.binding(privateKey, publicKey, bridgeCert,
+                passphrase != null ? passphrase.getBytes() : null);
+            PersonalKey key = PersonalKeyCache.load(ctx, PersonalKeyCache.SLOT_DEFAULT, binding);
+            if (key == null) {
+                key = PersonalKey.load(privateKey, publicKey, passphrase, bridgeCert);
+                PersonalKeyCache.store(ctx, PersonalKeyCache.SLOT_DEFAULT, binding, key);
+            }
+            return key;
+        }
 
         else
             return null;
@@ -278,13 +288,13 @@ public class Authenticator extends AbstractAccountAuthenticator {
         // old decryptor
         PGPDigestCalculatorProvider calcProv = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor oldDecryptor = new JcePBESecretKeyDecryptorBuilder(calcProv)
-                .setProvider(PGP.PROVIDER)
+                .setProvider(PGP.getProvider())
                 .build(oldPassphrase.toCharArray());
 
         // new encryptor
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
         PBESecretKeyEncryptor newEncryptor = new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc)
-                .setProvider(PGP.PROVIDER).build(newPassphrase.toCharArray());
+                .setProvider(PGP.getProvider()).build(newPassphrase.toCharArray());
 
         // create new secret key ring
         PGPSecretKeyRing newSecRing = PGPSecretKeyRing.copyWithNewPassword(oldSecRing, oldDecryptor, newEncryptor);
@@ -368,6 +378,8 @@ public class Authenticator extends AbstractAccountAuthenticator {
             bundle.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_CANCELED);
         }
         else {
+            KeyPairGeneratorService.pregenerate(mContext);
+
             final Intent intent = new Intent(mContext, NumberValidation.class);
             intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
             bundle.putParcelable(AccountManager.KEY_INTENT, intent);
@@ -0,0 +1,250 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+
+/**
+ * Establishes a TCP connection by racing connection attempts to several
+ * addresses ("happy eyeballs", RFC 8305). Attempts are started one after the
+ * other with a small delay, alternating address families; the first socket to
+ * connect wins and all other attempts are cancelled. A failed attempt causes
+ * the next one to start immediately.
+ * @author Daniele Ricci
+ */
+public class ConnectionRacer {
+
+    /** Default delay between two connection attempts (ms). */
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConnectionRacer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final SocketFactory mSocketFactory;
+    private final long mAttemptDelay;
+    private final int mTimeout;
+
+    /** The winner of a connection race. */
+    public static final class Result {
+        private final Socket mSocket;
+        private final InetSocketAddress mAddress;
+        private final long mConnectTime;
+
+        Result(Socket socket, InetSocketAddress address, long connectTime) {
+            mSocket = socket;
+            mAddress = address;
+            mConnectTime = connectTime;
+        }
+
+        public Socket getSocket() {
+            return mSocket;
+        }
+
+        public InetSocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /** Time spent connecting the winning socket (ms). */
+        public long getConnectTime() {
+            return mConnectTime;
+        }
+    }
+
+    /** Thrown when all connection attempts failed. */
+    public static final class RaceFailedException extends IOException {
+        private final Map<InetSocketAddress, Exception> mFailures;
+
+        RaceFailedException(Map<InetSocketAddress, Exception> failures) {
+            super("unable to connect to any of " + failures.keySet());
+            mFailures = failures;
+        }
+
+        public Map<InetSocketAddress, Exception> getFailures() {
+            return Collections.unmodifiableMap(mFailures);
+        }
+    }
+
+    private final class Attempt implements Runnable {
+        final InetSocketAddress address;
+        final Socket socket;
+        final BlockingQueue<Attempt> completed;
+        long connectTime;
+        Exception error;
+
+        Attempt(InetSocketAddress address, BlockingQueue<Attempt> completed) throws IOException {
+            this.address = address;
+            this.socket = mSocketFactory.createSocket();
+            this.completed = completed;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                socket.connect(address, mTimeout);
+                connectTime = (System.nanoTime() - start) / 1000000;
+            }
+            catch (Exception e) {
+                error = e;
+            }
+            completed.add(this);
+        }
+
+        void cancel() {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    public ConnectionRacer(SocketFactory socketFactory, long attemptDelay, int timeout) {
+        mSocketFactory = socketFactory;
+        mAttemptDelay = attemptDelay;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Races connections to the given addresses.
+     * @param addresses addresses in order of preference; they will be
+     *                  interleaved by address family
+     * @return the winning connection
+     * @throws RaceFailedException if all attempts failed
+     */
+    public Result connect(List<InetSocketAddress> addresses) throws IOException, InterruptedException {
+        List<InetSocketAddress> candidates = interleave(addresses);
+        if (candidates.isEmpty())
+            throw new RaceFailedException(new LinkedHashMap<InetSocketAddress, Exception>());
+
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Attempt> running = new LinkedList<>();
+        Map<InetSocketAddress, Exception> failures = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newCachedThreadPool(sThreadFactory);
+        Attempt winner = null;
+        int next = 0;
+
+        try {
+            while (winner == null && failures.size() < candidates.size()) {
+                if (next < candidates.size() && running.isEmpty()) {
+                    // nothing is running, start the next attempt right away
+                    next = start(executor, candidates, next, completed, running, failures);
+                    continue;
+                }
+
+                Attempt attempt = next < candidates.size() ?
+                    completed.poll(mAttemptDelay, TimeUnit.MILLISECONDS) :
+                    completed.take();
+
+                if (attempt == null) {
+                    // no answer yet, start another attempt in parallel
+                    next = start(executor, candidates, next, completed, running, failures);
+                }
+                else {
+                    running.remove(attempt);
+                    if (attempt.error == null)
+                        winner = attempt;
+                    else
+                        failures.put(attempt.address, attempt.error);
+                }
+            }
+        }
+        finally {
+            // cancel all other attempts
+            for (Attempt attempt : running)
+                attempt.cancel();
+            executor.shutdownNow();
+            // attempts completed in the meantime are not needed either
+            Attempt attempt;
+            while ((attempt = completed.poll()) != null) {
+                if (attempt != winner)
+                    attempt.cancel();
+            }
+        }
+
+        if (winner == null)
+            throw new RaceFailedException(failures);
+
+        return new Result(winner.socket, winner.address, winner.connectTime);
+    }
+
+    private int start(ExecutorService executor, List<InetSocketAddress> candidates, int index,
+            BlockingQueue<Attempt> completed, List<Attempt> running, Map<InetSocketAddress, Exception> failures) {
+        InetSocketAddress address = candidates.get(index);
+        try {
+            Attempt attempt = new Attempt(address, completed);
+            running.add(attempt);
+            executor.execute(attempt);
+        }
+        catch (IOException e) {
+            failures.put(address, e);
+        }
+        return index + 1;
+    }
+
+    /**
+     * Reorders addresses alternating between IPv6 and IPv4, starting with
+     * the family of the first address. Order within a family is preserved.
+     */
+    static List<InetSocketAddress> interleave(List<InetSocketAddress> addresses) {
+        List<InetSocketAddress> v6 = new LinkedList<>();
+        List<InetSocketAddress> v4 = new LinkedList<>();
+        for (InetSocketAddress address : addresses) {
+            if (address.getAddress() instanceof Inet6Address)
+                v6.add(address);
+            else
+                v4.add(address);
+        }
+
+        List<InetSocketAddress> out = new ArrayList<>(addresses.size());
+        boolean ipv6 = !addresses.isEmpty() && addresses.get(0).getAddress() instanceof Inet6Address;
+        while (!v6.isEmpty() || !v4.isEmpty()) {
+            List<InetSocketAddress> family = ipv6 ? v6 : v4;
+            if (!family.isEmpty())
+                out.add(family.remove(0));
+            ipv6 = !ipv6;
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded blocking queue serving elements by priority class, to be used
+ * by the packet writer. Elements of the same class are served in insertion
+ * order. To bound starvation, after a number of consecutive elements have
+ * been served while a lower priority element was waiting, the oldest
+ * waiting element is served instead.
+ * Like {@code ArrayBlockingQueueWithShutdown}, the queue can be shut down:
+ * threads blocked in {@link #put} or {@link #take} are woken up with an
+ * {@link InterruptedException}.
+ * @author Daniele Ricci
+ */
+public class PriorityBlockingQueueWithShutdown<E> {
+
+    public interface Prioritizer<E> {
+        /** Returns the priority class of an element, 0 being the highest. */
+        int getPriority(E element);
+    }
+
+    private static final class Entry<E> {
+        final E element;
+        final long sequence;
+
+        Entry(E element, long sequence) {
+            this.element = element;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Prioritizer<E> mPrioritizer;
+    private final ArrayDeque<Entry<E>>[] mQueues;
+    private final int mCapacity;
+    private final int mMaxSkips;
+
+    private final ReentrantLock mLock = new ReentrantLock(true);
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+
+    private int mCount;
+    private long mSequence;
+    /** Elements served in a row while a lower priority element was waiting. */
+    private int mSkips;
+    private volatile boolean mShutdown;
+
+    /**
+     * @param capacity maximum number of elements in the queue
+     * @param classes number of priority classes
+     * @param maxSkips number of higher priority elements to serve before a waiting lower priority one
+     * @param prioritizer classifies elements
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityBlockingQueueWithShutdown(int capacity, int classes, int maxSkips, Prioritizer<E> prioritizer) {
+        mCapacity = capacity;
+        mMaxSkips = maxSkips;
+        mPrioritizer = prioritizer;
+        mQueues = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++)
+            mQueues[i] = new ArrayDeque<>();
+    }
+
+    /** Inserts an element, waiting if the queue is full. */
+    public void put(E element) throws InterruptedException {
+        if (element == null)
+            throw new NullPointerException();
+
+        int priority = Math.max(0, Math.min(mQueues.length - 1, mPrioritizer.getPriority(element)));
+
+        mLock.lockInterruptibly();
+        try {
+            checkNotShutdown();
+            while (mCount >= mCapacity) {
+                mNotFull.await();
+                checkNotShutdown();
+            }
+            mQueues[priority].add(new Entry<>(element, mSequence++));
+            mCount++;
+            mNotEmpty.signal();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Retrieves the next element, waiting if the queue is empty. */
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            checkNotShutdown();
+            while (mCount == 0) {
+                mNotEmpty.await();
+                checkNotShutdown();
+            }
+            return dequeue();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Retrieves the next element, or null if the queue is empty. */
+    public E poll() {
+        mLock.lock();
+        try {
+            return mCount > 0 ? dequeue() : null;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private E dequeue() {
+        int first = -1;
+        int oldest = -1;
+        for (int i = 0; i < mQueues.length; i++) {
+            Entry<E> head = mQueues[i].peek();
+            if (head != null) {
+                if (first < 0)
+                    first = i;
+                else if (oldest < 0 || head.sequence < mQueues[oldest].peek().sequence)
+                    oldest = i;
+            }
+        }
+
+        int from = first;
+        if (oldest < 0) {
+            mSkips = 0;
+        }
+        else if (mSkips >= mMaxSkips) {
+            // lower priority element waited long enough
+            from = oldest;
+            mSkips = 0;
+        }
+        else {
+            mSkips++;
+        }
+
+        Entry<E> entry = mQueues[from].poll();
+        mCount--;
+        mNotFull.signal();
+        return entry.element;
+    }
+
+    /**
+     * Removes all elements, adding them to the given collection in insertion
+     * order regardless of their priority.
+     * @return the number of elements drained
+     */
+    public int drainTo(Collection<? super E> c) {
+        mLock.lock();
+        try {
+            List<Entry<E>> entries = new ArrayList<>(mCount);
+            for (ArrayDeque<Entry<E>> queue : mQueues) {
+                entries.addAll(queue);
+                queue.clear();
+            }
+            Collections.sort(entries, new Comparator<Entry<E>>() {
+                @Override
+                public int compare(Entry<E> lhs, Entry<E> rhs) {
+                    return lhs.sequence < rhs.sequence ? -1 :
+                        (lhs.sequence == rhs.sequence ? 0 : 1);
+                }
+            });
+            for (Entry<E> entry : entries)
+                c.add(entry.element);
+
+            mCount = 0;
+            mSkips = 0;
+            mNotFull.signalAll();
+            return entries.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public void clear() {
+        mLock.lock();
+        try {
+            for (ArrayDeque<Entry<E>> queue : mQueues)
+                queue.clear();
+            mCount = 0;
+            mSkips = 0;
+            mNotFull.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Shuts down the queue, waking up any waiting thread. */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Starts the queue again after a shutdown. */
+    public void start() {
+        mLock.lock();
+        try {
+            mShutdown = false;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    private void checkNotShutdown() throws InterruptedException {
+        if (mShutdown)
+            throw new InterruptedException();
+    }
+
+}
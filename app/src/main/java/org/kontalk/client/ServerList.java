@@ -57,20 +57,31 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * A simple server provider backed by a server list.
+     * If a {@link ServerSelector} is given, servers are picked according to
+     * their past performance; otherwise they are picked randomly.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private final ServerSelector mSelector;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, ServerSelector selector) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<>();
+            mSelector = selector;
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = mSelector != null ?
+                    mSelector.select(mList) : mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
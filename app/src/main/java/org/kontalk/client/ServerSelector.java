@@ -0,0 +1,202 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+
+/**
+ * Picks servers based on how they performed in previous connections.
+ * Connect time, TLS handshake time and failure rate are tracked per server
+ * as exponentially weighted moving averages. The best scoring server is
+ * chosen most of the time, but once in a while a random server is picked to
+ * keep statistics about other servers up to date.
+ * Statistics are collected from every connection, but the selector is used
+ * only for registration: once registered, the account is bound to its server
+ * and the messaging login always connects to it.
+ * @author Daniele Ricci
+ */
+public class ServerSelector {
+
+    /** Weight of a new sample in the moving averages. */
+    private static final double ALPHA = 0.3;
+    /** Probability of picking a random server instead of the best one. */
+    static final double EXPLORATION = 0.1;
+    /** Estimated time (ms) for connecting to a server we know nothing about. */
+    static final long UNKNOWN_LATENCY = 1000;
+    /** Time (ms) we consider lost for a failed connection. */
+    static final long FAILURE_PENALTY = 30000;
+    /** Statistics are discarded after this time (ms) without updates. */
+    static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final class Stats {
+        double connectTime = -1;
+        double tlsTime = -1;
+        double failureRate;
+        int samples;
+        long timestamp;
+
+        void update(boolean success, long connectTime, long tlsTime, long now) {
+            if (success) {
+                if (connectTime >= 0)
+                    this.connectTime = average(this.connectTime, connectTime);
+                if (tlsTime >= 0)
+                    this.tlsTime = average(this.tlsTime, tlsTime);
+            }
+            failureRate = samples > 0 ?
+                average(failureRate, success ? 0 : 1) : (success ? 0 : 1);
+            samples++;
+            timestamp = now;
+        }
+
+        double latency() {
+            if (connectTime < 0)
+                return UNKNOWN_LATENCY;
+            return connectTime + (tlsTime >= 0 ? tlsTime : 0);
+        }
+
+        String serialize() {
+            return connectTime + ":" + tlsTime + ":" + failureRate + ":" + samples + ":" + timestamp;
+        }
+
+        static Stats parse(String data) {
+            String[] parts = data.split(":");
+            if (parts.length != 5)
+                return null;
+            try {
+                Stats stats = new Stats();
+                stats.connectTime = Double.parseDouble(parts[0]);
+                stats.tlsTime = Double.parseDouble(parts[1]);
+                stats.failureRate = Double.parseDouble(parts[2]);
+                stats.samples = Integer.parseInt(parts[3]);
+                stats.timestamp = Long.parseLong(parts[4]);
+                return stats;
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static double average(double current, double sample) {
+            return current < 0 ? sample : current + ALPHA * (sample - current);
+        }
+    }
+
+    private final Map<String, Stats> mStats = new HashMap<>();
+    private final Random mRandom;
+
+    public ServerSelector() {
+        this(new Random());
+    }
+
+    public ServerSelector(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Returns the server to be used for the next connection.
+     * @return the chosen server, or null if the list is empty
+     */
+    public synchronized EndpointServer select(List<EndpointServer> servers) {
+        if (servers.isEmpty())
+            return null;
+
+        if (servers.size() > 1 && mRandom.nextDouble() < EXPLORATION)
+            return servers.get(mRandom.nextInt(servers.size()));
+
+        long now = System.currentTimeMillis();
+        List<EndpointServer> best = new ArrayList<>();
+        double bestScore = Double.MAX_VALUE;
+        for (EndpointServer server : servers) {
+            double score = getScore(server, now);
+            if (score < bestScore) {
+                bestScore = score;
+                best.clear();
+                best.add(server);
+            }
+            else if (score == bestScore) {
+                best.add(server);
+            }
+        }
+
+        // break ties randomly so that load is spread among unknown servers
+        return best.get(mRandom.nextInt(best.size()));
+    }
+
+    /** Records a successful connection. Negative times are ignored. */
+    public synchronized void connected(EndpointServer server, long connectTime, long tlsTime) {
+        getOrCreate(server).update(true, connectTime, tlsTime, System.currentTimeMillis());
+    }
+
+    /** Records a failed connection attempt. */
+    public synchronized void failed(EndpointServer server) {
+        getOrCreate(server).update(false, -1, -1, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the expected cost (in milliseconds) of connecting to the given
+     * server. Lower is better.
+     */
+    public synchronized double getScore(EndpointServer server) {
+        return getScore(server, System.currentTimeMillis());
+    }
+
+    private double getScore(EndpointServer server, long now) {
+        Stats stats = mStats.get(server.toString());
+        if (stats == null || (now - stats.timestamp) > MAX_AGE)
+            return UNKNOWN_LATENCY;
+        return stats.latency() + stats.failureRate * FAILURE_PENALTY;
+    }
+
+    private Stats getOrCreate(EndpointServer server) {
+        String key = server.toString();
+        Stats stats = mStats.get(key);
+        if (stats == null || (System.currentTimeMillis() - stats.timestamp) > MAX_AGE) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    /** Loads statistics from the given properties. */
+    public synchronized void load(Properties prop) {
+        for (String key : prop.stringPropertyNames()) {
+            Stats stats = Stats.parse(prop.getProperty(key));
+            if (stats != null)
+                mStats.put(key, stats);
+        }
+    }
+
+    /** Stores statistics into a properties object. Old statistics are left out. */
+    public synchronized Properties store() {
+        Properties prop = new Properties();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            if ((now - entry.getValue().timestamp) <= MAX_AGE)
+                prop.setProperty(entry.getKey(), entry.getValue().serialize());
+        }
+        return prop;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+
+/**
+ * A snapshot of a resumable stream management (XEP-0198) session.
+ * It can be persisted and later restored into a new connection to resume
+ * the stream instead of establishing a new session.
+ * @author Daniele Ricci
+ */
+public class StreamManagementState {
+
+    /** Serialization format version. */
+    private static final int VERSION = 1;
+
+    private final String mDomain;
+    private final String mSessionId;
+    private final String mUser;
+    private final long mClientHandledCount;
+    private final long mServerHandledCount;
+    /** Maximum resumption time in seconds. */
+    private final int mMaxResumptionTime;
+    /** Time the stream was interrupted. */
+    private final long mTimestamp;
+    private final List<Stanza> mUnacknowledgedStanzas;
+    /** Stanza ID to local database ID mapping for stanzas waiting for an ack. */
+    private final Map<String, Long> mPendingAcks;
+
+    public StreamManagementState(String domain, String sessionId, String user,
+            long clientHandledCount, long serverHandledCount, int maxResumptionTime,
+            long timestamp, Collection<Stanza> unacknowledgedStanzas) {
+        mDomain = domain;
+        mSessionId = sessionId;
+        mUser = user;
+        mClientHandledCount = clientHandledCount;
+        mServerHandledCount = serverHandledCount;
+        mMaxResumptionTime = maxResumptionTime;
+        mTimestamp = timestamp;
+        mUnacknowledgedStanzas = new ArrayList<>(unacknowledgedStanzas);
+        mPendingAcks = new HashMap<>();
+    }
+
+    public String getDomain() {
+        return mDomain;
+    }
+
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    public String getUser() {
+        return mUser;
+    }
+
+    public long getClientHandledCount() {
+        return mClientHandledCount;
+    }
+
+    public long getServerHandledCount() {
+        return mServerHandledCount;
+    }
+
+    public int getMaxResumptionTime() {
+        return mMaxResumptionTime;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public List<Stanza> getUnacknowledgedStanzas() {
+        return Collections.unmodifiableList(mUnacknowledgedStanzas);
+    }
+
+    public Map<String, Long> getPendingAcks() {
+        return Collections.unmodifiableMap(mPendingAcks);
+    }
+
+    public void addPendingAck(String stanzaId, long databaseId) {
+        mPendingAcks.put(stanzaId, databaseId);
+    }
+
+    /**
+     * Returns true if the stream can still be resumed at the given time.
+     * A small margin is subtracted from the resumption window to account for
+     * the time needed to connect and authenticate.
+     */
+    public boolean isResumable(long now, long marginMillis) {
+        long maxResumptionMillis = ((long) mMaxResumptionTime) * 1000;
+        return now >= mTimestamp && now < mTimestamp + maxResumptionMillis - marginMillis;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(VERSION);
+        data.writeUTF(mDomain);
+        data.writeUTF(mSessionId);
+        data.writeUTF(mUser);
+        data.writeLong(mClientHandledCount);
+        data.writeLong(mServerHandledCount);
+        data.writeInt(mMaxResumptionTime);
+        data.writeLong(mTimestamp);
+
+        data.writeInt(mUnacknowledgedStanzas.size());
+        for (Stanza stanza : mUnacknowledgedStanzas) {
+            // stanzas might be bigger than what writeUTF can handle
+            byte[] xml = stanza.toXML().toString().getBytes("UTF-8");
+            data.writeInt(xml.length);
+            data.write(xml);
+        }
+
+        data.writeInt(mPendingAcks.size());
+        for (Map.Entry<String, Long> ack : mPendingAcks.entrySet()) {
+            data.writeUTF(ack.getKey());
+            data.writeLong(ack.getValue());
+        }
+        data.flush();
+    }
+
+    public static StreamManagementState readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported stream state version " + version);
+
+        String domain = data.readUTF();
+        String sessionId = data.readUTF();
+        String user = data.readUTF();
+        long clientHandledCount = data.readLong();
+        long serverHandledCount = data.readLong();
+        int maxResumptionTime = data.readInt();
+        long timestamp = data.readLong();
+
+        int count = data.readInt();
+        List<Stanza> stanzas = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] xml = new byte[data.readInt()];
+            data.readFully(xml);
+            try {
+                stanzas.add(PacketParserUtils.parseStanza(new String(xml, "UTF-8")));
+            }
+            catch (Exception e) {
+                throw new IOException("unable to parse stanza", e);
+            }
+        }
+
+        StreamManagementState state = new StreamManagementState(domain, sessionId, user,
+            clientHandledCount, serverHandledCount, maxResumptionTime, timestamp, stanzas);
+
+        count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            state.addPendingAck(data.readUTF(), data.readLong());
+        }
+
+        return state;
+    }
+
+}
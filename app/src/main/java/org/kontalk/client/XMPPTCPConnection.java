@@ -41,6 +41,8 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -93,6 +95,7 @@ import org.jivesoftware.smack.compress.packet.Compressed;
 import org.jivesoftware.smack.compression.XMPPInputOutputStream;
 import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.packet.Element;
+import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Nonza;
@@ -123,7 +126,6 @@ import org.jivesoftware.smack.sm.packet.StreamManagement.StreamManagementFeature
 import org.jivesoftware.smack.sm.predicates.Predicate;
 import org.jivesoftware.smack.sm.provider.ParseStreamManagement;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
-import org.jivesoftware.smack.util.ArrayBlockingQueueWithShutdown;
 import org.jivesoftware.smack.util.Async;
 import org.jivesoftware.smack.util.DNSUtil;
 import org.jivesoftware.smack.util.PacketParserUtils;
@@ -133,6 +135,8 @@ import org.jivesoftware.smack.util.XmlStringBuilder;
 import org.jivesoftware.smack.util.dns.HostAddress;
 import org.jivesoftware.smack.util.dns.SmackDaneProvider;
 import org.jivesoftware.smack.util.dns.SmackDaneVerifier;
+import org.jivesoftware.smackx.chatstates.ChatState;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
 
 import org.jxmpp.jid.impl.JidCreate;
 import org.jxmpp.jid.parts.Resourcepart;
@@ -151,6 +155,20 @@ import org.xmlpull.v1.XmlPullParserException;
 public class XMPPTCPConnection extends AbstractXMPPConnection {
 
     private static final int QUEUE_SIZE = 500;
+
+    /** Priority class for stream management and other nonzas. */
+    static final int PRIORITY_NONZA = 0;
+    /**
+     * Priority class for chat messages, receipts, IQs and subscription
+     * presences. They are kept in order with each other because the server
+     * checks messages against subscriptions, blocking lists and the roster.
+     */
+    static final int PRIORITY_MESSAGE = 1;
+    /** Priority class for presence broadcasts and standalone chat states. */
+    static final int PRIORITY_PRESENCE = 2;
+    static final int PRIORITY_CLASSES = 3;
+    /** Elements served before a waiting lower priority element is served anyway. */
+    static final int PRIORITY_MAX_SKIPS = 8;
     private static final Logger LOGGER = Logger.getLogger(XMPPTCPConnection.class.getName());
 
     /**
@@ -295,6 +313,21 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private volatile boolean smAckSuspend;
 
+    /**
+     * Time spent establishing the TCP connection (ms), -1 if not connected yet.
+     */
+    private long tcpConnectTime = -1;
+
+    /**
+     * Time spent in the TLS handshake (ms), -1 if TLS was not negotiated yet.
+     */
+    private long tlsHandshakeTime = -1;
+
+    /**
+     * If true, connection attempts to all resolved addresses are raced in parallel.
+     */
+    private boolean connectionRacing;
+
     /**
      * Creates a new XMPP connection over TCP (optionally using proxies).
      * <p>
@@ -554,7 +587,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
     }
 
-    private void connectUsingConfiguration() throws ConnectionException, IOException {
+    private void connectUsingConfiguration() throws ConnectionException, IOException, InterruptedException {
         List<HostAddress> failedAddresses = populateHostAddresses();
         SocketFactory socketFactory = config.getSocketFactory();
         ProxyInfo proxyInfo = config.getProxyInfo();
@@ -562,6 +595,10 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         if (socketFactory == null) {
             socketFactory = SocketFactory.getDefault();
         }
+        if (connectionRacing && proxyInfo == null) {
+            connectRacing(socketFactory, timeout, failedAddresses);
+            return;
+        }
         for (HostAddress hostAddress : hostAddresses) {
             Iterator<InetAddress> inetAddresses = null;
             String host = hostAddress.getHost();
@@ -579,7 +616,9 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                     final String inetAddressAndPort = inetAddress + " at port " + port;
                     LOGGER.finer("Trying to establish TCP connection to " + inetAddressAndPort);
                     try {
+                        final long connectStart = System.nanoTime();
                         socket.connect(new InetSocketAddress(inetAddress, port), timeout);
+                        tcpConnectTime = (System.nanoTime() - connectStart) / 1000000;
                     } catch (Exception e) {
                         hostAddress.setException(inetAddress, e);
                         if (inetAddresses.hasNext()) {
@@ -619,6 +658,44 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         throw ConnectionException.from(failedAddresses);
     }
 
+    private void connectRacing(SocketFactory socketFactory, int timeout, List<HostAddress> failedAddresses)
+            throws ConnectionException, IOException, InterruptedException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        Map<InetSocketAddress, HostAddress> owners = new HashMap<>();
+        for (HostAddress hostAddress : hostAddresses) {
+            for (InetAddress inetAddress : hostAddress.getInetAddresses()) {
+                InetSocketAddress address = new InetSocketAddress(inetAddress, hostAddress.getPort());
+                if (!owners.containsKey(address)) {
+                    addresses.add(address);
+                    owners.put(address, hostAddress);
+                }
+            }
+        }
+
+        LOGGER.finer("Racing TCP connections to " + addresses);
+        ConnectionRacer racer = new ConnectionRacer(socketFactory,
+            ConnectionRacer.DEFAULT_ATTEMPT_DELAY, timeout);
+        try {
+            ConnectionRacer.Result result = racer.connect(addresses);
+            HostAddress hostAddress = owners.get(result.getAddress());
+            LOGGER.finer("Established TCP connection to " + result.getAddress());
+            socket = result.getSocket();
+            tcpConnectTime = result.getConnectTime();
+            this.host = hostAddress.getHost();
+            this.port = hostAddress.getPort();
+        }
+        catch (ConnectionRacer.RaceFailedException e) {
+            for (Map.Entry<InetSocketAddress, Exception> failure : e.getFailures().entrySet()) {
+                owners.get(failure.getKey()).setException(failure.getKey().getAddress(), failure.getValue());
+            }
+            for (HostAddress hostAddress : hostAddresses) {
+                if (!failedAddresses.contains(hostAddress))
+                    failedAddresses.add(hostAddress);
+            }
+            throw ConnectionException.from(failedAddresses);
+        }
+    }
+
     /**
      * Initializes the connection by creating a stanza(/packet) reader and writer and opening a
      * XMPP stream to the server.
@@ -807,7 +884,9 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         initReaderAndWriter();
 
         // Proceed to do the handshake
+        final long handshakeStart = System.nanoTime();
         sslSocket.startHandshake();
+        tlsHandshakeTime = (System.nanoTime() - handshakeStart) / 1000000;
 
         if (daneVerifier != null) {
             daneVerifier.finish(sslSocket);
@@ -897,6 +976,8 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     @Override
     protected void connectInternal() throws SmackException, IOException, XMPPException, InterruptedException {
         closingStreamReceived.init();
+        tcpConnectTime = -1;
+        tlsHandshakeTime = -1;
         // Establishes the TCP connection to the server and does setup the reader and writer. Throws an exception if
         // there is an error establishing the connection
         connectUsingConfiguration();
@@ -1267,11 +1348,43 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
     }
 
+    /**
+     * Assigns outgoing elements to priority classes. Stanza acknowledgement
+     * is done in writing order, so stream management counters are not
+     * affected by reordering.
+     */
+    static final PriorityBlockingQueueWithShutdown.Prioritizer<Element> ELEMENT_PRIORITIZER =
+                    new PriorityBlockingQueueWithShutdown.Prioritizer<Element>() {
+        @Override
+        public int getPriority(Element element) {
+            if (!(element instanceof Stanza)) {
+                return PRIORITY_NONZA;
+            }
+            if (element instanceof Message) {
+                Message message = (Message) element;
+                if (message.getBody() == null) {
+                    ExtensionElement chatState = message.getExtension(ChatStateExtension.NAMESPACE);
+                    if (chatState instanceof ChatStateExtension &&
+                                    ((ChatStateExtension) chatState).getChatState() != ChatState.active) {
+                        return PRIORITY_PRESENCE;
+                    }
+                }
+            }
+            else if (element instanceof Presence) {
+                Presence.Type type = ((Presence) element).getType();
+                if (type == Presence.Type.available || type == Presence.Type.unavailable) {
+                    return PRIORITY_PRESENCE;
+                }
+            }
+            return PRIORITY_MESSAGE;
+        }
+    };
+
     protected class PacketWriter {
         public static final int QUEUE_SIZE = XMPPTCPConnection.QUEUE_SIZE;
 
-        private final ArrayBlockingQueueWithShutdown<Element> queue = new ArrayBlockingQueueWithShutdown<Element>(
-                        QUEUE_SIZE, true);
+        private final PriorityBlockingQueueWithShutdown<Element> queue = new PriorityBlockingQueueWithShutdown<Element>(
+                        QUEUE_SIZE, PRIORITY_CLASSES, PRIORITY_MAX_SKIPS, ELEMENT_PRIORITIZER);
 
         /**
          * Needs to be protected for unit testing purposes.
@@ -1430,7 +1543,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                     // Flush out the rest of the queue.
                     try {
                         while (!queue.isEmpty()) {
-                            Element packet = queue.remove();
+                            Element packet = queue.poll();
                             if (packet instanceof Stanza) {
                                 Stanza stanza = (Stanza) packet;
                                 maybeAddToUnacknowledgedStanzas(stanza);
@@ -1755,6 +1868,16 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         return smEnabledSyncPoint.wasSuccessful();
     }
 
+    /**
+     * Returns the number of top level stream elements waiting to be written.
+     *
+     * @return the size of the outgoing queue.
+     */
+    public int getOutgoingQueueSize() {
+        PacketWriter writer = packetWriter;
+        return writer != null ? writer.queue.size() : 0;
+    }
+
     /**
      * Returns true if the stream was successfully resumed with help of Stream Management.
      *
@@ -1915,4 +2038,61 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
     }
 
+    /**
+     * Returns a snapshot of the resumable stream state, or null if the stream
+     * is not resumable.
+     */
+    public StreamManagementState getStreamManagementState() {
+        final BlockingQueue<Stanza> unacked = unacknowledgedStanzas;
+        if (packetWriter == null || !isSmResumptionPossible() || unacked == null || user == null)
+            return null;
+
+        final Long shutdownTimestamp = packetWriter.shutdownTimestamp;
+        return new StreamManagementState(getXMPPServiceDomain().toString(), smSessionId,
+            user.toString(), clientHandledStanzasCount, serverHandledStanzasCount,
+            getMaxSmResumptionTime(), shutdownTimestamp != null ?
+                shutdownTimestamp : System.currentTimeMillis(), unacked);
+    }
+
+    /**
+     * Restores a previously saved stream state. The stream will be resumed
+     * on the next login. Must be called before connecting.
+     */
+    public void setStreamManagementState(StreamManagementState state) throws XmppStringprepException {
+        if (isConnected())
+            throw new IllegalStateException("connection already established");
+
+        user = JidCreate.entityFullFrom(state.getUser());
+        smSessionId = state.getSessionId();
+        clientHandledStanzasCount = state.getClientHandledCount();
+        serverHandledStanzasCount = state.getServerHandledCount();
+        smServerMaxResumptimTime = state.getMaxResumptionTime();
+        unacknowledgedStanzas = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        unacknowledgedStanzas.addAll(state.getUnacknowledgedStanzas());
+        smWasEnabledAtLeastOnce = true;
+    }
+
+    /** Returns the listeners waiting for an ack of a stanza ID. */
+    public Map<String, StanzaListener> getStanzaIdAcknowledgedListeners() {
+        return Collections.unmodifiableMap(stanzaIdAcknowledgedListeners);
+    }
+
+    /** Returns the time spent establishing the TCP connection in milliseconds, -1 if not available. */
+    public long getTcpConnectTime() {
+        return tcpConnectTime;
+    }
+
+    /** Returns the time spent in the TLS handshake in milliseconds, -1 if not available. */
+    public long getTlsHandshakeTime() {
+        return tlsHandshakeTime;
+    }
+
+    /**
+     * Enables or disables racing connection attempts to all resolved
+     * addresses. Must be called before connecting.
+     */
+    public void setConnectionRacing(boolean enabled) {
+        connectionRacing = enabled;
+    }
+
 }
@@ -25,6 +25,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import org.jivesoftware.smack.packet.Message;
+
 
 /**
  * Generic coder interface.
@@ -115,12 +117,16 @@ public abstract class Coder {
 
     public static class DecryptOutput {
         public final String mime;
+        /** Decrypted text, null for XMPP payloads. */
         public final String cleartext;
+        /** Parsed message stanza for XMPP payloads. */
+        public final Message stanza;
         public final Date timestamp;
         public final List<DecryptException> errors;
 
-        DecryptOutput(String cleartext, String mime, Date timestamp, List<DecryptException> errors) {
+        DecryptOutput(String cleartext, Message stanza, String mime, Date timestamp, List<DecryptException> errors) {
             this.cleartext = cleartext;
+            this.stanza = stanza;
             this.mime = mime;
             this.timestamp = timestamp;
             this.errors = errors;
@@ -19,6 +19,8 @@
 package org.kontalk.crypto;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -34,6 +36,11 @@ import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jxmpp.util.XmppStringUtils;
 import org.spongycastle.bcpg.ArmoredInputStream;
@@ -82,8 +89,8 @@ import org.kontalk.util.MessageUtils;
 /** Some PGP utility method, mainly for use by {@link PersonalKey}. */
 public class PGP {
 
-    /** Security provider: Spongy Castle. */
-    public static Provider PROVIDER;
+    /** Security provider: Spongy Castle. Created on demand by {@link #getProvider()}. */
+    private static volatile Provider sProvider;
 
     /** Default EC curve used. */
     private static final String EC_CURVE = "P-256";
@@ -141,12 +148,9 @@ public class PGP {
         }
     }
 
-    public static void registerProvider() {
-        // create spongy castle provider
-        // do not register it as can cause issues on some devices
-        PROVIDER = new BouncyCastleProvider();
+    /** Applies the PRNG fixes. Must be done before any use of random numbers. */
+    public static void applyPRNGFixes() {
         try {
-            // apply RNG fixes
             PRNGFixes.apply();
         }
         catch (Exception e) {
@@ -154,35 +158,97 @@ public class PGP {
         }
     }
 
+    /**
+     * Returns the security provider, creating it on first use. Creating the
+     * provider is expensive, so it's not done during application startup.
+     */
+    public static Provider getProvider() {
+        Provider provider = sProvider;
+        if (provider == null) {
+            synchronized (PGP.class) {
+                provider = sProvider;
+                if (provider == null) {
+                    // create spongy castle provider
+                    // do not register it as can cause issues on some devices
+                    provider = sProvider = new BouncyCastleProvider();
+                }
+            }
+        }
+        return provider;
+    }
+
     public static final class PRNGFixException extends SecurityException {
         PRNGFixException(String message, Throwable cause) {
             super(message, cause);
         }
     }
 
-    /** Creates an ECDSA/ECDH key pair. */
-    public static PGPDecryptedKeyPairRing create(Date timestamp)
+    /**
+     * Creates an RSA/ECDSA/ECDH key pair.
+     * Subkeys are generated concurrently.
+     */
+    public static PGPDecryptedKeyPairRing create(final Date timestamp)
             throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, InvalidAlgorithmParameterException {
 
-        KeyPairGenerator gen;
-        PGPKeyPair authKp, encryptKp, signKp;
-
-        gen = KeyPairGenerator.getInstance("RSA", PROVIDER);
-        gen.initialize(RSA_KEY_LENGTH);
-
-        authKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), timestamp);
-
-        gen = KeyPairGenerator.getInstance("ECDH", PROVIDER);
-        gen.initialize(new ECGenParameterSpec(EC_CURVE));
+        // generate the two EC subkeys in parallel while we generate the RSA key
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PGPKeyPair> encryptTask = executor.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    KeyPairGenerator gen = KeyPairGenerator.getInstance("ECDH", getProvider());
+                    gen.initialize(new ECGenParameterSpec(EC_CURVE));
+                    return new JcaPGPKeyPair(PGPPublicKey.ECDH, gen.generateKeyPair(), timestamp);
+                }
+            });
+            Future<PGPKeyPair> signTask = executor.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    KeyPairGenerator gen = KeyPairGenerator.getInstance("ECDSA", getProvider());
+                    gen.initialize(new ECGenParameterSpec(EC_CURVE));
+                    return new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), timestamp);
+                }
+            });
 
-        encryptKp = new JcaPGPKeyPair(PGPPublicKey.ECDH, gen.generateKeyPair(), timestamp);
+            KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", getProvider());
+            gen.initialize(RSA_KEY_LENGTH);
 
-        gen = KeyPairGenerator.getInstance("ECDSA", PROVIDER);
-        gen.initialize(new ECGenParameterSpec(EC_CURVE));
+            PGPKeyPair authKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), timestamp);
+            PGPKeyPair encryptKp = getGeneratedKey(encryptTask);
+            PGPKeyPair signKp = getGeneratedKey(signTask);
 
-        signKp = new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), timestamp);
+            return new PGPDecryptedKeyPairRing(authKp, signKp, encryptKp);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
 
-        return new PGPDecryptedKeyPairRing(authKp, signKp, encryptKp);
+    private static PGPKeyPair getGeneratedKey(Future<PGPKeyPair> task)
+            throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, InvalidAlgorithmParameterException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PGPException("key generation interrupted", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException)
+                throw (NoSuchAlgorithmException) cause;
+            if (cause instanceof NoSuchProviderException)
+                throw (NoSuchProviderException) cause;
+            if (cause instanceof InvalidAlgorithmParameterException)
+                throw (InvalidAlgorithmParameterException) cause;
+            if (cause instanceof PGPException)
+                throw (PGPException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new PGPException("key generation failed", (Exception) cause);
+        }
     }
 
     /** Creates public and secret keyring for a given keypair. */
@@ -204,7 +270,7 @@ public class PGP {
             id, digestCalc, sbpktGen.generate(), null,
             new JcaPGPContentSignerBuilder(pair.authKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
             new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, digestCalc)
-                .setProvider(PROVIDER).build(passphrase.toCharArray()));
+                .setProvider(getProvider()).build(passphrase.toCharArray()));
 
         // add signing subkey
         sbpktGen = new PGPSignatureSubpacketGenerator();
@@ -227,7 +293,7 @@ public class PGP {
     private static PGPSignature crossCertify(PGPKeyPair signer, PGPPublicKey key) throws PGPException {
         PGPSignatureGenerator sGen = new PGPSignatureGenerator(
             new JcaPGPContentSignerBuilder(signer.getPublicKey().getAlgorithm(),
-                PGPUtil.SHA256).setProvider(PROVIDER));
+                PGPUtil.SHA256).setProvider(getProvider()));
         sGen.init(PGPSignature.PRIMARYKEY_BINDING, signer.getPrivateKey());
         return sGen.generateCertification(key);
     }
@@ -241,7 +307,7 @@ public class PGP {
 
         PGPSignatureGenerator       sGen = new PGPSignatureGenerator(
             new JcaPGPContentSignerBuilder(secret.getPublicKey().getAlgorithm(),
-                PGPUtil.SHA256).setProvider(PROVIDER));
+                PGPUtil.SHA256).setProvider(getProvider()));
 
         sGen.init(PGPSignature.KEY_REVOCATION, pgpPrivKey);
 
@@ -262,6 +328,21 @@ public class PGP {
         writeKeyPairToParcel(pair.encryptKey, dest);
     }
 
+    /** Writes a decrypted key pair ring to a stream. Data is not encrypted. */
+    public static void writeTo(PGPDecryptedKeyPairRing pair, DataOutputStream dest) throws IOException {
+        writeKeyPair(pair.authKey, dest);
+        writeKeyPair(pair.signKey, dest);
+        writeKeyPair(pair.encryptKey, dest);
+    }
+
+    /** Reads a decrypted key pair ring written by {@link #writeTo}. */
+    public static PGPDecryptedKeyPairRing readFrom(DataInputStream in) throws PGPException, IOException {
+        PGPKeyPair authKp = readKeyPair(in);
+        PGPKeyPair signKp = readKeyPair(in);
+        PGPKeyPair encryptKp = readKeyPair(in);
+        return new PGPDecryptedKeyPairRing(authKp, signKp, encryptKp);
+    }
+
     private static void writeKeyPairToParcel(PGPKeyPair keypair, Parcel dest) throws IOException {
         // write private key
         PGPPrivateKey priv = keypair.getPrivateKey();
@@ -285,28 +366,65 @@ public class PGP {
     }
 
     private static PGPKeyPair readKeyPairFromParcel(Parcel in) throws IOException, PGPException {
+        // key ID
+        long privID = in.readLong();
+
+        // private key data packet
+        int privDataLength = in.readInt();
+        byte[] privDataData = new byte[privDataLength];
+        in.readByteArray(privDataData);
+
+        // public key packet
+        int privPubKeyLength = in.readInt();
+        byte[] privPubKeyData = new byte[privPubKeyLength];
+        in.readByteArray(privPubKeyData);
+
+        // public key data
+        int pubKeyLength = in.readInt();
+        byte[] pubKeyData = new byte[pubKeyLength];
+        in.readByteArray(pubKeyData);
+
+        return buildKeyPair(privID, privDataData, privPubKeyData, pubKeyData);
+    }
+
+    /** Same format as {@link #writeKeyPairToParcel}, minus the Parcel array headers. */
+    private static void writeKeyPair(PGPKeyPair keypair, DataOutputStream dest) throws IOException {
+        PGPPrivateKey priv = keypair.getPrivateKey();
+        dest.writeLong(priv.getKeyID());
+        writeBytes(priv.getPrivateKeyDataPacket().getEncoded(), dest);
+        writeBytes(priv.getPublicKeyPacket().getEncoded(), dest);
+        writeBytes(keypair.getPublicKey().getEncoded(), dest);
+    }
+
+    private static PGPKeyPair readKeyPair(DataInputStream in) throws IOException, PGPException {
+        long privID = in.readLong();
+        byte[] privDataData = readBytes(in);
+        byte[] privPubKeyData = readBytes(in);
+        byte[] pubKeyData = readBytes(in);
+        return buildKeyPair(privID, privDataData, privPubKeyData, pubKeyData);
+    }
+
+    private static void writeBytes(byte[] data, DataOutputStream dest) throws IOException {
+        dest.writeInt(data.length);
+        dest.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    /** Rebuilds a key pair from its encoded packets. */
+    private static PGPKeyPair buildKeyPair(long privID, byte[] privDataData, byte[] privPubKeyData, byte[] pubKeyData)
+            throws IOException, PGPException {
         BCPGInputStream reader = null;
-        long privID;
         BCPGKey privData;
         PublicKeyPacket privPubKey;
 
         // rebuild private key
 
         try {
-            // key ID
-            privID = in.readLong();
-
-            // private key data packet
-            int privDataLength = in.readInt();
-            byte[] privDataData = new byte[privDataLength];
-            in.readByteArray(privDataData);
-            // object will be read later
-
-            // public key packet
-            int privPubKeyLength = in.readInt();
-            byte[] privPubKeyData = new byte[privPubKeyLength];
-            in.readByteArray(privPubKeyData);
-
             reader = new BCPGInputStream(new ByteArrayInputStream(privPubKeyData));
             privPubKey = (PublicKeyPacket) reader.readPacket();
             reader.close();
@@ -351,11 +469,6 @@ public class PGP {
         PGPPrivateKey priv = new PGPPrivateKey(privID, privPubKey, privData);
 
         // rebuild public key
-        // public key data
-        int pubKeyLength = in.readInt();
-        byte[] pubKeyData = new byte[pubKeyLength];
-        in.readByteArray(pubKeyData);
-
         PGPObjectFactory f = new PGPObjectFactory(pubKeyData, sFingerprintCalculator);
         PGPPublicKeyRing pubring = (PGPPublicKeyRing) f.nextObject();
         PGPPublicKey pub = pubring.getPublicKey();
@@ -616,7 +729,7 @@ public class PGP {
 
     private static void ensureKeyConverter() {
         if (sKeyConverter == null)
-            sKeyConverter = new JcaPGPKeyConverter().setProvider(PGP.PROVIDER);
+            sKeyConverter = new JcaPGPKeyConverter().setProvider(PGP.getProvider());
     }
 
     public static PrivateKey convertPrivateKey(PGPPrivateKey key) throws PGPException {
@@ -630,7 +743,7 @@ public class PGP {
 
         PGPDigestCalculatorProvider digestCalc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(digestCalc)
-            .setProvider(PGP.PROVIDER)
+            .setProvider(PGP.getProvider())
             .build(passphrase.toCharArray());
 
         // load the secret key ring
@@ -669,12 +782,12 @@ public class PGP {
 
         PGPDigestCalculatorProvider digestCalcProv = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(digestCalcProv)
-            .setProvider(PGP.PROVIDER)
+            .setProvider(PGP.getProvider())
             .build(oldPassphrase.toCharArray());
 
         PGPDigestCalculator digestCalc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA256);
         PBESecretKeyEncryptor encryptor = new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, digestCalc)
-            .setProvider(PROVIDER).build(newPassphrase.toCharArray());
+            .setProvider(getProvider()).build(newPassphrase.toCharArray());
 
         return PGPSecretKeyRing.copyWithNewPassword(secRing, decryptor, encryptor);
     }
@@ -20,6 +20,7 @@ package org.kontalk.crypto;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -32,6 +33,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
+import org.jivesoftware.smack.packet.Message;
 import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
@@ -61,6 +63,7 @@ import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenera
 import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.CPIMMessage;
+import org.kontalk.util.CPIMStreamParser;
 import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
@@ -87,6 +90,10 @@ public class PGPCoder extends Coder {
 
     /** Buffer size. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
+    /** Buffer size for reading decrypted data. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static final String CHARSET = "UTF-8";
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -229,6 +236,7 @@ public class PGPCoder extends Coder {
         String mime = null;
         Date timestamp = null;
         String out = null;
+        Message stanza = null;
         InputStream cDataIn = null;
 
         try {
@@ -273,8 +281,6 @@ public class PGPCoder extends Coder {
 
             Object message = plainFact.nextObject();
 
-            CharSequence msgData = null;
-
             if (message instanceof PGPCompressedData) {
                 PGPCompressedData cData = (PGPCompressedData) message;
                 cDataIn = cData.getDataStream();
@@ -308,19 +314,65 @@ public class PGPCoder extends Coder {
                 if (message instanceof PGPLiteralData) {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
-                    InputStream unc = ld.getInputStream();
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    // literal data is parsed while being read and verified
+                    InputStream unc = new SignatureInputStream(ld.getInputStream(), ops);
+                    CPIMStreamParser msg = new CPIMStreamParser(unc);
 
-                    byte[] buf = new byte[4096];
-                    int num;
+                    try {
+                        // parse and check Message/CPIM
+                        try {
+                            msg.parseHeaders();
+                        }
+                        catch (ParseException pe) {
+                            // return data as-is
+                            msg.reset();
+                            out = readText(msg.getBody());
 
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                            if (verify) {
+                                // verification requested: invalid CPIM data
+                                errors.add(new DecryptException(
+                                    DECRYPT_EXCEPTION_INVALID_DATA, pe,
+                                    "Verification was requested but no CPIM valid data was found"));
+                            }
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            // skip everything else
+                            msg = null;
+                        }
+
+                        if (msg != null) {
+                            mime = msg.getMime();
+
+                            if (XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(mime)) {
+                                // parse the stanza directly from the stream
+                                try {
+                                    stanza = XMPPUtils.parseMessageStanza(msg.getBody(), CHARSET);
+                                }
+                                catch (Exception e) {
+                                    throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA, e);
+                                }
+                                if (stanza == null) {
+                                    throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA,
+                                        "No message stanza found");
+                                }
+                            }
+                            else {
+                                out = readText(msg.getBody());
+                            }
+
+                            if (verify) {
+                                verifyHeaders(msg, errors);
+                                timestamp = msg.getDate();
+                            }
+                        }
                     }
 
+                    catch (DecryptException de) {
+                        errors.add(de);
+                    }
+
+                    // consume any remaining data for signature verification
+                    drain(unc);
+
                     if (verify) {
                         if (ops == null) {
                             errors.add(new DecryptException(
@@ -369,103 +421,6 @@ public class PGPCoder extends Coder {
                         }
                     }
 
-                    String data = bout.toString();
-
-                    try {
-                        // parse and check Message/CPIM
-                        CPIMMessage msg = CPIMMessage.parse(data);
-
-                        mime = msg.getMime();
-
-                        msgData = msg.getBody();
-
-                        if (verify) {
-                            // verify CPIM headers, including mime type must be either text or xml
-
-                            // check mime type
-                            if (!TextComponent.MIME_TYPE.equalsIgnoreCase(msg.getMime()) &&
-                                    !XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(msg.getMime())) {
-                                // unrecoverable situation
-                                throw new DecryptException(
-                                    DECRYPT_EXCEPTION_INTEGRITY_CHECK,
-                                    "MIME type mismatch");
-                            }
-
-                            // check that the recipient matches the full uid of the personal key
-                            boolean foundTo = false;
-                            String myUid = mKey.getUserId(mServer.getNetwork());
-                            String[] msgTo = msg.getTo();
-                            if (msgTo != null) {
-                                for (String to : msgTo) {
-                                    if (myUid.equals(to)) {
-                                        foundTo = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (!foundTo) {
-                                errors.add(new DecryptException(
-                                    DECRYPT_EXCEPTION_INVALID_RECIPIENT,
-                                    "Destination does not match personal key"));
-                            }
-
-                            // check that the sender matches the full uid of the sender's key
-                            if (mSender != null) {
-                                String otherUid = PGP.getUserId(PGP.getMasterKey(mSender), mServer.getNetwork());
-                                if (!otherUid.equals(msg.getFrom())) {
-                                    errors.add(new DecryptException(
-                                        DECRYPT_EXCEPTION_INVALID_SENDER,
-                                        "Sender does not match sender's key"));
-                                }
-                            }
-                            else {
-                                errors.add(new DecryptException(
-                                    DECRYPT_EXCEPTION_VERIFICATION_FAILED,
-                                    "No public key available to verify sender"));
-                            }
-
-                            timestamp = msg.getDate();
-                            if (timestamp == null) {
-                                errors.add(new DecryptException(
-                                    DECRYPT_EXCEPTION_INVALID_TIMESTAMP,
-                                    "Invalid timestamp"));
-                            }
-
-                            // check DateTime (plain text only, <delay/> is left to the caller)
-                            if (TextComponent.MIME_TYPE.equalsIgnoreCase(msg.getMime())) {
-                                long time = msg.getDate().getTime();
-                                long now = System.currentTimeMillis();
-                                long diff = Math.abs(now - time);
-                                if (diff > TIMEDIFF_THRESHOLD) {
-                                    errors.add(new DecryptException(
-                                        DECRYPT_EXCEPTION_INVALID_TIMESTAMP,
-                                        "Drifted timestamp"));
-                                }
-                            }
-                        }
-
-                    }
-                    catch (ParseException pe) {
-                        // return data as-is
-                        msgData = data;
-
-                        if (verify) {
-                            // verification requested: invalid CPIM data
-                            errors.add(new DecryptException(
-                                DECRYPT_EXCEPTION_INVALID_DATA, pe,
-                                "Verification was requested but no CPIM valid data was found"));
-                        }
-                    }
-
-                    catch (DecryptException de) {
-                        errors.add(de);
-                    }
-
-                    finally {
-                        if (msgData != null)
-                            out = String.valueOf(msgData);
-                    }
-
                 }
                 else {
                     // invalid or unknown packet
@@ -498,7 +453,118 @@ public class PGPCoder extends Coder {
             SystemUtils.closeStream(cDataIn);
         }
 
-        return new DecryptOutput(out, mime, timestamp, errors);
+        return new DecryptOutput(out, stanza, mime, timestamp, errors);
+    }
+
+    /** Verifies CPIM headers against our key and the sender's key. */
+    private void verifyHeaders(CPIMStreamParser msg, List<DecryptException> errors)
+            throws DecryptException, PGPException {
+        // verify CPIM headers, including mime type must be either text or xml
+
+        // check mime type
+        if (!TextComponent.MIME_TYPE.equalsIgnoreCase(msg.getMime()) &&
+                !XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(msg.getMime())) {
+            // unrecoverable situation
+            throw new DecryptException(
+                DECRYPT_EXCEPTION_INTEGRITY_CHECK,
+                "MIME type mismatch");
+        }
+
+        // check that the recipient matches the full uid of the personal key
+        String myUid = mKey.getUserId(mServer.getNetwork());
+        if (!msg.hasRecipient(myUid)) {
+            errors.add(new DecryptException(
+                DECRYPT_EXCEPTION_INVALID_RECIPIENT,
+                "Destination does not match personal key"));
+        }
+
+        // check that the sender matches the full uid of the sender's key
+        if (mSender != null) {
+            String otherUid = PGP.getUserId(PGP.getMasterKey(mSender), mServer.getNetwork());
+            if (!otherUid.equals(msg.getFrom())) {
+                errors.add(new DecryptException(
+                    DECRYPT_EXCEPTION_INVALID_SENDER,
+                    "Sender does not match sender's key"));
+            }
+        }
+        else {
+            errors.add(new DecryptException(
+                DECRYPT_EXCEPTION_VERIFICATION_FAILED,
+                "No public key available to verify sender"));
+        }
+
+        Date timestamp = msg.getDate();
+        if (timestamp == null) {
+            errors.add(new DecryptException(
+                DECRYPT_EXCEPTION_INVALID_TIMESTAMP,
+                "Invalid timestamp"));
+        }
+
+        // check DateTime (plain text only, <delay/> is left to the caller)
+        else if (TextComponent.MIME_TYPE.equalsIgnoreCase(msg.getMime())) {
+            long time = timestamp.getTime();
+            long now = System.currentTimeMillis();
+            long diff = Math.abs(now - time);
+            if (diff > TIMEDIFF_THRESHOLD) {
+                errors.add(new DecryptException(
+                    DECRYPT_EXCEPTION_INVALID_TIMESTAMP,
+                    "Drifted timestamp"));
+            }
+        }
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        int num;
+        while ((num = in.read(buf)) >= 0)
+            out.write(buf, 0, num);
+        return out.toString(CHARSET);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buf) >= 0);
+    }
+
+    /** Updates a one-pass signature with the data being read. */
+    private static final class SignatureInputStream extends FilterInputStream {
+        private final PGPOnePassSignature mSignature;
+
+        SignatureInputStream(InputStream in, PGPOnePassSignature signature) {
+            super(in);
+            mSignature = signature;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0 && mSignature != null)
+                mSignature.update((byte) c);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int num = super.read(b, off, len);
+            if (num > 0 && mSignature != null)
+                mSignature.update(b, off, num);
+            return num;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must be signed too
+            byte[] buf = new byte[(int) Math.min(n, READ_BUFFER_SIZE)];
+            int num = read(buf, 0, buf.length);
+            return Math.max(num, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
     @Override
@@ -20,6 +20,8 @@ package org.kontalk.crypto;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -222,6 +224,36 @@ public class PersonalKey implements Parcelable {
         }
     }
 
+    /**
+     * Writes the decrypted key and the bridge certificate to a stream.
+     * Data is not encrypted.
+     */
+    public void writeTo(DataOutputStream out) throws IOException, CertificateException {
+        PGP.writeTo(mPair, out);
+        if (mBridgeCert != null) {
+            byte[] certData = mBridgeCert.getEncoded();
+            out.writeInt(certData.length);
+            out.write(certData);
+        }
+        else {
+            out.writeInt(-1);
+        }
+    }
+
+    /** Reads a key written by {@link #writeTo}. */
+    public static PersonalKey readFrom(DataInputStream in)
+            throws IOException, PGPException, CertificateException, NoSuchProviderException {
+        PGPDecryptedKeyPairRing pair = PGP.readFrom(in);
+        X509Certificate bridgeCert = null;
+        int certLength = in.readInt();
+        if (certLength >= 0) {
+            byte[] certData = new byte[certLength];
+            in.readFully(certData);
+            bridgeCert = X509Bridge.load(certData);
+        }
+        return new PersonalKey(pair, bridgeCert);
+    }
+
     /** Checks that the given personal key data is correct. */
     public static PGPKeyPairRing test(InputStream privateKeyData, InputStream publicKeyData, String passphrase, InputStream bridgeCertData)
             throws PGPException, IOException, CertificateException, NoSuchProviderException {
@@ -303,7 +335,7 @@ public class PersonalKey implements Parcelable {
 
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
-            .setProvider(PGP.PROVIDER)
+            .setProvider(PGP.getProvider())
             .build(passphrase.toCharArray());
 
         PGPKeyPair authKp, signKp, encryptKp;
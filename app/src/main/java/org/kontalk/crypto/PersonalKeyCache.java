@@ -0,0 +1,271 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import org.kontalk.Log;
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Cache of decrypted personal keys.
+ * Decrypting the secret key ring (and creating a bridge certificate) is
+ * expensive, so the decrypted key is stored on disk encrypted with a key
+ * kept in the Android keystore. Cached data is bound to the key data it was
+ * created from and it's discarded as soon as that changes. The binding is
+ * derived from the passphrase, so it is never written to disk: it is only
+ * used as additional authenticated data for the cipher. Available only
+ * on Android 6.0 and later, it does nothing on older versions.
+ * @author Daniele Ricci
+ */
+public class PersonalKeyCache {
+    private static final String TAG = PersonalKeyCache.class.getSimpleName();
+
+    /** Cache slot for the account personal key. */
+    public static final String SLOT_DEFAULT = "default";
+    /** Cache slot for the temporary key used while upgrading from legacy authentication. */
+    public static final String SLOT_UPGRADE = "upgrade";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "org.kontalk.personalKeyCache";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 128;
+
+    private static final String CACHE_DIR = "keycache";
+    /** Cache file format version. */
+    private static final int VERSION = 2;
+
+    private PersonalKeyCache() {
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Computes the value binding cached data to the given key data.
+     * Any change to the data will invalidate the cache.
+     */
+    public static byte[] binding(byte[]... keyData) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] data : keyData) {
+                if (data != null)
+                    md.update(data);
+                // separator
+                md.update((byte) 0);
+            }
+            return md.digest();
+        }
+        catch (GeneralSecurityException e) {
+            // SHA-256 is always available
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads a cached key.
+     * @param slot cache slot
+     * @param binding key data binding, see {@link #binding}
+     * @return the cached key, or null if not cached or not valid anymore
+     */
+    public static synchronized PersonalKey load(Context context, String slot, byte[] binding) {
+        if (!isSupported())
+            return null;
+
+        File file = getCacheFile(context, slot);
+        if (!file.isFile())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != VERSION)
+                throw new IOException("unsupported cache version");
+            byte[] iv = readBytes(in);
+            byte[] data = readBytes(in);
+
+            byte[] plain;
+            try {
+                plain = decrypt(binding, iv, data);
+            }
+            catch (AEADBadTagException e) {
+                Log.d(TAG, "key data has changed, discarding cached key");
+                file.delete();
+                return null;
+            }
+            try {
+                return PersonalKey.readFrom(new DataInputStream(new ByteArrayInputStream(plain)));
+            }
+            finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+        }
+        catch (Exception e) {
+            // keystore key might have been invalidated (e.g. lock screen removed)
+            Log.w(TAG, "unable to load cached key", e);
+            file.delete();
+            return null;
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+    }
+
+    /**
+     * Stores a key in the cache.
+     * @param slot cache slot
+     * @param binding key data binding, see {@link #binding}
+     */
+    public static synchronized void store(Context context, String slot, byte[] binding, PersonalKey key) {
+        if (!isSupported())
+            return;
+
+        File file = getCacheFile(context, slot);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        byte[] plain = null;
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            key.writeTo(new DataOutputStream(buf));
+            plain = buf.toByteArray();
+
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getSecretKey());
+            cipher.updateAAD(binding);
+            byte[] data = cipher.doFinal(plain);
+
+            file.getParentFile().mkdirs();
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(VERSION);
+            writeBytes(out, cipher.getIV());
+            writeBytes(out, data);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file))
+                throw new IOException("unable to rename cache file");
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to cache key", e);
+            temp.delete();
+        }
+        finally {
+            SystemUtils.closeStream(out);
+            if (plain != null)
+                Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /** Deletes all cached keys and the keystore key. */
+    public static synchronized void clear(Context context) {
+        if (!isSupported())
+            return;
+
+        File[] files = new File(getNoBackupDir(context), CACHE_DIR).listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+            keyStore.deleteEntry(KEY_ALIAS);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to delete keystore key", e);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static byte[] decrypt(byte[] binding, byte[] iv, byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new GCMParameterSpec(TAG_LENGTH, iv));
+        cipher.updateAAD(binding);
+        return cipher.doFinal(data);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getSecretKey() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        SecretKey key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        if (key == null) {
+            KeyGenerator generator = KeyGenerator
+                .getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+            generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+            key = generator.generateKey();
+        }
+        return key;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static File getNoBackupDir(Context context) {
+        return context.getNoBackupFilesDir();
+    }
+
+    private static File getCacheFile(Context context, String slot) {
+        return new File(new File(getNoBackupDir(context), CACHE_DIR), slot);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1024 * 1024)
+            throw new IOException("invalid cache data");
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+}
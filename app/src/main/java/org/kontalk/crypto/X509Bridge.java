@@ -120,7 +120,7 @@ public class X509Bridge {
         // extract the private key
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
-            .setProvider(PGP.PROVIDER)
+            .setProvider(PGP.getProvider())
             .build(passphrase.toCharArray());
 
         PGPPrivateKey privateKey = secretKey.extractPrivateKey(decryptor);
@@ -137,7 +137,7 @@ public class X509Bridge {
 
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
-            .setProvider(PGP.PROVIDER)
+            .setProvider(PGP.getProvider())
             .build(passphrase.toCharArray());
 
         // secret key
@@ -396,14 +396,14 @@ public class X509Bridge {
     public static X509Certificate load(InputStream certData)
             throws CertificateException, NoSuchProviderException {
 
-        CertificateFactory certFactory = CertificateFactory.getInstance("X.509", PGP.PROVIDER);
+        CertificateFactory certFactory = CertificateFactory.getInstance("X.509", PGP.getProvider());
         return (X509Certificate) certFactory.generateCertificate(certData);
     }
 
     public static KeyStore exportCertificate(X509Certificate certificate, PrivateKey privateKey)
             throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, CertificateException, IOException {
 
-        KeyStore store = KeyStore.getInstance("PKCS12", PGP.PROVIDER);
+        KeyStore store = KeyStore.getInstance("PKCS12", PGP.getProvider());
 
         store.load(null, null);
 
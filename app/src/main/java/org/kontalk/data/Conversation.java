@@ -18,6 +18,7 @@
 
 package org.kontalk.data;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -27,6 +28,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import org.kontalk.provider.KontalkGroupCommands;
 import org.kontalk.provider.MessagesProviderClient;
@@ -202,6 +204,14 @@ public class Conversation {
             groupMembership = cursor.getInt(COLUMN_GROUP_MEMBERSHIP);
             encrypted = cursor.getInt(COLUMN_ENCRYPTED) != 0;
         }
+
+        public DeleteThreadHolder(Conversation conv) {
+            id = conv.mThreadId;
+            groupJid = conv.mGroupJid;
+            groupType = conv.mGroupType;
+            groupMembership = conv.mGroupMembership;
+            encrypted = conv.mEncrypted;
+        }
     }
 
     public static boolean isGroup(Cursor cursor, int requiredMembership) {
@@ -460,6 +470,14 @@ public class Conversation {
             null, Threads.DEFAULT_SORT_ORDER);
     }
 
+    /** Queries only the given threads. */
+    public static Cursor startQuery(Context context, boolean archived, Collection<Long> threadIds) {
+        return context.getContentResolver().query(Threads.CONTENT_URI,
+            ALL_THREADS_PROJECTION, Threads.ARCHIVED + " = " + (archived ? "1" : "0") +
+                " AND " + Threads._ID + " IN (" + TextUtils.join(",", threadIds) + ")",
+            null, Threads.DEFAULT_SORT_ORDER);
+    }
+
     public static Cursor startQuery(Context context, long threadId) {
         return context.getContentResolver().query(Threads.CONTENT_URI,
                 ALL_THREADS_PROJECTION, Threads._ID + " = " + threadId, null, null);
@@ -74,7 +74,8 @@ public class CompositeMessage {
         Messages.ENCRYPTED,
         Messages.SECURITY_FLAGS,
         Messages.BODY_MIME,
-        Messages.BODY_CONTENT,
+        // large bodies are loaded only when needed
+        Messages.BODY_CONTENT_PREVIEW,
         Messages.BODY_LENGTH,
         Messages.ATTACHMENT_MIME,
         Messages.ATTACHMENT_PREVIEW_PATH,
@@ -149,6 +150,10 @@ public class CompositeMessage {
     protected boolean mEncrypted;
     protected int mSecurityFlags;
     protected long mInReplyTo;
+    /** Body length (used only for messages loaded from the database). */
+    protected long mBodyLength;
+    /** True if the body was truncated by the list projection. */
+    protected boolean mBodyTruncated;
 
     /**
      * Recipients (outgoing) - will contain one element for incoming
@@ -298,6 +303,35 @@ public class CompositeMessage {
         return null;
     }
 
+    public long getBodyLength() {
+        return mBodyLength;
+    }
+
+    /** Returns true if the body was truncated when loaded from a message list. */
+    public boolean isBodyTruncated() {
+        return mBodyTruncated;
+    }
+
+    /**
+     * Replaces a truncated body with the full one.
+     * @param body the full body content, as stored in the database
+     */
+    public void setFullBody(byte[] body) {
+        if (!mBodyTruncated || body == null)
+            return;
+
+        for (int i = 0; i < mComponents.size(); i++) {
+            MessageComponent<?> cmp = mComponents.get(i);
+            if (cmp instanceof TextComponent) {
+                mComponents.set(i, new TextComponent(MessageUtils.toString(body)));
+            }
+            else if (cmp instanceof RawComponent) {
+                mComponents.set(i, new RawComponent(body, mEncrypted, mSecurityFlags));
+            }
+        }
+        mBodyTruncated = false;
+    }
+
     public List<MessageComponent<?>> getComponents() {
         return mComponents;
     }
@@ -328,6 +362,10 @@ public class CompositeMessage {
         }
 
         byte[] body = c.getBlob(COLUMN_BODY_CONTENT);
+        mBodyLength = c.getLong(COLUMN_BODY_LENGTH);
+        // large bodies are truncated by the list projection
+        // the full body can be loaded later through setFullBody()
+        mBodyTruncated = body != null && body.length < mBodyLength;
 
         // encrypted message - single raw encrypted component
         if (mEncrypted) {
@@ -525,6 +563,19 @@ public class CompositeMessage {
                 MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
     }
 
+    /** Queries all messages in a thread starting from the given message ID (included). */
+    public static void startQueryFrom(AsyncQueryHandler handler, int token, long threadId, long firstId) {
+        Uri uri = ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId)
+            .buildUpon()
+            .appendQueryParameter("first", String.valueOf(firstId))
+            .build();
+
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, "reload", uri,
+                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
     /** A sample text content from class name and mime type. */
     public static String getSampleTextContent(String mime) {
         Class<AttachmentComponent> klass = getSupportingComponent(mime);
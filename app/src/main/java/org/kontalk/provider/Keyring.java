@@ -19,10 +19,18 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
@@ -34,6 +42,7 @@ import android.database.Cursor;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
+import org.kontalk.Log;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
@@ -46,6 +55,7 @@ import org.kontalk.crypto.PersonalKey;
  * @author Daniele Ricci
  */
 public class Keyring {
+    private static final String TAG = Keyring.class.getSimpleName();
 
     /**
      * Special value used in the fingerprint column so the first key that comes
@@ -59,6 +69,19 @@ public class Keyring {
 
     /** Returns a {@link Coder} instance for encrypting data. */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        return getEncryptCoder(server, key, getPublicKeys(context, recipients));
+    }
+
+    /** Returns a {@link Coder} instance for encrypting data with the given recipients keys. */
+    public static Coder getEncryptCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] keys) {
+        return new PGPCoder(server, key, keys);
+    }
+
+    /**
+     * Returns the public keys to be used for encrypting data to the given recipients.
+     * @throws IllegalArgumentException if the public key of a recipient is not available
+     */
+    public static PGPPublicKeyRing[] getPublicKeys(Context context, String[] recipients) {
         // get recipients public keys from users database
         PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
@@ -68,8 +91,7 @@ public class Keyring {
 
             keys[i] = ring;
         }
-
-        return new PGPCoder(server, key, keys);
+        return keys;
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
@@ -116,6 +138,94 @@ public class Keyring {
         }
     }
 
+    /**
+     * Adds/updates a batch of public keys.
+     * Keys are parsed concurrently and written in a single transaction.
+     * @param keys JID-key data map
+     * @param trustedJids users whose key will be trusted blindly (may be null)
+     * @return JID-master key map of the keys that were parsed successfully
+     */
+    public static Map<String, PGPPublicKey> setKeys(Context context, Map<String, byte[]> keys,
+            Set<String> trustedJids) {
+        Map<String, PGPPublicKey> masterKeys = parseMasterKeys(keys);
+        if (masterKeys.isEmpty())
+            return masterKeys;
+
+        Map<String, Integer> autoTrustedLevels = getAutoTrustedLevels(context);
+
+        List<ContentValues> values = new ArrayList<>(masterKeys.size());
+        for (Map.Entry<String, PGPPublicKey> e : masterKeys.entrySet()) {
+            String jid = e.getKey();
+            PGPPublicKey pk = e.getValue();
+
+            ContentValues v = new ContentValues(5);
+            v.put(MyUsers.Keys.JID, jid);
+            v.put(MyUsers.Keys.FINGERPRINT, PGP.getFingerprint(pk));
+            v.put(MyUsers.Keys.PUBLIC_KEY, keys.get(jid));
+            v.put(MyUsers.Keys.TIMESTAMP, pk.getCreationTime().getTime());
+            Integer autoTrustedLevel = autoTrustedLevels.get(jid);
+            if (trustedJids != null && trustedJids.contains(jid)) {
+                v.put(MyUsers.Keys.TRUST_LEVEL, MyUsers.Keys.TRUST_VERIFIED);
+            }
+            else if (autoTrustedLevel != null) {
+                v.put(MyUsers.Keys.TRUST_LEVEL, autoTrustedLevel);
+            }
+            values.add(v);
+        }
+
+        context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI,
+            values.toArray(new ContentValues[values.size()]));
+
+        for (String jid : autoTrustedLevels.keySet()) {
+            if (masterKeys.containsKey(jid)) {
+                // delete the autotrust entry
+                context.getContentResolver().delete(MyUsers.Keys.getUri(jid, VALUE_AUTOTRUST), null, null);
+            }
+        }
+
+        return masterKeys;
+    }
+
+    /** Parses the master keys using all available cores. Invalid keys are skipped. */
+    private static Map<String, PGPPublicKey> parseMasterKeys(Map<String, byte[]> keys) {
+        Map<String, PGPPublicKey> masterKeys = new HashMap<>(keys.size());
+        if (keys.isEmpty())
+            return masterKeys;
+
+        int threads = Math.min(keys.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<PGPPublicKey>> tasks = new HashMap<>(keys.size());
+            for (final Map.Entry<String, byte[]> e : keys.entrySet()) {
+                tasks.put(e.getKey(), executor.submit(new Callable<PGPPublicKey>() {
+                    @Override
+                    public PGPPublicKey call() throws Exception {
+                        return PGP.getMasterKey(e.getValue());
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<PGPPublicKey>> task : tasks.entrySet()) {
+                try {
+                    PGPPublicKey pk = task.getValue().get();
+                    if (pk != null)
+                        masterKeys.put(task.getKey(), pk);
+                }
+                catch (ExecutionException e) {
+                    Log.w(TAG, "unable to parse public key for " + task.getKey(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return masterKeys;
+    }
+
     /** Updates the fingerprint and the date (for fingerprint in presence). */
     public static void setKey(Context context, String jid, String fingerprint, Date date) {
         setKey(context, jid, fingerprint, date, -1);
@@ -220,6 +330,22 @@ public class Keyring {
         return result;
     }
 
+    /** Returns a JID-trust level map of the autotrust entries. */
+    private static Map<String, Integer> getAutoTrustedLevels(Context context) {
+        Map<String, Integer> result = new HashMap<>();
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+            new String[] { MyUsers.Keys.JID, MyUsers.Keys.TRUST_LEVEL },
+            MyUsers.Keys.FINGERPRINT + " = ?",
+            new String[] { VALUE_AUTOTRUST }, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                result.put(c.getString(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return result;
+    }
+
     /** Sets the trusted keys, deleting all previous entries. */
     public static int setTrustedKeys(Context context, Map<String, TrustedFingerprint> trustedKeys) {
         ContentValues[] values = new ContentValues[trustedKeys.size()];
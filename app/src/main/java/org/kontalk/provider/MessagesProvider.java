@@ -19,15 +19,21 @@
 package org.kontalk.provider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -506,6 +512,61 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    /** State of a batch being applied by the current thread. */
+    private static final class Batch {
+        /** Threads to be updated before commit. */
+        final Set<Long> threads = new LinkedHashSet<>();
+        /** Coalesced change notifications. */
+        final Set<Uri> notifications = new LinkedHashSet<>();
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * Applies all operations in a single transaction.
+     * Thread information is updated once per thread and change
+     * notifications are coalesced and sent after commit.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Batch batch = new Batch();
+        mBatch.set(batch);
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+
+            List<Uri> notifications = new ArrayList<>();
+            for (long threadId : batch.threads)
+                updateThreadInfo(db, threadId, notifications);
+            batch.notifications.addAll(notifications);
+
+            db.setTransactionSuccessful();
+            return results;
+        }
+        finally {
+            db.endTransaction();
+            mBatch.remove();
+            notifyChanges(batch.notifications);
+        }
+    }
+
+    private void notifyChanges(Collection<Uri> notifications) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            // will be notified at the end of the batch
+            batch.notifications.addAll(notifications);
+        }
+        else {
+            ContentResolver cr = getContext().getContentResolver();
+            for (Uri nuri : notifications)
+                cr.notifyChange(nuri, null);
+        }
+    }
+
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
@@ -562,6 +623,8 @@ public class MessagesProvider extends ContentProvider {
                 int count = 0;
                 // last ID (scrolling cursor)
                 int lastId = 0;
+                // first ID (reload all messages from this one)
+                long firstId = 0;
 
                 try {
                     lastId = Integer.parseInt(uri.getQueryParameter("last"));
@@ -573,6 +636,11 @@ public class MessagesProvider extends ContentProvider {
                 }
                 catch (Exception ignored) {
                 }
+                try {
+                    firstId = Long.parseLong(uri.getQueryParameter("first"));
+                }
+                catch (Exception ignored) {
+                }
 
                 // setup page if requested
                 if (count > 0) {
@@ -582,6 +650,9 @@ public class MessagesProvider extends ContentProvider {
                 qb.setTables(TABLE_MESSAGES_GROUPS);
                 qb.setProjectionMap(messagesProjectionMap);
                 qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
+                if (firstId > 0) {
+                    qb.appendWhere(" AND " + Messages._ID + ">=" + firstId);
+                }
                 break;
 
             case FULLTEXT_ID:
@@ -769,9 +840,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
     }
 
@@ -1155,11 +1224,16 @@ public class MessagesProvider extends ContentProvider {
                         Cursor c = db.query(TABLE_MESSAGES, projection,
                                 whereBuilder.toString(), msgIdList, null, null, Messages.THREAD_ID);
 
+                        Batch batch = mBatch.get();
                         long oldThreadId = 0;
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
                             if (oldThreadId != threadId) {
-                                updateThreadInfo(db, threadId, notifications);
+                                // threads will be updated once at the end of a batch
+                                if (batch != null)
+                                    batch.threads.add(threadId);
+                                else
+                                    updateThreadInfo(db, threadId, notifications);
                                 oldThreadId = threadId;
                             }
 
@@ -1195,11 +1269,8 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
-                for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
-            }
+            if (notifications != null)
+                notifyChanges(notifications);
         }
     }
 
@@ -1414,9 +1485,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
@@ -1593,6 +1662,10 @@ public class MessagesProvider extends ContentProvider {
         messagesProjectionMap.put(Messages.BODY_MIME, Messages.BODY_MIME);
         messagesProjectionMap.put(Messages.BODY_CONTENT, Messages.BODY_CONTENT);
         messagesProjectionMap.put(Messages.BODY_LENGTH, Messages.BODY_LENGTH);
+        messagesProjectionMap.put(Messages.BODY_CONTENT_PREVIEW, "CASE WHEN " +
+            Messages.BODY_LENGTH + " > " + Messages.BODY_PREVIEW_MAX_LENGTH + " THEN SUBSTR(" +
+            Messages.BODY_CONTENT + ", 1, " + Messages.BODY_PREVIEW_MAX_LENGTH + ") ELSE " +
+            Messages.BODY_CONTENT + " END AS " + Messages.BODY_CONTENT_PREVIEW);
 
         messagesProjectionMap.put(Messages.ATTACHMENT_MIME, Messages.ATTACHMENT_MIME);
         messagesProjectionMap.put(Messages.ATTACHMENT_PREVIEW_PATH, Messages.ATTACHMENT_PREVIEW_PATH);
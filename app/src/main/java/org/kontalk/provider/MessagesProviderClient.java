@@ -19,6 +19,8 @@
 package org.kontalk.provider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import android.content.ContentResolver;
@@ -73,6 +75,20 @@ public class MessagesProviderClient {
         return b;
     }
 
+    /** Loads the body content of a message. */
+    public static byte[] getMessageBody(Context context, long msgId) {
+        byte[] body = null;
+        Cursor c = context.getContentResolver().
+            query(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                new String[] { Messages.BODY_CONTENT }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst())
+                body = c.getBlob(0);
+            c.close();
+        }
+        return body;
+    }
+
     public static Cursor getLatestThreads(Context context, boolean includeGroups, int limit) {
         return context.getContentResolver().query(Threads.CONTENT_URI.buildUpon()
                 .appendQueryParameter("limit", String.valueOf(limit)).build(),
@@ -80,6 +96,22 @@ public class MessagesProviderClient {
             Threads.DEFAULT_SORT_ORDER);
     }
 
+    /** Returns the IDs of the latest incoming messages, newest first. */
+    public static List<String> getLatestIncomingMessageIds(Context context, int limit) {
+        List<String> ids = new ArrayList<>(limit);
+        Cursor c = context.getContentResolver().query(Messages.CONTENT_URI.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(limit)).build(),
+            new String[] { Messages.MESSAGE_ID },
+            Messages.DIRECTION + "=" + Messages.DIRECTION_IN, null,
+            Messages.INVERTED_SORT_ORDER);
+        if (c != null) {
+            while (c.moveToNext())
+                ids.add(c.getString(0));
+            c.close();
+        }
+        return ids;
+    }
+
     /** Inserts a new outgoing text message. */
     public static Uri newOutgoingMessage(Context context, String msgId, String userId,
             String text, boolean encrypted, long inReplyTo) {
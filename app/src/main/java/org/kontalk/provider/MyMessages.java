@@ -109,6 +109,13 @@ public final class MyMessages {
         public static final String BODY_MIME = "body_mime";
         public static final String BODY_CONTENT = "body_content";
         public static final String BODY_LENGTH = "body_length";
+        /**
+         * Body content for list views (query only): it will be truncated to
+         * {@link #BODY_PREVIEW_MAX_LENGTH} bytes if the body is longer.
+         */
+        public static final String BODY_CONTENT_PREVIEW = "body_content_preview";
+        /** Maximum body length returned in {@link #BODY_CONTENT_PREVIEW}. */
+        public static final int BODY_PREVIEW_MAX_LENGTH = 2048;
 
         /** Attachment MIME type. */
         public static final String ATTACHMENT_MIME = "att_mime";
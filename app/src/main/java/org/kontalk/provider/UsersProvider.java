@@ -982,6 +982,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            notifyKeysChanged();
+
         if (rows >= 0)
             return Keys.CONTENT_URI.buildUpon()
                     .appendPath(jid)
@@ -990,28 +993,85 @@ public class UsersProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Inserts or updates a batch of keys in a single transaction.
+     * Existing keys are updated only with the provided values.
+     */
     private int insertKeys(ContentValues[] values) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         int rows = 0;
-        SQLiteStatement stm = db.compileStatement("INSERT OR REPLACE INTO " +
-            TABLE_KEYS + " (" + Keys.JID + ", " + Keys.FINGERPRINT + ") VALUES(?, ?)");
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_KEYS +
+            " (" + Keys.JID + ", " + Keys.FINGERPRINT + ", " + Keys.PUBLIC_KEY + ", " +
+            Keys.TIMESTAMP + ", " + Keys.TRUST_LEVEL + ") VALUES(?, ?, ?, ?, ?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_KEYS + " SET " +
+            Keys.PUBLIC_KEY + " = COALESCE(?, " + Keys.PUBLIC_KEY + "), " +
+            Keys.TIMESTAMP + " = COALESCE(?, " + Keys.TIMESTAMP + "), " +
+            Keys.TRUST_LEVEL + " = COALESCE(?, " + Keys.TRUST_LEVEL + ")" +
+            " WHERE " + Keys.JID + " = ? AND " + Keys.FINGERPRINT + " = ?");
 
-        for (ContentValues v : values) {
-            try {
-                stm.bindString(1, v.getAsString(Keys.JID));
-                stm.bindString(2, v.getAsString(Keys.FINGERPRINT));
-                stm.executeInsert();
-                rows++;
-            }
-            catch (SQLException e) {
-                Log.w(SyncAdapter.TAG, "error inserting trusted key [" + v + "]", e);
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues v : values) {
+                try {
+                    String jid = v.getAsString(Keys.JID);
+                    String fingerprint = v.getAsString(Keys.FINGERPRINT);
+                    byte[] keyData = v.getAsByteArray(Keys.PUBLIC_KEY);
+                    Long timestamp = v.getAsLong(Keys.TIMESTAMP);
+                    Integer trustLevel = v.getAsInteger(Keys.TRUST_LEVEL);
+
+                    insert.bindString(1, jid);
+                    insert.bindString(2, fingerprint);
+                    if (keyData != null)
+                        insert.bindBlob(3, keyData);
+                    else
+                        insert.bindNull(3);
+                    // use current timestamp if the caller didn't provide any
+                    insert.bindLong(4, timestamp != null ? timestamp : System.currentTimeMillis());
+                    insert.bindLong(5, trustLevel != null ? trustLevel : Keys.TRUST_UNKNOWN);
+
+                    if (insert.executeUpdateDelete() == 0) {
+                        // we got a duplicated key, update the requested values
+                        if (keyData != null)
+                            update.bindBlob(1, keyData);
+                        else
+                            update.bindNull(1);
+                        if (timestamp != null)
+                            update.bindLong(2, timestamp);
+                        else
+                            update.bindNull(2);
+                        if (trustLevel != null)
+                            update.bindLong(3, trustLevel);
+                        else
+                            update.bindNull(3);
+                        update.bindString(4, jid);
+                        update.bindString(5, fingerprint);
+                        update.executeUpdateDelete();
+                    }
+                    rows++;
+                }
+                catch (SQLException e) {
+                    Log.w(SyncAdapter.TAG, "error inserting key [" + v + "]", e);
+                }
             }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            insert.close();
+            update.close();
         }
 
+        if (rows > 0)
+            notifyKeysChanged();
         return rows;
     }
 
+    /** Notifies observers (e.g. cached recipient keys) that keys have changed. */
+    private void notifyKeysChanged() {
+        getContext().getContentResolver().notifyChange(Keys.CONTENT_URI, null, false);
+    }
+
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
         int match = sUriMatcher.match(uri);
@@ -1029,7 +1089,10 @@ public class UsersProvider extends ContentProvider {
         selection = DatabaseUtils.concatenateWhere(selection, Keys.JID + "=?");
         selection = DatabaseUtils.concatenateWhere(selection, Keys.FINGERPRINT + "=?");
         selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[] { userId, fingerprint });
-        return db.delete(TABLE_KEYS, selection, selectionArgs);
+        int rows = db.delete(TABLE_KEYS, selection, selectionArgs);
+        if (rows > 0)
+            notifyKeysChanged();
+        return rows;
     }
 
     @Override
@@ -21,6 +21,7 @@ package org.kontalk.service;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import com.instacart.library.truetime.TrueTime;
 
@@ -58,6 +59,12 @@ public class KeyPairGeneratorService extends Service {
      * generator thread has started.
      */
     public static final String ACTION_STARTED = "org.kontalk.keypair.STARTED";
+    /**
+     * Send this intent to start generating a key pair speculatively, e.g.
+     * when the registration screen is about to open. The key pair is kept in
+     * memory for a short time waiting for an {@link #ACTION_GENERATE}.
+     */
+    public static final String ACTION_PREGENERATE = "org.kontalk.keypair.PREGENERATE";
 
     public static final String EXTRA_KEY = "org.kontalk.keypair.KEY";
     public static final String EXTRA_FOREGROUND = "org.kontalk.keypair.FOREGROUND";
@@ -65,18 +72,60 @@ public class KeyPairGeneratorService extends Service {
     private static final String NTP_DEFAULT_SERVER = "time.google.com";
     private static final int NTP_MAX_RETRIES = 3;
 
+    /** How long a speculatively generated key pair is kept waiting to be requested. */
+    private static final long KEY_SLOT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
     private GeneratorThread mThread;
     private volatile PersonalKey mKey;
+    /** True if someone requested the key pair (i.e. not speculative). */
+    private boolean mRequested;
+
+    private Handler mHandler;
+
+    /** Discards an unrequested key pair. */
+    private final Runnable mExpireKey = new Runnable() {
+        @Override
+        public void run() {
+            Log.d("KeyPair", "discarding unused key pair");
+            mKey = null;
+            stopSelf();
+        }
+    };
 
     private LocalBroadcastManager lbm;
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mExpireKey);
+        mKey = null;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (lbm == null)
             lbm = LocalBroadcastManager.getInstance(getApplicationContext());
 
         String action = intent.getAction();
-        if (ACTION_GENERATE.equals(action)) {
+        if (ACTION_PREGENERATE.equals(action)) {
+            // start the keypair generator if not already started
+            if (mThread == null) {
+                mThread = new GeneratorThread(this);
+                mThread.start();
+            }
+        }
+
+        else if (ACTION_GENERATE.equals(action)) {
+            // key pair will not expire now
+            mRequested = true;
+            mHandler.removeCallbacks(mExpireKey);
+
             // start the keypair generator
             if (mThread == null) {
                 if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
@@ -87,14 +136,21 @@ public class KeyPairGeneratorService extends Service {
 
                 broadcastStarted();
             }
+            else if (mKey != null) {
+                broadcastKey();
+            }
             else {
-                if (mKey != null) {
-                    broadcastKey();
-                }
+                // join the speculative generation still running
+                if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
+                    startForeground();
+
+                broadcastStarted();
             }
         }
 
-        return START_REDELIVER_INTENT;
+        // a speculative generation is not worth restarting
+        return ACTION_PREGENERATE.equals(action) ?
+            START_NOT_STICKY : START_REDELIVER_INTENT;
     }
 
     @Override
@@ -135,9 +191,29 @@ public class KeyPairGeneratorService extends Service {
         lbm.sendBroadcast(i);
     }
 
-    private void keypairGenerated(PersonalKey key) {
-        mKey = key;
-        broadcastKey();
+    void keypairGenerated(final PersonalKey key) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mKey = key;
+                broadcastKey();
+
+                // nobody requested the key yet, keep it for a while
+                if (!mRequested)
+                    mHandler.postDelayed(mExpireKey, KEY_SLOT_TIMEOUT);
+            }
+        });
+    }
+
+    /**
+     * Starts generating a key pair speculatively, e.g. when opening the
+     * registration screen: the key pair will probably be ready when the user
+     * has finished typing.
+     */
+    public static void pregenerate(Context context) {
+        Intent i = new Intent(context, KeyPairGeneratorService.class);
+        i.setAction(ACTION_PREGENERATE);
+        context.startService(i);
     }
 
     private static final class GeneratorThread extends Thread {
@@ -167,7 +243,19 @@ public class KeyPairGeneratorService extends Service {
                     // TODO notify user
                 }
 
-                service.stopForeground();
+                // after the key has been delivered on the main thread
+                service.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyPairGeneratorService current = s.get();
+                        if (current != null) {
+                            // generation failed, allow another attempt
+                            if (current.mKey == null)
+                                current.mThread = null;
+                            current.stopForeground();
+                        }
+                    }
+                });
             }
         }
 
@@ -19,12 +19,18 @@
 package org.kontalk.service;
 
 import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
 
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
@@ -39,19 +45,95 @@ import org.kontalk.util.Preferences;
 /**
  * A service to handle background requests to generate thumbnail, compress
  * images, videos and the like.
+ * Requests are processed in parallel by a small pool of workers. Each
+ * prepared media is sent as soon as it's ready, without waiting for the
+ * others. Memory used by full-size bitmaps is bounded by {@link org.kontalk.util.ImagePreparer}.
  * @author Daniele Ricci
  */
-public class MediaService extends IntentService {
+public class MediaService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
     private static final String ACTION_PREPARE_MESSAGE = "org.kontalk.action.PREPARE_MESSAGE";
 
-    public MediaService() {
-        super(MediaService.class.getSimpleName());
+    /** Maximum number of media prepared at the same time. */
+    private static final int MAX_WORKERS = 3;
+    /** Idle workers are terminated after this time (seconds). */
+    private static final int WORKER_KEEP_ALIVE = 10;
+
+    private ThreadPoolExecutor mExecutor;
+
+    /** Number of requests still being processed. */
+    private int mPending;
+    /** Last start ID received, used to stop the service. */
+    private int mLastStartId;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, MediaService.class.getSimpleName() + "-" + (++mCount));
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        int workers = Math.max(1, Math.min(MAX_WORKERS,
+            Runtime.getRuntime().availableProcessors() - 1));
+        mExecutor = new ThreadPoolExecutor(workers, workers,
+            WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        synchronized (this) {
+            mLastStartId = startId;
+            mPending++;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onHandleIntent(intent);
+                }
+                finally {
+                    requestCompleted();
+                }
+            }
+        });
+
+        return START_NOT_STICKY;
+    }
+
+    private synchronized void requestCompleted() {
+        if (--mPending == 0) {
+            // stop only if no other request came in the meantime
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private void onHandleIntent(Intent intent) {
         // crappy firmware - as per docs, intent can't be null in this case
         if (intent == null)
             return;
@@ -73,25 +155,28 @@ public class MediaService extends IntentService {
             long length;
 
             int compress = 0;
+            File compressed = null;
             // FIXME hard-coded to ImageComponent (how about videos?)
             if (ImageComponent.supportsMimeType(mime)) {
                 compress = Preferences.getImageCompression(this);
 
-                // generate thumbnail
+                // generate thumbnail and compressed image with a single decode
                 String filename = ImageComponent.buildMediaFilename(MediaStorage.THUMBNAIL_MIME_NETWORK);
-                previewFile = MediaStorage.cacheThumbnail(this, uri, filename, true);
+                previewFile = MediaStorage.getInternalMediaFile(this, filename);
+                if (compress > 0)
+                    compressed = MediaStorage.getOutgoingPictureFile();
+                MediaStorage.prepareOutgoingImage(this, uri, previewFile, compressed, compress);
             }
 
-            if (compress > 0) {
-                File compressed = MediaStorage.resizeImage(this, uri, compress);
+            if (compressed != null) {
                 length = compressed.length();
                 // use the compressed image from now on
                 uri = Uri.fromFile(compressed);
             }
             else if (media) {
-                File copy = MediaStorage.copyOutgoingMedia(this, uri);
-                length = copy.length();
-                uri = Uri.fromFile(copy);
+                MediaStorage.StagedMedia staged = MediaStorage.copyOutgoingMedia(this, uri);
+                length = staged.length;
+                uri = Uri.fromFile(staged.file);
             }
             else {
                 length = MediaStorage.getLength(this, uri);
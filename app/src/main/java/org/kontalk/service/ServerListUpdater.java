@@ -40,6 +40,7 @@ import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.ServerList;
+import org.kontalk.client.ServerSelector;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.Preferences;
@@ -58,6 +59,7 @@ public class ServerListUpdater extends BroadcastReceiver {
     private static final String TAG = ServerListUpdater.class.getSimpleName();
 
     private static ServerList sCurrentList;
+    private static ServerSelector sServerSelector;
 
     private static DateFormat sTimestampFormat =
         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.US);
@@ -198,6 +200,13 @@ public class ServerListUpdater extends BroadcastReceiver {
         return new File(context.getCacheDir(), "serverlist.properties");
     }
 
+    /**
+     * The path to the locally cached server statistics.
+     */
+    private static File getServerStatsFile(Context context) {
+        return new File(context.getCacheDir(), "serverstats.properties");
+    }
+
     private static ServerList parseList(InputStream in) throws IOException {
         Properties prop = new Properties();
         prop.load(in);
@@ -278,6 +287,60 @@ public class ServerListUpdater extends BroadcastReceiver {
         return sCurrentList;
     }
 
+    /**
+     * Returns (and loads if necessary) the server selector holding
+     * statistics about previous connections.
+     */
+    public static synchronized ServerSelector getServerSelector(Context context) {
+        if (sServerSelector != null)
+            return sServerSelector;
+
+        sServerSelector = new ServerSelector();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(getServerStatsFile(context));
+            Properties prop = new Properties();
+            prop.load(in);
+            sServerSelector.load(prop);
+        }
+        catch (IOException e) {
+            // no statistics yet
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+
+        return sServerSelector;
+    }
+
+    /** Records a successful connection to a server. */
+    public static void serverConnected(Context context, EndpointServer server, long connectTime, long tlsTime) {
+        ServerSelector selector = getServerSelector(context);
+        selector.connected(server, connectTime, tlsTime);
+        saveServerStats(context, selector);
+    }
+
+    /** Records a failed connection to a server. */
+    public static void serverFailed(Context context, EndpointServer server) {
+        ServerSelector selector = getServerSelector(context);
+        selector.failed(server);
+        saveServerStats(context, selector);
+    }
+
+    private static void saveServerStats(Context context, ServerSelector selector) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(getServerStatsFile(context));
+            selector.store().store(out, null);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to save server statistics", e);
+        }
+        finally {
+            SystemUtils.closeStream(out);
+        }
+    }
+
     public interface UpdaterListener {
         /**
          * Called if either the cached list or the built-in list cannot be loaded.
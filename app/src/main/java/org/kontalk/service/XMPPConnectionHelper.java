@@ -50,6 +50,7 @@ import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.PersonalKeyCache;
 import org.kontalk.crypto.X509Bridge;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.service.msgcenter.PGPKeyPairRingProvider;
@@ -194,6 +195,8 @@ public class XMPPConnectionHelper extends Thread {
                     trustStore, token);
             }
 
+            mConn.setConnectionRacing(Preferences.getConnectionRacing(mContext));
+
             // apply packet timeout based on retry count
             mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
 
@@ -202,7 +205,21 @@ public class XMPPConnectionHelper extends Thread {
         }
 
         // connect
-        mConn.connect();
+        try {
+            mConn.connect();
+        }
+        catch (InterruptedException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // connection failed (login errors are not accounted to the server)
+            if (mConnecting)
+                ServerListUpdater.serverFailed(mContext, mServer);
+            throw e;
+        }
+
+        ServerListUpdater.serverConnected(mContext, mServer,
+            mConn.getTcpConnectTime(), mConn.getTlsHandshakeTime());
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -226,11 +243,17 @@ public class XMPPConnectionHelper extends Thread {
                     String passphrase = ((Kontalk) mContext.getApplicationContext()).getCachedPassphrase();
 
                     try {
-                        X509Certificate bridgeCert = X509Bridge.createCertificate(keyring.publicKey,
-                            keyring.secretKey.getSecretKey(), passphrase);
-
-                        key = PersonalKey.load(keyring.secretKey, keyring.publicKey,
-                            passphrase, bridgeCert);
+                        byte[] binding = PersonalKeyCache.binding(keyring.secretKey.getEncoded(),
+                            keyring.publicKey.getEncoded(), passphrase != null ? passphrase.getBytes() : null);
+                        key = PersonalKeyCache.load(mContext, PersonalKeyCache.SLOT_UPGRADE, binding);
+                        if (key == null) {
+                            X509Certificate bridgeCert = X509Bridge.createCertificate(keyring.publicKey,
+                                keyring.secretKey.getSecretKey(), passphrase);
+
+                            key = PersonalKey.load(keyring.secretKey, keyring.publicKey,
+                                passphrase, bridgeCert);
+                            PersonalKeyCache.store(mContext, PersonalKeyCache.SLOT_UPGRADE, binding, key);
+                        }
                     }
                     catch (Exception e) {
                         // this will go crap...
@@ -18,45 +18,27 @@
 
 package org.kontalk.service.msgcenter;
 
-import java.util.logging.Logger;
-
 import org.jivesoftware.smack.Manager;
 import org.jivesoftware.smack.XMPPConnection;
 
 
 /**
  * An adaptive ping manager.
+ * The ping interval is learned per network by a {@link PingIntervalModel}.
  * @author Daniele Ricci
  */
 public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
-    private static final Logger LOGGER = Logger.getLogger(AbstractAdaptiveServerPingManager.class.getName());
-
     protected boolean mEnabled = true;
 
-    // All values are in milliseconds.
-
     /**
-     * Current ping interval.
+     * Current ping interval in milliseconds.
      */
     protected long mInterval;
     /**
-     * Timestamp of last ping success.
-     */
-    protected long mLastSuccess;
-    /**
-     * Last successful ping interval.
+     * Learned ping interval for the current network.
      */
-    protected long mLastSuccessInterval;
-    /**
-     * Interval for the next increase.
-     */
-    protected long mNextIncrease;
-    /**
-     * Successful ping streak. Used for computing when the next increase attempt
-     * will be made.
-     */
-    protected long mPingStreak;
+    protected PingIntervalModel mModel;
 
     protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
         super(connection);
@@ -76,73 +58,30 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     /**
      * Called by the ping failed listener.
-     * It will half the interval for the next alarm.
+     * The model will fall back to the last working interval (or half the
+     * current one) for the next alarm.
      */
     public void pingFailed() {
-        long interval;
-
-        // ping has failed, reset ping streak
-        mPingStreak = 0;
-
-        if (mLastSuccessInterval > 0) {
-            // we were trying an increase, go back to previous value
-            interval = mLastSuccessInterval;
-            // better use the previous value for a longer time :)
-            setNextIncreaseInterval((long) (mNextIncrease * 1.5));
-        }
-        else {
-            // half interval
-            interval = mInterval / 2;
-        }
-        setupPing(interval);
+        setupPing(mModel.pingFailed());
+        onModelChanged();
     }
 
     /**
      * Called when a ping has succeeded.
-     * In order to avoid a too much optimistic approach, we wait for at least
-     * the supposed ping interval to pass before incrementing back the interval
-     * for the next ping.
+     * The model will eventually probe a longer interval for the next ping.
+     * In order to avoid a too much optimistic approach, the first ping after
+     * connecting is not used to probe.
      */
     public void pingSuccess() {
-        long nextAlarm = mInterval;
-        long now = getElapsedRealtime();
-
-        // we got a successful ping, increase ping streak
-        mPingStreak += mInterval;
-
-        if (mLastSuccessInterval > 0) {
-            // interval increase was successful, reset backoff
-            setNextIncreaseInterval(mInterval);
-
-            // interval increase was successful
-        }
-        // try an increase only if we previously had a successful ping
-        else if (mLastSuccess > 0) {
-            if (mPingStreak >= mNextIncrease) {
-                // we are trying an increase, store the last successful interval
-                mLastSuccessInterval = mInterval;
-
-                nextAlarm = (long) (mInterval * 1.5);
-            }
-
-            // do not increase interval for now
-        }
-
-        // remember last success
-        mLastSuccess = now;
-
-        setupPing(nextAlarm);
+        setupPing(mModel.pingSuccess());
+        onModelChanged();
     }
 
     protected abstract void setupPing(long intervalMillis);
 
-    protected abstract long getElapsedRealtime();
-
-    protected void setNextIncreaseInterval(long interval) {
-        // reset last successful interval
-        mLastSuccessInterval = 0;
-        // set and save next increase
-        mNextIncrease = interval;
-    }
+    /**
+     * Called when the learned model has been updated and should be saved.
+     */
+    protected abstract void onModelChanged();
 
 }
@@ -94,22 +94,30 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     private Context mContext;
     private PendingIntent mPendingIntent;
 
+    /** Identity of the network the current model was learned on. */
+    private String mNetworkId;
+
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            String networkId = SystemUtils.getCurrentNetworkIdentity(mContext);
+            if (mModel == null || networkId == null || !networkId.equals(mNetworkId)) {
+                // restore learned model for this network
+                mNetworkId = networkId;
+                mModel = PingIntervalModel.restore(networkId != null ?
+                        Preferences.getPingIntervalModel(networkId) : null,
+                    MIN_ALARM_INTERVAL, AlarmManager.INTERVAL_HALF_HOUR,
+                    AlarmManager.INTERVAL_HALF_HOUR);
+                LOGGER.log(Level.INFO, "Restored ping model for network " + networkId +
+                    ": " + mModel.serialize());
+            }
+            mModel.reset();
+            setupPing(mModel.getInterval());
         }
     }
 
     @Override
     public void onConnectionCompleted() {
         setupOnConnectionCompleted();
-        mPingStreak = 0;
     }
 
     @Override
@@ -158,11 +166,6 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         }
     }
 
-    @Override
-    protected long getElapsedRealtime() {
-        return SystemClock.elapsedRealtime();
-    }
-
     @Override
     protected synchronized void setupPing(long intervalMillis) {
         if (mPendingIntent != null) {
@@ -178,9 +181,6 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
                 mInterval = MIN_ALARM_INTERVAL;
             }
 
-            // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
-
             // remove difference from last received stanza
             long interval = mInterval;
             XMPPConnection connection = connection();
@@ -210,9 +210,10 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     }
 
     @Override
-    protected void setNextIncreaseInterval(long interval) {
-        super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+    protected void onModelChanged() {
+        // save learned model for the network it was learned on
+        if (mNetworkId != null && mModel != null)
+            Preferences.setPingIntervalModel(mNetworkId, mModel.serialize());
     }
 
     public static void onConnected() {
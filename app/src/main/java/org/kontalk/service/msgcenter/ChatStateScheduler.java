@@ -0,0 +1,190 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Debounces and coalesces standalone chat state notifications.
+ * State changes are held back for a short time so that only the last state
+ * of a burst is sent, states equal to the last one sent are suppressed and
+ * nothing is sent while the outgoing queue is congested. States waiting for
+ * too long are dropped since they are not meaningful anymore.
+ * The scheduler is not thread safe and it doesn't keep time by itself: the
+ * caller must call {@link #flush} after the returned delays.
+ * @author Daniele Ricci
+ */
+class ChatStateScheduler<T> {
+
+    /** Time a state change is held back waiting for more changes. */
+    static final long DEBOUNCE_DELAY = 300;
+    /** Pending states older than this are dropped. */
+    static final long MAX_STATE_AGE = 5000;
+    /** A state equal to the last one sent is sent again only after this time. */
+    static final long REPEAT_INTERVAL = 30000;
+    /** Outgoing queue size from which the queue is considered congested. */
+    static final int CONGESTION_THRESHOLD = 10;
+    /** Retry interval while the outgoing queue is congested. */
+    static final long CONGESTION_RETRY = 250;
+
+    interface Sender<T> {
+        /** Returns the number of stanzas waiting to be sent. */
+        int getOutgoingQueueSize();
+
+        void sendChatState(T data);
+    }
+
+    private static final class PendingState<T> {
+        final String state;
+        final T data;
+        final long timestamp;
+
+        PendingState(String state, T data, long timestamp) {
+            this.state = state;
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class SentState {
+        final String state;
+        final long timestamp;
+
+        SentState(String state, long timestamp) {
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final Sender<T> mSender;
+    private final Map<String, PendingState<T>> mPending = new LinkedHashMap<>();
+    private final Map<String, SentState> mSent = new HashMap<>();
+
+    private long mSentCount;
+    private long mSuppressed;
+    private long mDropped;
+
+    ChatStateScheduler(Sender<T> sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Schedules a chat state to be sent.
+     * @param conversation the conversation the state refers to
+     * @param state the chat state
+     * @param data the data to be given to the sender
+     * @return delay before the next call to {@link #flush}, -1 if not needed
+     */
+    public long schedule(String conversation, String state, T data, long now) {
+        SentState sent = mSent.get(conversation);
+        if (sent != null && sent.state.equals(state) && now - sent.timestamp < REPEAT_INTERVAL) {
+            // redundant state (any pending change was reverted)
+            if (mPending.remove(conversation) != null)
+                mSuppressed++;
+            mSuppressed++;
+        }
+        else {
+            // replace any pending state
+            if (mPending.put(conversation, new PendingState<>(state, data, now)) != null)
+                mSuppressed++;
+        }
+        return nextFlush(now);
+    }
+
+    /**
+     * Records a chat state sent along with a message, discarding any pending
+     * state for the conversation.
+     */
+    public void stateSent(String conversation, String state, long now) {
+        mPending.remove(conversation);
+        mSent.put(conversation, new SentState(state, now));
+    }
+
+    /**
+     * Sends pending chat states that are due.
+     * @return delay before the next call, -1 if nothing is pending
+     */
+    public long flush(long now) {
+        boolean congested = isCongested();
+        Iterator<Map.Entry<String, PendingState<T>>> iter = mPending.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, PendingState<T>> e = iter.next();
+            PendingState<T> pending = e.getValue();
+            long age = now - pending.timestamp;
+            if (age > MAX_STATE_AGE) {
+                iter.remove();
+                mDropped++;
+            }
+            else if (age >= DEBOUNCE_DELAY && !congested) {
+                iter.remove();
+                mSent.put(e.getKey(), new SentState(pending.state, now));
+                mSentCount++;
+                mSender.sendChatState(pending.data);
+            }
+        }
+        return nextFlush(now);
+    }
+
+    /** Discards all pending and sent states (e.g. on disconnection). */
+    public void clear() {
+        mPending.clear();
+        mSent.clear();
+    }
+
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /** Number of redundant or coalesced states that were not sent. */
+    public long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    /** Number of states dropped because they were too old. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    private boolean isCongested() {
+        return mSender.getOutgoingQueueSize() >= CONGESTION_THRESHOLD;
+    }
+
+    private long nextFlush(long now) {
+        if (mPending.isEmpty())
+            return -1;
+
+        long delay = Long.MAX_VALUE;
+        for (PendingState<T> pending : mPending.values())
+            delay = Math.min(delay, pending.timestamp + DEBOUNCE_DELAY - now);
+
+        if (delay <= 0)
+            delay = isCongested() ? CONGESTION_RETRY : 0;
+        return delay;
+    }
+
+}
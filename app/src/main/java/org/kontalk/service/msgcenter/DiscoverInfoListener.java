@@ -26,6 +26,7 @@ import org.jivesoftware.smack.filter.StanzaIdFilter;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jivesoftware.smackx.disco.packet.DiscoverItems;
+import org.jxmpp.jid.BareJid;
 
 import org.kontalk.Log;
 import org.kontalk.client.EndpointServer;
@@ -83,9 +84,12 @@ class DiscoverInfoListener extends MessageCenterPacketListener {
              */
             else if (HTTPFileUpload.NAMESPACE.equals(feat.getVar())) {
                 Log.d(MessageCenterService.TAG, "got upload service: " + packet.getFrom());
-                addUploadService(new HTTPFileUploadService(conn, packet.getFrom().asBareJid()), 0);
-                // resend pending messages
-                resendPendingMessages(true, false);
+                BareJid service = packet.getFrom().asBareJid();
+                cacheUploadService(service.toString());
+                if (addUploadService(new HTTPFileUploadService(conn, service), 0)) {
+                    // resend pending messages
+                    resendPendingMessages(true, false);
+                }
             }
         }
     }
@@ -18,6 +18,7 @@
 
 package org.kontalk.service.msgcenter;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.jivesoftware.smack.XMPPConnection;
@@ -47,6 +48,15 @@ class DiscoverItemsListener extends MessageCenterPacketListener {
 
         DiscoverItems query = (DiscoverItems) packet;
         List<DiscoverItems.Item> items = query.getItems();
+
+        // drop cached services that are not available anymore
+        List<String> entities = new ArrayList<>(items.size() + 1);
+        entities.add(getServer().getNetwork());
+        for (DiscoverItems.Item item : items) {
+            entities.add(item.getEntityID().toString());
+        }
+        retainUploadServices(entities);
+
         for (DiscoverItems.Item item : items) {
             DiscoverInfo info = new DiscoverInfo();
             info.setTo(item.getEntityID());
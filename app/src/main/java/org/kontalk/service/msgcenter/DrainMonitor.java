@@ -0,0 +1,106 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Decides when a push-triggered session has received everything the server
+ * was holding for us. Offline messages are delivered right after the initial
+ * presence and a ping sent after login is answered only after them: once the
+ * reply has arrived, incoming messages have been committed and the stream has
+ * been quiet for a while, the session can be closed.
+ * @author Daniele Ricci
+ */
+class DrainMonitor {
+
+    /** How long the stream must be quiet after the ping reply. */
+    static final long QUIET_PERIOD = 1500;
+    /** Maximum time a drain session is allowed to keep the device awake. */
+    static final long MAX_DRAIN_TIME = 30000;
+    /** Polling interval while waiting for the server or for pending work. */
+    static final long CHECK_INTERVAL = 250;
+
+    private final long mStartTime;
+    private final long mQuietPeriod;
+    private final long mMaxTime;
+
+    private boolean mServerReplied;
+    private boolean mTimedOut;
+    private long mEndTime;
+
+    DrainMonitor(long now) {
+        this(now, QUIET_PERIOD, MAX_DRAIN_TIME);
+    }
+
+    DrainMonitor(long now, long quietPeriod, long maxTime) {
+        mStartTime = now;
+        mQuietPeriod = quietPeriod;
+        mMaxTime = maxTime;
+    }
+
+    /** Called when the server replied to the ping sent after login. */
+    public synchronized void serverReplied() {
+        mServerReplied = true;
+    }
+
+    /**
+     * Checks if draining is complete.
+     * @param now current time
+     * @param lastStanza time the last stanza was received
+     * @param pendingWork true if incoming messages are still being processed
+     * @return 0 if draining is complete, otherwise the delay before the next check
+     */
+    public synchronized long check(long now, long lastStanza, boolean pendingWork) {
+        if (mEndTime > 0)
+            return 0;
+
+        long remaining = mStartTime + mMaxTime - now;
+        if (remaining <= 0) {
+            mTimedOut = true;
+            mEndTime = now;
+            return 0;
+        }
+
+        long delay;
+        if (mServerReplied && !pendingWork) {
+            long quiet = now - lastStanza;
+            if (quiet >= mQuietPeriod) {
+                mEndTime = now;
+                return 0;
+            }
+            delay = mQuietPeriod - quiet;
+        }
+        else {
+            delay = CHECK_INTERVAL;
+        }
+
+        return Math.min(delay, remaining);
+    }
+
+    public synchronized boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    /** Returns how long the session has been draining. */
+    public synchronized long getAwakeTime() {
+        return mEndTime > 0 ? mEndTime - mStartTime : 0;
+    }
+
+}
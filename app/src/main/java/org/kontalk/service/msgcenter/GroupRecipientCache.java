@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.content.Context;
+
+import org.kontalk.provider.Keyring;
+
+
+/**
+ * Resolved recipients of group messages, cached by group JID.
+ * Holds the public keys and the authorization state of the members so that
+ * sending a message to a group doesn't load and parse every member's key.
+ * An entry is replaced when the members change; keys and authorization
+ * state are invalidated on key and roster changes.
+ * @author Daniele Ricci
+ */
+class GroupRecipientCache {
+
+    private static final class Entry {
+        final Set<String> members;
+        PGPPublicKeyRing[] keys;
+        Boolean authorized;
+
+        Entry(String[] members) {
+            this.members = new HashSet<>(Arrays.asList(members));
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /** Incremented when keys are invalidated, to discard keys being loaded. */
+    private int mKeysGeneration;
+
+    private Entry getEntry(String groupJid, String[] members) {
+        Entry entry = mEntries.get(groupJid);
+        if (entry == null || entry.members.size() != members.length ||
+                !entry.members.containsAll(Arrays.asList(members))) {
+            entry = new Entry(members);
+            mEntries.put(groupJid, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the public keys of the given group members.
+     * @throws IllegalArgumentException if a public key is not available
+     */
+    public PGPPublicKeyRing[] getPublicKeys(Context context, String groupJid, String[] members) {
+        Entry entry;
+        int generation;
+        synchronized (this) {
+            entry = getEntry(groupJid, members);
+            if (entry.keys != null)
+                return entry.keys;
+            generation = mKeysGeneration;
+        }
+
+        PGPPublicKeyRing[] keys = Keyring.getPublicKeys(context, members);
+
+        synchronized (this) {
+            if (generation == mKeysGeneration && mEntries.get(groupJid) == entry)
+                entry.keys = keys;
+        }
+        return keys;
+    }
+
+    /** Returns true if we can send messages to all the given group members, null if unknown. */
+    public synchronized Boolean isAuthorized(String groupJid, String[] members) {
+        return getEntry(groupJid, members).authorized;
+    }
+
+    public synchronized void setAuthorized(String groupJid, String[] members, boolean authorized) {
+        getEntry(groupJid, members).authorized = authorized;
+    }
+
+    /** Invalidates all cached data for a group (e.g. on membership changes). */
+    public synchronized void invalidate(String groupJid) {
+        mEntries.remove(groupJid);
+    }
+
+    /** Invalidates cached public keys of all groups. */
+    public synchronized void invalidateKeys() {
+        mKeysGeneration++;
+        for (Entry entry : mEntries.values())
+            entry.keys = null;
+    }
+
+    /** Invalidates cached authorization state of all groups. */
+    public synchronized void invalidateAuthorization() {
+        for (Entry entry : mEntries.values())
+            entry.authorized = null;
+    }
+
+}
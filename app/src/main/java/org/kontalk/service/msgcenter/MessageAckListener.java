@@ -22,8 +22,6 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 
-import org.kontalk.provider.MessagesProviderClient.MessageUpdater;
-import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.util.WakefulHashSet;
 
 
@@ -33,9 +31,6 @@ import org.kontalk.util.WakefulHashSet;
  */
 class MessageAckListener extends MessageCenterPacketListener {
 
-    private static final String SELECTION_SENT_EXCLUDE =
-        Messages.STATUS + " NOT IN (" + Messages.STATUS_RECEIVED + "," + Messages.STATUS_NOTDELIVERED + ")";
-
     private final long mDatabaseId;
 
     public MessageAckListener(MessageCenterService instance, long databaseId) {
@@ -43,32 +38,31 @@ class MessageAckListener extends MessageCenterPacketListener {
         mDatabaseId = databaseId;
     }
 
+    public long getDatabaseId() {
+        return mDatabaseId;
+    }
+
     @Override
     public void processStanza(Stanza packet) {
         // stanzas coming here are always messages
 
         WakefulHashSet<Long> waitingReceipt = getWaitingReceiptList();
+        MessageStatusWriter statusWriter = getStatusWriter();
+        // acks might arrive after the service has been torn down
+        if (waitingReceipt == null || statusWriter == null)
+            return;
 
         synchronized (waitingReceipt) {
-            long now = System.currentTimeMillis();
-
             DeliveryReceipt receipt = DeliveryReceipt.from((Message) packet);
             if (receipt != null) {
                 // ack received for outgoing delivery receipt
                 // mark message as confirmed
-                MessageUpdater.forMessage(getContext(), mDatabaseId)
-                    .setStatus(Messages.STATUS_CONFIRMED)
-                    .commit();
+                statusWriter.confirmed(mDatabaseId);
             }
             else {
                 // we have a message awaiting ack from server
-                MessageUpdater.forMessage(getContext(), mDatabaseId)
-                    .setStatus(Messages.STATUS_SENT, now)
-                    .setServerTimestamp(now)
-                    .notifyOutgoing(packet.getTo().asBareJid().toString())
-                    // this will handle receipts that came before the message was acked by the server
-                    .appendWhere(SELECTION_SENT_EXCLUDE)
-                    .commit();
+                statusWriter.sent(mDatabaseId, System.currentTimeMillis(),
+                    packet.getTo().asBareJid().toString());
             }
 
             // remove the packet from the waiting list
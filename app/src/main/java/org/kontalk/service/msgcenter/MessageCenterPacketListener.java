@@ -19,6 +19,7 @@
 package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.packet.Message;
@@ -137,16 +138,26 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return instance != null && instance.sendMessage(message, databaseId);
     }
 
-    protected void addUploadService(IUploadService service) {
+    protected boolean addUploadService(IUploadService service) {
+        MessageCenterService instance = mInstance.get();
+        return instance != null && instance.addUploadService(service);
+    }
+
+    protected boolean addUploadService(IUploadService service, int priority) {
+        MessageCenterService instance = mInstance.get();
+        return instance != null && instance.addUploadService(service, priority);
+    }
+
+    protected void cacheUploadService(String jid) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            instance.addUploadService(service);
+            instance.cacheUploadService(jid);
     }
 
-    protected void addUploadService(IUploadService service, int priority) {
+    protected void retainUploadServices(Collection<String> entities) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            instance.addUploadService(service, priority);
+            instance.retainUploadServices(entities);
     }
 
     protected void resendPendingMessages(final boolean retrying, final boolean forcePending) {
@@ -204,6 +215,21 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return (instance != null) ? instance.mWaitingReceipt : null;
     }
 
+    protected MessageStatusWriter getStatusWriter() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mStatusWriter : null;
+    }
+
+    protected OrderedWorkQueue getIncomingQueue() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mIncomingQueue : null;
+    }
+
+    protected MessageIdCache getIncomingIds() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mIncomingIds : null;
+    }
+
     protected Uri incoming(CompositeMessage msg) {
         Context context = getContext();
         return (context != null) ? Kontalk
@@ -33,7 +33,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -91,6 +93,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -125,6 +128,7 @@ import org.kontalk.client.PushRegistration;
 import org.kontalk.client.RosterMatch;
 import org.kontalk.client.ServerlistCommand;
 import org.kontalk.client.SmackInitializer;
+import org.kontalk.client.StreamManagementState;
 import org.kontalk.client.UserLocation;
 import org.kontalk.client.VCard4;
 import org.kontalk.crypto.Coder;
@@ -158,6 +162,7 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.service.msgcenter.group.PartCommand;
 import org.kontalk.service.msgcenter.group.SetSubjectCommand;
 import org.kontalk.ui.MessagingNotification;
+import org.kontalk.upload.HTTPFileUploadService;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
@@ -202,6 +207,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String ACTION_RELEASE = "org.kontalk.action.RELEASE";
     public static final String ACTION_RESTART = "org.kontalk.action.RESTART";
     public static final String ACTION_TEST = "org.kontalk.action.TEST";
+    public static final String ACTION_DRAIN = "org.kontalk.action.DRAIN";
     public static final String ACTION_MESSAGE = "org.kontalk.action.MESSAGE";
     public static final String ACTION_PUSH_START = "org.kontalk.push.START";
     public static final String ACTION_PUSH_STOP = "org.kontalk.push.STOP";
@@ -430,6 +436,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** How long to retain the wakelock to wait for incoming messages. */
     private static final int WAIT_FOR_MESSAGES_DELAY = 5000;
 
+    /** Maximum number of incoming messages being decrypted at the same time. */
+    private static final int MAX_INCOMING_PENDING = 32;
+
     private static final String[] RESEND_PROJECTION = new String[] {
         Messages._ID,
         Messages.THREAD_ID,
@@ -508,6 +517,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      */
     List<IUploadService> mUploadServices;
 
+    /**
+     * Cached service discovery data for the current server.
+     */
+    private ServiceDiscoveryCache mDiscoveryCache;
+
     /**
      * Roster store.
      */
@@ -545,6 +559,70 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * Messages waiting for server ack (type: internalStorageId).
      */
     WakefulHashSet<Long> mWaitingReceipt;
+    /** Batched writer for message status updates. */
+    MessageStatusWriter mStatusWriter;
+    /** Parallel decryption of incoming messages. */
+    OrderedWorkQueue mIncomingQueue;
+    /** Recently received message IDs, for dropping duplicates. */
+    MessageIdCache mIncomingIds;
+    /** Resolved group recipients (keys and authorization). */
+    final GroupRecipientCache mGroupRecipients = new GroupRecipientCache();
+    /** Messages held while waiting for an ack on a stream to be resumed. */
+    private final PendingAckHolds mPendingAckHolds = new PendingAckHolds(
+        new PendingAckHolds.Holder() {
+            @Override
+            public void hold(long databaseId) {
+                mIdleHandler.hold(false);
+            }
+
+            @Override
+            public void release(long databaseId) {
+                mWaitingReceipt.remove(databaseId);
+                mIdleHandler.release();
+            }
+        });
+
+    /** Standalone chat states waiting to be sent. */
+    private final ChatStateScheduler<Bundle> mChatStates = new ChatStateScheduler<>(
+        new ChatStateScheduler.Sender<Bundle>() {
+            @Override
+            public int getOutgoingQueueSize() {
+                final KontalkConnection conn = mConnection;
+                return conn != null ? conn.getOutgoingQueueSize() : 0;
+            }
+
+            @Override
+            public void sendChatState(Bundle data) {
+                if (isConnected())
+                    sendMessage(data);
+            }
+        });
+
+    private final Runnable mChatStateFlush = new Runnable() {
+        @Override
+        public void run() {
+            scheduleChatStates(mChatStates.flush(System.currentTimeMillis()));
+        }
+    };
+
+    private final ContentObserver mKeysObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mGroupRecipients.invalidateKeys();
+        }
+    };
+
+    /** True if the current session was started only to drain offline messages. */
+    private boolean mDrainMode;
+    /** Monitors the drain session once authenticated. */
+    private DrainMonitor mDrainMonitor;
+
+    private final Runnable mDrainCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkDrain();
+        }
+    };
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -811,6 +889,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // also used for keeping the device on while waiting for message delivery
         mWaitingReceipt = new WakefulHashSet<>(10, this, PowerManager
             .PARTIAL_WAKE_LOCK, Kontalk.TAG + "-SEND");
+        mStatusWriter = new MessageStatusWriter(this);
+        mIncomingQueue = new OrderedWorkQueue("IncomingMessages",
+            OrderedWorkQueue.defaultWorkers(), MAX_INCOMING_PENDING);
+        getContentResolver().registerContentObserver(MyUsers.Keys.CONTENT_URI, true, mKeysObserver);
+        mIncomingIds = new MessageIdCache(MessageIdCache.DEFAULT_CAPACITY);
+        final MessageIdCache incomingIds = mIncomingIds;
+        Async.go(new Runnable() {
+            @Override
+            public void run() {
+                incomingIds.warmUp(MessagesProviderClient
+                    .getLatestIncomingMessageIds(MessageCenterService.this,
+                        MessageIdCache.DEFAULT_CAPACITY));
+            }
+        });
 
         // create the global wake locks
         mWakeLock = SystemUtils.createPartialWakeLock(this, Kontalk.TAG + "-Connect", false);
@@ -965,9 +1057,25 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         quit(false);
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
-        // destroy roster store
-        mRosterStore.onDestroy();
-        mRosterStore = null;
+        getContentResolver().unregisterContentObserver(mKeysObserver);
+        // messages still being decrypted will be committed in the background,
+        // what they depend on is released only afterwards
+        final SQLiteRosterStore rosterStore = mRosterStore;
+        final MessageStatusWriter statusWriter = mStatusWriter;
+        mIncomingQueue.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "incoming message IDs: " + mIncomingIds);
+                mIncomingIds = null;
+                // destroy roster store
+                mRosterStore = null;
+                rosterStore.onDestroy();
+                // write any pending status update
+                mStatusWriter = null;
+                statusWriter.quit();
+            }
+        });
+        mIncomingQueue = null;
         // unregister screen off listener for manual inactivation
         unregisterInactivity();
 
@@ -990,6 +1098,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void quit(boolean restarting) {
+        // a restarted session is a full one
+        endDrain();
+
+        // chat states are not meaningful anymore
+        if (mHandler != null)
+            mHandler.removeCallbacks(mChatStateFlush);
+        mChatStates.clear();
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -1038,8 +1154,15 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             PingManager.getInstanceFor(mConnection)
                 .unregisterPingFailedListener(mPingFailedListener);
             mPingFailedListener = null;
+            // keep the stream resumable if requested
+            boolean resumable = Preferences.getStreamResumption(this) &&
+                mConnection.isSmEnabled() && mConnection.isSmResumptionPossible();
+            // restoring the stream state will wait for it to be saved
+            if (resumable)
+                StreamStateStore.beginSave();
             // this is because of NetworkOnMainThreadException
-            DisconnectThread disconnectThread = new DisconnectThread(mConnection);
+            DisconnectThread disconnectThread = new DisconnectThread(mConnection,
+                resumable ? getApplicationContext() : null);
             disconnectThread.start();
             disconnectThread.joinTimeout(500);
 
@@ -1090,13 +1213,28 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     private static final class DisconnectThread extends Thread {
         private final KontalkConnection mConn;
+        /** If not null, the stream will be kept resumable and its state saved. */
+        private final Context mResumeContext;
 
-        public DisconnectThread(KontalkConnection conn) {
+        public DisconnectThread(KontalkConnection conn, Context resumeContext) {
             mConn = conn;
+            mResumeContext = resumeContext;
         }
 
         @Override
         public void run() {
+            if (mResumeContext != null) {
+                try {
+                    // do not close the stream so the server will keep the session
+                    mConn.instantShutdown();
+                }
+                finally {
+                    // a new connection will wait for this
+                    StreamStateStore.save(mResumeContext, mConn);
+                }
+                return;
+            }
+
             try {
                 mConn.disconnect();
             }
@@ -1175,6 +1313,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     doConnect = handleTest(canConnect);
                     break;
 
+                case ACTION_DRAIN:
+                    doConnect = handleDrain(canConnect);
+                    break;
+
                 case ACTION_PING:
                     doConnect = handlePing(canConnect);
                     break;
@@ -1382,6 +1524,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    @CommandHandler(name = ACTION_DRAIN)
+    private boolean handleDrain(boolean canConnect) {
+        if (isConnected() || isConnecting() || mIdleHandler.isHeld()) {
+            // a full session is running or needed anyway
+            return handleTest(canConnect);
+        }
+
+        // connect just to receive offline messages
+        mDrainMode = canConnect;
+        return canConnect;
+    }
+
     @CommandHandler(name = ACTION_PING)
     private boolean handlePing(boolean canConnect) {
         if (isConnected()) {
@@ -1427,11 +1581,40 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @CommandHandler(name = ACTION_MESSAGE)
     private boolean handleMessage(Intent intent, boolean canConnect) {
-        if (canConnect && isConnected())
-            sendMessage(intent.getExtras());
+        if (canConnect && isConnected()) {
+            Bundle data = intent.getExtras();
+            String chatState = data.getString(EXTRA_CHAT_STATE);
+            String conversation = getConversation(data);
+            if (chatState != null && conversation != null) {
+                long now = System.currentTimeMillis();
+                if (data.getBoolean("org.kontalk.message.standalone", false)) {
+                    // typing notifications are debounced and coalesced
+                    scheduleChatStates(mChatStates.schedule(conversation, chatState, data, now));
+                    return false;
+                }
+                // chat state will be sent along with the message
+                mChatStates.stateSent(conversation, chatState, now);
+            }
+            sendMessage(data);
+        }
         return false;
     }
 
+    /** Returns the conversation (user or group JID) a message is for. */
+    private static String getConversation(Bundle data) {
+        String groupJid = data.getString("org.kontalk.message.group.jid");
+        return groupJid != null ? groupJid : data.getString("org.kontalk.message.to");
+    }
+
+    private void scheduleChatStates(long delay) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mChatStateFlush);
+            if (delay >= 0)
+                handler.postDelayed(mChatStateFlush, delay);
+        }
+    }
+
     @CommandHandler(name = ACTION_ROSTER)
     private boolean handleRoster(Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
@@ -1754,6 +1937,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 // reuse connection if the server is the same
                 KontalkConnection reuseConnection = mServer.equals(mConnection.getServer()) ?
                         mConnection : null;
+                if (reuseConnection != null && reuseConnection.isDisconnectedButSmResumptionPossible()) {
+                    // stanzas waiting for an ack will be resent on resumption
+                    holdPendingAcks(reuseConnection);
+                }
                 mHelper = new XMPPConnectionHelper(this, mServer, false, reuseConnection);
             }
 
@@ -1810,6 +1997,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Log.v(TAG, "connection created.");
         mConnection = (KontalkConnection) connection;
 
+        if (Preferences.getStreamResumption(this)) {
+            mConnection.setUseStreamManagementResumption(true);
+            restoreStreamState(mConnection);
+        }
+
         // setup version manager
         final VersionManager verMgr = VersionManager.getInstanceFor(connection);
         verMgr.setVersion(getString(R.string.app_name), SystemUtils.getVersionFullName(this));
@@ -1821,6 +2013,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         roster.addRosterLoadedListener(rosterListener);
         roster.addRosterListener(rosterListener);
         roster.setRosterStore(mRosterStore);
+        // roster is not needed to receive messages
+        roster.setRosterLoadedAtLogin(!mDrainMode);
 
         // enable ping manager
         AndroidAdaptiveServerPingManager
@@ -1855,6 +2049,43 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(new VersionListener(this), filter);
     }
 
+    /**
+     * Restores the stream state saved by a previous instance so that the
+     * stream can be resumed on login.
+     */
+    private void restoreStreamState(KontalkConnection connection) {
+        StreamManagementState state = StreamStateStore.load(this, mServer.getNetwork());
+        if (state != null) {
+            try {
+                connection.setStreamManagementState(state);
+                for (Map.Entry<String, Long> ack : state.getPendingAcks().entrySet()) {
+                    connection.addStanzaIdAcknowledgedListener(ack.getKey(),
+                        new MessageAckListener(this, ack.getValue()));
+                }
+                holdPendingAcks(connection);
+                Log.d(TAG, "stream state restored, will try to resume");
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to restore stream state", e);
+            }
+        }
+    }
+
+    /**
+     * Marks messages waiting for an ack on the given connection as pending,
+     * to avoid sending them again.
+     */
+    private void holdPendingAcks(KontalkConnection connection) {
+        for (StanzaListener listener : connection.getStanzaIdAcknowledgedListeners().values()) {
+            if (listener instanceof MessageAckListener) {
+                long databaseId = ((MessageAckListener) listener).getDatabaseId();
+                mWaitingReceipt.add(databaseId);
+                // matching release is in SM ack listener or in authenticated()
+                mPendingAckHolds.hold(databaseId);
+            }
+        }
+    }
+
     @Override
     public void connected(XMPPConnection connection) {
         // not used.
@@ -1862,13 +2093,25 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
-        Log.v(TAG, "authenticated!");
+        Log.v(TAG, "authenticated! (resumed: " + resumed + ")");
 
-        // add message ack listener
-        if (mConnection.isSmEnabled()) {
-            mConnection.removeAllStanzaIdAcknowledgedListeners();
+        // any saved stream state is not valid anymore
+        StreamStateStore.clear(this);
+
+        if (resumed) {
+            // ack listeners are still valid on a resumed stream
+            mPendingAckHolds.resumed();
         }
         else {
+            // ack listeners from the previous session will never be called
+            mConnection.removeAllStanzaIdAcknowledgedListeners();
+            // messages waiting for those acks will be sent again
+            List<Long> released = mPendingAckHolds.releaseAll();
+            if (released.size() > 0)
+                Log.d(TAG, "stream not resumed, " + released.size() + " messages will be sent again");
+        }
+
+        if (!mConnection.isSmEnabled()) {
             Log.w(TAG, "stream management not available - disabling delivery receipts");
         }
 
@@ -1876,13 +2119,23 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // this must be done before sending the presence since it's based on isHeld()
         mIdleHandler.release();
 
-        // send presence
-        sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
-        // clear upload service
-        if (mUploadServices != null)
-            mUploadServices.clear();
-        // discovery
-        discovery();
+        if (!resumed) {
+            // send presence
+            // presence is kept by the server on a resumed stream
+            // offline messages are delivered after it, so send it even when draining
+            sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
+        }
+
+        if (mDrainMode) {
+            // everything else will be done if the session is promoted
+            startDrain(connection);
+        }
+        else {
+            // roster is not loaded automatically for resumed streams
+            if (resumed)
+                reloadRoster();
+            setupSession();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1900,6 +2153,36 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             .getInstanceFor(connection, this)
             .onConnectionCompleted();
 
+        // re-acquire the wakelock for a limited time to allow for messages to come
+        // a drain session will release it as soon as it's done
+        mWakeLock.acquire(mDrainMode ? DrainMonitor.MAX_DRAIN_TIME : WAIT_FOR_MESSAGES_DELAY);
+    }
+
+    private void reloadRoster() {
+        Roster roster = getRoster();
+        if (!roster.isLoaded()) {
+            try {
+                // roster versioning will avoid downloading it again
+                roster.reload();
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to reload roster", e);
+            }
+        }
+    }
+
+    /**
+     * Session setup not needed for receiving messages.
+     */
+    private void setupSession() {
+        // clear upload service
+        if (mUploadServices != null)
+            mUploadServices.clear();
+        // use cached services so media messages can be sent right away
+        restoreDiscoveryCache();
+        // discovery (will also revalidate cached data)
+        discovery();
+
         // request server key if needed
         Async.go(new Runnable() {
             @Override
@@ -1915,9 +2198,103 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
             }
         });
+    }
 
-        // re-acquire the wakelock for a limited time to allow for messages to come
-        mWakeLock.acquire(WAIT_FOR_MESSAGES_DELAY);
+    /**
+     * Starts monitoring a drain session. The session will be closed as soon
+     * as all offline messages have been received and processed.
+     */
+    private void startDrain(final XMPPConnection connection) {
+        final DrainMonitor monitor = new DrainMonitor(System.currentTimeMillis());
+        mDrainMonitor = monitor;
+
+        // the server will reply after delivering offline messages
+        Async.go(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (PingManager.getInstanceFor(connection).pingMyServer(false))
+                        monitor.serverReplied();
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "drain ping failed", e);
+                }
+            }
+        });
+
+        Handler handler = mHandler;
+        if (handler != null)
+            handler.postDelayed(mDrainCheck, DrainMonitor.CHECK_INTERVAL);
+    }
+
+    private void checkDrain() {
+        final DrainMonitor monitor = mDrainMonitor;
+        final Handler handler = mHandler;
+        if (!mDrainMode || monitor == null || handler == null)
+            return;
+
+        if (mIdleHandler.isHeld()) {
+            // someone needs the message center: promote to a full session
+            Log.d(TAG, "drain interrupted, promoting to full session");
+            endDrain();
+            queueTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected()) {
+                        reloadRoster();
+                        setupSession();
+                    }
+                }
+            });
+            return;
+        }
+
+        final OrderedWorkQueue incoming = mIncomingQueue;
+        long delay = monitor.check(System.currentTimeMillis(), getLastReceivedStanza(),
+            incoming != null && !incoming.isIdle());
+        if (delay > 0) {
+            handler.postDelayed(mDrainCheck, delay);
+            return;
+        }
+
+        Log.d(TAG, "drain completed in " + monitor.getAwakeTime() + " ms" +
+            (monitor.isTimedOut() ? " (timed out)" : ""));
+        endDrain();
+
+        // disk and network operations are not for the main thread
+        final MessageStatusWriter statusWriter = mStatusWriter;
+        final KontalkConnection conn = mConnection;
+        queueTask(new Runnable() {
+            @Override
+            public void run() {
+                // write pending status updates
+                if (statusWriter != null)
+                    statusWriter.flush();
+
+                // acknowledge received stanzas so the server won't send them again
+                if (conn != null && conn.isSmEnabled()) {
+                    try {
+                        conn.sendSmAcknowledgement();
+                    }
+                    catch (Exception e) {
+                        Log.w(TAG, "unable to acknowledge stanzas", e);
+                    }
+                }
+
+                // stream state will be saved on disconnection
+                IdleConnectionHandler idleHandler = mIdleHandler;
+                if (idleHandler != null)
+                    idleHandler.idle();
+            }
+        });
+    }
+
+    private void endDrain() {
+        mDrainMode = false;
+        mDrainMonitor = null;
+        Handler handler = mHandler;
+        if (handler != null)
+            handler.removeCallbacks(mDrainCheck);
     }
 
     void broadcast(String action) {
@@ -1934,6 +2311,42 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    /**
+     * Loads upload services from the discovery cache. The cache is valid
+     * only if the entity capabilities advertised by the server didn't change.
+     * Discovery will resend pending media messages only for services not
+     * found in the cache, so they are resent here.
+     */
+    private void restoreDiscoveryCache() {
+        CapsExtension caps = mConnection.getFeature(CapsExtension.ELEMENT, CapsExtension.NAMESPACE);
+        mDiscoveryCache = ServiceDiscoveryCache.load(mServer.getNetwork(),
+            caps != null ? caps.getVer() : null);
+
+        boolean added = false;
+        for (String jid : mDiscoveryCache.getUploadServices()) {
+            try {
+                if (addUploadService(new HTTPFileUploadService(mConnection, JidCreate.bareFrom(jid)))) {
+                    Log.d(TAG, "using cached upload service: " + jid);
+                    added = true;
+                }
+            }
+            catch (XmppStringprepException e) {
+                Log.w(TAG, "invalid cached upload service: " + jid, e);
+            }
+        }
+
+        Handler handler = mHandler;
+        if (added && handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected())
+                        resendPendingMessages(true, false);
+                }
+            });
+        }
+    }
+
     /**
      * Discovers info and items.
      */
@@ -2072,6 +2485,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * @param to           filter by recipient (optional)
      */
     void resendPendingMessages(boolean retrying, boolean forcePending, String to) {
+        // pending statuses must be written before looking for messages to send
+        mStatusWriter.flush();
+
         String[] filterArgs = null;
 
         StringBuilder filter = new StringBuilder()
@@ -2392,6 +2808,34 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return entry != null && isAuthorized(entry);
     }
 
+    /** Returns true if we are subscribed to all the given group members. */
+    private boolean isGroupAuthorized(String groupJid, String[] members) {
+        Boolean cached = mGroupRecipients.isAuthorized(groupJid, members);
+        if (cached != null)
+            return cached;
+
+        boolean authorized = true;
+        for (String jid : members) {
+            try {
+                BareJid bareJid = JidCreate.bareFrom(jid);
+                if (!isAuthorized(bareJid)) {
+                    Log.i(TAG, "not subscribed to " + jid + ", not sending group message");
+                    authorized = false;
+                    break;
+                }
+            }
+            catch (XmppStringprepException e) {
+                Log.w(TAG, "error parsing JID: " + e.getCausingString(), e);
+                // report it because it's a big deal
+                ReportingManager.logException(e);
+                return false;
+            }
+        }
+
+        mGroupRecipients.setAuthorized(groupJid, members, authorized);
+        return authorized;
+    }
+
     private boolean isAuthorized(RosterEntry entry) {
         return (isRosterEntrySubscribed(entry) || Authenticator.isSelfJID(this, entry.getJid()));
     }
@@ -2595,22 +3039,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 .createController(KontalkGroupController.GROUP_TYPE, mConnection, this);
 
             // check if we can send messages even with some members with no subscriptipn
-            if (!group.canSendWithNoSubscription()) {
-                for (String jid : toGroup) {
-                    try {
-                        BareJid bareJid = JidCreate.bareFrom(jid);
-                        if (!isAuthorized(bareJid)) {
-                            Log.i(TAG, "not subscribed to " + jid + ", not sending group message");
-                            return;
-                        }
-                    }
-                    catch (XmppStringprepException e) {
-                        Log.w(TAG, "error parsing JID: " + e.getCausingString(), e);
-                        // report it because it's a big deal
-                        ReportingManager.logException(e);
-                        return;
-                    }
-                }
+            if (!group.canSendWithNoSubscription() && !isGroupAuthorized(groupJid, toGroup)) {
+                return;
             }
         }
         else {
@@ -2753,6 +3183,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 int groupCommandId = data.getInt("org.kontalk.message.group.command", 0);
                 switch (groupCommandId) {
                     case GROUP_COMMAND_PART:
+                        mGroupRecipients.invalidate(groupJid);
                         groupCommand = group.part();
                         ((PartCommand) groupCommand).setDatabaseId(msgId);
                         // FIXME careful to this, might need abstraction
@@ -2780,6 +3211,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         String subject = data.getString("org.kontalk.message.group.subject");
                         String[] added = data.getStringArray("org.kontalk.message.group.add");
                         String[] removed = data.getStringArray("org.kontalk.message.group.remove");
+                        mGroupRecipients.invalidate(groupJid);
                         groupCommand = group.addRemoveMembers();
                         ((AddRemoveMembersCommand) groupCommand).setSubject(subject);
                         ((AddRemoveMembersCommand) groupCommand).setAddedMembers(added);
@@ -2895,7 +3327,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 if (encrypt) {
                     byte[] toMessage = null;
                     try {
-                        Coder coder = Keyring.getEncryptCoder(this, mServer, key, toGroup);
+                        // group keys are cached
+                        Coder coder = (groupJid != null) ?
+                            Keyring.getEncryptCoder(mServer, key,
+                                mGroupRecipients.getPublicKeys(this, groupJid, toGroup)) :
+                            Keyring.getEncryptCoder(this, mServer, key, toGroup);
                         if (coder != null) {
 
                             // no extensions, create a simple text version to save space
@@ -2995,14 +3431,45 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mUploadServices = new ArrayList<>(2);
     }
 
-    void addUploadService(IUploadService service) {
+    /** Adds an upload service if not already present. */
+    boolean addUploadService(IUploadService service) {
         ensureUploadServices();
-        mUploadServices.add(service);
+        return !mUploadServices.contains(service) && mUploadServices.add(service);
     }
 
-    void addUploadService(IUploadService service, int priority) {
+    /** Adds an upload service with the given priority if not already present. */
+    boolean addUploadService(IUploadService service, int priority) {
         ensureUploadServices();
+        if (mUploadServices.contains(service))
+            return false;
         mUploadServices.add(priority, service);
+        return true;
+    }
+
+    void cacheUploadService(String jid) {
+        ServiceDiscoveryCache cache = mDiscoveryCache;
+        if (cache != null)
+            cache.addUploadService(jid);
+    }
+
+    /** Removes upload services not found in the given entities. */
+    void retainUploadServices(Collection<String> entities) {
+        ServiceDiscoveryCache cache = mDiscoveryCache;
+        if (cache != null)
+            cache.retainUploadServices(entities);
+
+        if (mUploadServices != null) {
+            Iterator<IUploadService> services = mUploadServices.iterator();
+            while (services.hasNext()) {
+                IUploadService service = services.next();
+                if (service instanceof HTTPFileUploadService &&
+                        !entities.contains(((HTTPFileUploadService) service).getService().toString())) {
+                    Log.d(TAG, "upload service not available anymore: " +
+                        ((HTTPFileUploadService) service).getService());
+                    services.remove();
+                }
+            }
+        }
     }
 
     /**
@@ -3159,6 +3626,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         context.startService(i);
     }
 
+    /**
+     * Connects just to receive offline messages (e.g. after a push
+     * notification), unless a full session is already running. The message
+     * center will stop as soon as all messages have been received.
+     */
+    public static void drain(Context context) {
+        Log.d(TAG, "draining offline messages");
+        Intent i = new Intent(context, MessageCenterService.class);
+        i.setAction(ACTION_DRAIN);
+        context.startService(i);
+    }
+
     public static void ping(Context context) {
         Log.d(TAG, "ping message center connection");
         Intent i = new Intent(context, MessageCenterService.class);
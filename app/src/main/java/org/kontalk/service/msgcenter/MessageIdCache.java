@@ -0,0 +1,106 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache of recently stored incoming message IDs.
+ * Used to drop redelivered messages (e.g. after a failed stream resumption)
+ * before decrypting and storing them again. IDs are added only after the
+ * message has been stored, so a message found here can be acknowledged
+ * again safely. The cache is exact: a message not found here might still
+ * be a duplicate (e.g. still being processed), but the database will take
+ * care of that.
+ * @author Daniele Ricci
+ */
+class MessageIdCache {
+
+    /** Default number of message IDs to remember. */
+    static final int DEFAULT_CAPACITY = 500;
+
+    private final Map<String, Boolean> mIds;
+
+    private long mHits;
+    private long mMisses;
+
+    MessageIdCache(final int capacity) {
+        mIds = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Checks if a message has already been stored.
+     * @return true if the message is a duplicate
+     */
+    public synchronized boolean contains(String id) {
+        if (mIds.get(id) != null) {
+            mHits++;
+            return true;
+        }
+        mMisses++;
+        return false;
+    }
+
+    /** Marks a message ID as stored. */
+    public synchronized void add(String id) {
+        mIds.put(id, Boolean.TRUE);
+    }
+
+    /**
+     * Adds message IDs loaded from the database, without affecting counters.
+     * @param ids the message IDs, newest first
+     */
+    public synchronized void warmUp(Collection<String> ids) {
+        // oldest first so the newest IDs will be evicted last
+        String[] array = ids.toArray(new String[ids.size()]);
+        for (int i = array.length - 1; i >= 0; i--) {
+            if (!mIds.containsKey(array[i]))
+                mIds.put(array[i], Boolean.TRUE);
+        }
+    }
+
+    public synchronized int size() {
+        return mIds.size();
+    }
+
+    /** Number of duplicates found. */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /** Number of new message IDs. */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + mIds.size() + ", hits=" + mHits + ", misses=" + mMisses;
+    }
+
+}
@@ -34,10 +34,12 @@ import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 import org.jxmpp.jid.Jid;
 import org.jxmpp.stringprep.XmppStringprepException;
 
+import android.annotation.SuppressLint;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.PowerManager;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
@@ -79,6 +81,7 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP;
@@ -95,8 +98,46 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
  */
 class MessageListener extends WakefulMessageCenterPacketListener {
 
+    /** Held while messages are waiting in the incoming queue. */
+    private final PowerManager.WakeLock mQueueLock;
+
     public MessageListener(MessageCenterService instance) {
         super(instance, "-RECV");
+        mQueueLock = SystemUtils.createPartialWakeLock(instance,
+            Kontalk.TAG + "-RECV-QUEUE", true);
+    }
+
+    /**
+     * An encrypted message being decrypted in the incoming queue.
+     * Decryption fills in the composite message.
+     */
+    private static final class EncryptedMessage {
+        final CompositeMessage message;
+        final byte[] encryptedData;
+
+        EncryptedMessage(CompositeMessage message, byte[] encryptedData) {
+            this.message = message;
+            this.encryptedData = encryptedData;
+        }
+    }
+
+    /** Decryption result of an {@link EncryptedMessage}. */
+    private static final class DecryptedMessage {
+        final EncryptedMessage encrypted;
+        final Message innerStanza;
+        final Exception error;
+
+        DecryptedMessage(EncryptedMessage encrypted, Message innerStanza, Exception error) {
+            this.encrypted = encrypted;
+            this.innerStanza = innerStanza;
+            this.error = error;
+        }
+
+        Message getInnerStanza() throws Exception {
+            if (error != null)
+                throw error;
+            return innerStanza;
+        }
     }
 
     private boolean processGroupMessage(KontalkGroupManager.KontalkGroup group, Stanza packet, CompositeMessage msg, Intent chatStateBroadcast) {
@@ -163,10 +204,76 @@ class MessageListener extends WakefulMessageCenterPacketListener {
             ext.getJID(), from.asBareJid().toString());
     }
 
+    @SuppressLint("WakelockTimeout")
     @Override
-    protected void processWakefulStanza(Stanza packet) throws SmackException.NotConnectedException {
-        org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
+    protected void processWakefulStanza(Stanza packet) throws SmackException.NotConnectedException, InterruptedException {
+        final org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
+
+        if (isDuplicate(m))
+            return;
+
+        OrderedWorkQueue queue = getIncomingQueue();
+        if (queue == null) {
+            processMessage(m, null);
+            return;
+        }
 
+        // decryption will run in parallel, messages will be stored in arrival order
+        final EncryptedMessage encrypted = prepareEncryptedMessage(m);
+        mQueueLock.acquire();
+        try {
+            queue.submit(new OrderedWorkQueue.Task<Message>() {
+                @Override
+                public Message process() throws Exception {
+                    return (encrypted != null) ?
+                        decryptMessage(encrypted.message, encrypted.encryptedData) : null;
+                }
+
+                @Override
+                public void commit(Message result, Exception error) {
+                    try {
+                        processMessage(m, (encrypted != null) ?
+                            new DecryptedMessage(encrypted, result, error) : null);
+                    }
+                    catch (Exception e) {
+                        Log.w(TAG, "error processing incoming message", e);
+                    }
+                    finally {
+                        mQueueLock.release();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            mQueueLock.release();
+            // queue was shut down
+            Log.w(TAG, "incoming queue not available", e);
+        }
+    }
+
+    /**
+     * Checks if an incoming chat message has already been stored.
+     * The receipt is sent again if requested since the sender might be
+     * waiting for it. Messages still being processed are not found here.
+     */
+    private boolean isDuplicate(Message m) {
+        MessageIdCache ids = getIncomingIds();
+        String id = m.getStanzaId();
+        if (ids == null || id == null ||
+                m.getType() != org.jivesoftware.smack.packet.Message.Type.chat ||
+                DeliveryReceipt.from(m) != null)
+            return false;
+
+        if (!ids.contains(id))
+            return false;
+
+        Log.d(TAG, "dropping duplicate message " + id);
+        if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE))
+            sendReceipt(null, id, m.getFrom());
+        return true;
+    }
+
+    private void processMessage(Message m, DecryptedMessage decrypted) throws SmackException.NotConnectedException {
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
             // a preliminary object is created here
             // other info will be filled in by processChatMessage
@@ -174,7 +281,7 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
             // non-active chat states are not to be processed as messages
             if (chatStateBroadcast == null || ChatState.active.name().equals(chatStateBroadcast.getStringExtra(EXTRA_CHAT_STATE))) {
-                processChatMessage(m, chatStateBroadcast);
+                processChatMessage(m, chatStateBroadcast, decrypted);
             }
 
             if (chatStateBroadcast != null) {
@@ -189,6 +296,59 @@ class MessageListener extends WakefulMessageCenterPacketListener {
         }
     }
 
+    /**
+     * Prepares an incoming chat message for decryption.
+     * @return the message to be decrypted, or null if the message is not encrypted
+     */
+    private EncryptedMessage prepareEncryptedMessage(Message m) {
+        if (m.getType() != org.jivesoftware.smack.packet.Message.Type.chat ||
+                DeliveryReceipt.from(m) != null)
+            return null;
+
+        // non-active chat states are not to be processed as messages
+        ExtensionElement _chatstate = m.getExtension("http://jabber.org/protocol/chatstates");
+        if (_chatstate != null && !ChatState.active.name().equals(_chatstate.getElementName()))
+            return null;
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+        if (_encrypted instanceof E2EEncryption) {
+            byte[] encryptedData = ((E2EEncryption) _encrypted).getData();
+            if (encryptedData != null) {
+                CompositeMessage msg = createMessage(m);
+                msg.setEncrypted(true);
+                msg.setSecurityFlags(Coder.SECURITY_BASIC);
+                return new EncryptedMessage(msg, encryptedData);
+            }
+        }
+        return null;
+    }
+
+    /** Creates the composite message for an incoming chat message. */
+    private CompositeMessage createMessage(Message m) {
+        // delayed deliver extension is the first the be processed
+        // because it's used also in delivery receipts
+        Date stamp = XMPPUtils.getStanzaDelay(m);
+
+        long serverTimestamp;
+        if (stamp != null)
+            serverTimestamp = stamp.getTime();
+        else
+            serverTimestamp = System.currentTimeMillis();
+
+        String msgId = m.getStanzaId();
+        if (msgId == null)
+            msgId = MessageUtils.messageId();
+
+        return new CompositeMessage(
+            getContext(),
+            msgId,
+            serverTimestamp,
+            m.getFrom().toString(),
+            false,
+            Coder.SECURITY_CLEARTEXT
+        );
+    }
+
     /**
      * Retrieve the group JID from a message. Must not be encrypted.
      * Used mainly for chat states.
@@ -249,44 +409,25 @@ class MessageListener extends WakefulMessageCenterPacketListener {
      * @param m the message
      * @param chatStateBroadcast a chat state broadcast that will be filled with missing information (e.g. group info in encrypted message)
      */
-    private void processChatMessage(Message m, Intent chatStateBroadcast) throws SmackException.NotConnectedException {
-        // delayed deliver extension is the first the be processed
-        // because it's used also in delivery receipts
-        Date stamp = XMPPUtils.getStanzaDelay(m);
-
-        long serverTimestamp;
-        if (stamp != null)
-            serverTimestamp = stamp.getTime();
-        else
-            serverTimestamp = System.currentTimeMillis();
-
+    private void processChatMessage(Message m, Intent chatStateBroadcast, DecryptedMessage decrypted) throws SmackException.NotConnectedException {
         DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
 
         // delivery receipt
         if (deliveryReceipt != null) {
-            MessageUpdater.forMessage(getContext(), deliveryReceipt.getId(), false)
-                .setStatus(Messages.STATUS_RECEIVED, System.currentTimeMillis())
-                .commit();
+            MessageStatusWriter statusWriter = getStatusWriter();
+            if (statusWriter != null)
+                statusWriter.received(deliveryReceipt.getId(), System.currentTimeMillis());
         }
 
         // incoming message
         else {
-            String msgId = m.getStanzaId();
-            if (msgId == null)
-                msgId = MessageUtils.messageId();
-
             Jid from = m.getFrom();
             String body = m.getBody();
 
-            // create message
-            CompositeMessage msg = new CompositeMessage(
-                getContext(),
-                msgId,
-                serverTimestamp,
-                from.toString(),
-                false,
-                Coder.SECURITY_CLEARTEXT
-            );
+            // create message (encrypted messages have been created before decryption)
+            CompositeMessage msg = (decrypted != null) ?
+                decrypted.encrypted.message : createMessage(m);
+            String msgId = msg.getId();
 
             // ack request might not be encrypted
             boolean needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
@@ -297,15 +438,18 @@ class MessageListener extends WakefulMessageCenterPacketListener {
                 E2EEncryption mEnc = (E2EEncryption) _encrypted;
                 byte[] encryptedData = mEnc.getData();
 
-                // encrypted message
-                msg.setEncrypted(true);
-                msg.setSecurityFlags(Coder.SECURITY_BASIC);
+                if (decrypted == null) {
+                    // encrypted message
+                    msg.setEncrypted(true);
+                    msg.setSecurityFlags(Coder.SECURITY_BASIC);
+                }
 
                 if (encryptedData != null) {
 
-                    // decrypt message
+                    // decrypt message (or use the result of previous decryption)
                     try {
-                        Message innerStanza = decryptMessage(msg, encryptedData);
+                        Message innerStanza = (decrypted != null) ?
+                            decrypted.getInnerStanza() : decryptMessage(msg, encryptedData);
                         if (innerStanza != null) {
                             // copy some attributes over
                             innerStanza.setTo(m.getTo());
@@ -515,6 +659,11 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
             Uri msgUri = incoming(msg);
 
+            // duplicates will be acknowledged only from now on
+            MessageIdCache ids = getIncomingIds();
+            if (ids != null && msgUri != null)
+                ids.add(msgId);
+
             if (needAck) {
                 // send ack :)
                 sendReceipt(msgUri, msgId, from);
@@ -560,6 +709,7 @@ class MessageListener extends WakefulMessageCenterPacketListener {
         sendMessage(ack, storageId);
     }
 
+    /** Decrypts a message. Can be called from any thread. */
     private Message decryptMessage(CompositeMessage msg, byte[] encryptedData) throws Exception {
         // message stanza
         Message m = null;
@@ -580,7 +730,11 @@ class MessageListener extends WakefulMessageCenterPacketListener {
             String contentText;
 
             if (XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(result.mime)) {
-                m = XMPPUtils.parseMessageStanza(result.cleartext);
+                // stanza has already been parsed during decryption
+                m = result.stanza;
+                if (m == null)
+                    throw new DecryptException(DecryptException.DECRYPT_EXCEPTION_INVALID_DATA,
+                        "No message stanza found");
 
                 if (result.timestamp != null && !checkDriftedDelay(m, result.timestamp))
                     result.errors.add(new DecryptException(DECRYPT_EXCEPTION_INVALID_TIMESTAMP,
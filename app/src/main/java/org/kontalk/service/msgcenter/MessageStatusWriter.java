@@ -0,0 +1,174 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.kontalk.Log;
+import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.ui.MessagingNotification;
+import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Batches message status updates coming from server acks and delivery
+ * receipts. Updates are collected for a short time and applied in a single
+ * transaction, so that a burst of acks results in one thread update and one
+ * change notification per thread.
+ * Status never goes backwards: each update only applies to messages that
+ * haven't reached the new status (or a later one) yet.
+ * @author Daniele Ricci
+ */
+class MessageStatusWriter {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Time to wait for more updates before writing. */
+    private static final long WRITE_DELAY = 200;
+    /** Write immediately after this many pending updates. */
+    private static final int MAX_PENDING = 200;
+
+    /** A late server ack must not hide an error reported in the meantime. */
+    private static final String SELECTION_SENT =
+        Messages.STATUS + " NOT IN (" + Messages.STATUS_SENT + "," +
+            Messages.STATUS_RECEIVED + "," + Messages.STATUS_NOTDELIVERED + "," +
+            Messages.STATUS_ERROR + ")";
+    private static final String SELECTION_RECEIVED =
+        Messages.DIRECTION + "=" + Messages.DIRECTION_OUT + " AND " +
+            Messages.STATUS + "<>" + Messages.STATUS_RECEIVED;
+    private static final String SELECTION_CONFIRMED =
+        Messages.STATUS + "<>" + Messages.STATUS_CONFIRMED;
+
+    private final Context mContext;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /** Pending updates by message URI. */
+    private final Map<Uri, ContentProviderOperation> mPending = new LinkedHashMap<>();
+    /** True if the outgoing message sound should be played after writing. */
+    private boolean mPlaySound;
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    MessageStatusWriter(Context context) {
+        mContext = context.getApplicationContext();
+        mThread = new HandlerThread("MessageStatusWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Marks an outgoing message as sent (acked by the server).
+     * @param to recipient, used to play the outgoing message sound
+     */
+    void sent(long databaseId, long timestamp, String to) {
+        boolean playSound = Preferences.getOutgoingSoundEnabled(mContext) &&
+            MessagingNotification.isPaused(to);
+        enqueue(Messages.getUri(databaseId), ContentProviderOperation
+            .newUpdate(Messages.getUri(databaseId))
+            .withValue(Messages.STATUS, Messages.STATUS_SENT)
+            .withValue(Messages.STATUS_CHANGED, timestamp)
+            .withValue(Messages.SERVER_TIMESTAMP, timestamp)
+            // this will handle receipts that came before the message was acked by the server
+            .withSelection(SELECTION_SENT, null)
+            .build(), playSound);
+    }
+
+    /** Marks an outgoing message as delivered (delivery receipt received). */
+    void received(String messageId, long timestamp) {
+        enqueue(Messages.getUri(messageId), ContentProviderOperation
+            .newUpdate(Messages.getUri(messageId))
+            .withValue(Messages.STATUS, Messages.STATUS_RECEIVED)
+            .withValue(Messages.STATUS_CHANGED, timestamp)
+            .withSelection(SELECTION_RECEIVED, null)
+            .build(), false);
+    }
+
+    /** Marks an incoming message as confirmed (our delivery receipt was acked). */
+    void confirmed(long databaseId) {
+        enqueue(Messages.getUri(databaseId), ContentProviderOperation
+            .newUpdate(Messages.getUri(databaseId))
+            .withValue(Messages.STATUS, Messages.STATUS_CONFIRMED)
+            .withSelection(SELECTION_CONFIRMED, null)
+            .build(), false);
+    }
+
+    private synchronized void enqueue(Uri uri, ContentProviderOperation op, boolean playSound) {
+        // a later status for the same URI replaces the previous one
+        // (statuses are only moving forward for the same URI)
+        mPending.remove(uri);
+        mPending.put(uri, op);
+        mPlaySound |= playSound;
+
+        if (mPending.size() >= MAX_PENDING) {
+            mHandler.removeCallbacks(mWriteTask);
+            mHandler.post(mWriteTask);
+        }
+        else if (mPending.size() == 1) {
+            mHandler.postDelayed(mWriteTask, WRITE_DELAY);
+        }
+    }
+
+    /** Writes all pending updates now. Can be called from any thread. */
+    void flush() {
+        ArrayList<ContentProviderOperation> ops;
+        boolean playSound;
+        synchronized (this) {
+            mHandler.removeCallbacks(mWriteTask);
+            if (mPending.isEmpty())
+                return;
+            ops = new ArrayList<>(mPending.values());
+            playSound = mPlaySound;
+            mPending.clear();
+            mPlaySound = false;
+        }
+
+        if (playSound)
+            MediaStorage.playNotificationSound(mContext, MediaStorage.OUTGOING_MESSAGE_SOUND);
+
+        try {
+            mContext.getContentResolver().applyBatch(MessagesProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "unable to write " + ops.size() + " message status updates", e);
+        }
+    }
+
+    /** Writes pending updates and stops the writer thread. */
+    void quit() {
+        flush();
+        mThread.quit();
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A work queue running the expensive part of its tasks in parallel on a
+ * bounded pool of workers, and committing their results one at a time in
+ * submission order.
+ * The number of tasks in flight is limited: {@link #submit} blocks the
+ * caller until a slot is available.
+ * @author Daniele Ricci
+ */
+class OrderedWorkQueue {
+
+    /** A task processed by the queue. */
+    public interface Task<T> {
+        /** Called on a worker thread. Tasks are processed in parallel. */
+        T process() throws Exception;
+
+        /**
+         * Called on the commit thread in submission order.
+         * @param result the result of {@link #process()}, if successful
+         * @param error the exception thrown by {@link #process()}, if any
+         */
+        void commit(T result, Exception error);
+    }
+
+    private final ExecutorService mWorkers;
+    private final ExecutorService mCommitter;
+    private final Semaphore mSlots;
+    private final int mMaxPending;
+    /** Keeps work and commit scheduling atomic with respect to shutdown. */
+    private final Object mLock = new Object();
+
+    /**
+     * @param name base name for the threads
+     * @param workers number of worker threads
+     * @param maxPending maximum number of tasks in flight
+     */
+    public OrderedWorkQueue(String name, int workers, int maxPending) {
+        mWorkers = Executors.newFixedThreadPool(workers, new NamedThreadFactory(name));
+        mCommitter = Executors.newSingleThreadExecutor(new NamedThreadFactory(name + "-commit"));
+        mSlots = new Semaphore(maxPending);
+        mMaxPending = maxPending;
+    }
+
+    /** Returns a sensible number of workers for CPU-bound tasks on this device. */
+    public static int defaultWorkers() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Submits a task, waiting for a free slot if too many tasks are in flight. */
+    public <T> void submit(final Task<T> task) throws InterruptedException {
+        mSlots.acquire();
+
+        try {
+            synchronized (mLock) {
+                final Future<T> result = mWorkers.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return task.process();
+                    }
+                });
+
+                // commit tasks are queued in submission order
+                mCommitter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            commit(task, result);
+                        }
+                        finally {
+                            mSlots.release();
+                        }
+                    }
+                });
+            }
+        }
+        catch (RuntimeException e) {
+            // queue has been shut down
+            mSlots.release();
+            throw e;
+        }
+    }
+
+    /** Returns true if all submitted tasks have been committed. */
+    public boolean isIdle() {
+        return mSlots.availablePermits() == mMaxPending;
+    }
+
+    private static <T> void commit(Task<T> task, Future<T> result) {
+        T value = null;
+        Exception error = null;
+        try {
+            value = result.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                error = (Exception) cause;
+            else
+                error = e;
+        }
+        catch (InterruptedException e) {
+            // shutting down
+            Thread.currentThread().interrupt();
+            error = e;
+        }
+        task.commit(value, error);
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the pending ones to be
+     * committed, up to the given time.
+     * @return true if all tasks were committed
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (mLock) {
+            mWorkers.shutdown();
+            mCommitter.shutdown();
+        }
+        return mCommitter.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Stops accepting new tasks without waiting for the pending ones.
+     * @param onTerminated run on the commit thread after all pending tasks
+     * have been committed
+     */
+    public void shutdown(Runnable onTerminated) {
+        synchronized (mLock) {
+            mWorkers.shutdown();
+            mCommitter.execute(onTerminated);
+            mCommitter.shutdown();
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Messages held while waiting for an ack on a stream to be resumed.
+ * Ack listeners restored from a previous session are called only if the
+ * stream is actually resumed: if resumption fails, the holds must be
+ * released here so the messages can be sent again.
+ * @author Daniele Ricci
+ */
+class PendingAckHolds {
+
+    interface Holder {
+        /** Holds the message center for a message waiting for an ack. */
+        void hold(long databaseId);
+
+        /** Releases a hold taken by {@link #hold(long)}. */
+        void release(long databaseId);
+    }
+
+    private final Holder mHolder;
+    private final Set<Long> mHeld = new LinkedHashSet<>();
+
+    PendingAckHolds(Holder holder) {
+        mHolder = holder;
+    }
+
+    /**
+     * Holds a message waiting for an ack from a previous session.
+     * A message already held is not held again.
+     */
+    public synchronized void hold(long databaseId) {
+        if (mHeld.add(databaseId))
+            mHolder.hold(databaseId);
+    }
+
+    /** The stream was resumed: holds will be released by the ack listeners. */
+    public synchronized void resumed() {
+        mHeld.clear();
+    }
+
+    /**
+     * The stream could not be resumed: releases all holds.
+     * @return the released messages
+     */
+    public synchronized List<Long> releaseAll() {
+        List<Long> released = new ArrayList<>(mHeld);
+        mHeld.clear();
+        for (long databaseId : released)
+            mHolder.release(databaseId);
+        return released;
+    }
+
+    public synchronized int size() {
+        return mHeld.size();
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Learned keep-alive interval for a single network.
+ * The model keeps the longest interval known to keep the connection alive
+ * and the shortest interval known to fail (usually the NAT or carrier
+ * timeout) and bisects between them until the two bounds are close enough.
+ * State can be serialized to a string to be restored when connecting again
+ * to the same network.
+ * @author Daniele Ricci
+ */
+public class PingIntervalModel {
+
+    /** Bounds are considered converged when closer than this fraction. */
+    private static final float CONVERGENCE_RATIO = 0.1f;
+    /** Growth factor used when probing without a known upper bound. */
+    private static final float GROWTH_FACTOR = 1.5f;
+    /** Backoff factor applied to the next probe after a failed one. */
+    private static final float BACKOFF_FACTOR = 2f;
+    /** Minimum number of ping intervals to wait before probing a stale bound. */
+    private static final int MIN_BACKOFF_INTERVALS = 8;
+    /** Maximum number of ping intervals to wait before probing a stale bound. */
+    private static final int MAX_BACKOFF_INTERVALS = 64;
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+
+    // All values are in milliseconds.
+
+    /** Interval to be used for the next ping. */
+    private long mInterval;
+    /** Longest interval known to work (0 if unknown). */
+    private long mGoodInterval;
+    /** Shortest interval known to fail (0 if unknown). */
+    private long mBadInterval;
+    /** Successful ping streak needed before probing a longer interval. */
+    private long mNextIncrease;
+    /** Current successful ping streak. */
+    private long mPingStreak;
+
+    /** True if the current interval is being probed. */
+    private boolean mProbing;
+    /** True if a ping was successful since the connection was established. */
+    private boolean mConfirmed;
+
+    public PingIntervalModel(long minInterval, long maxInterval, long defaultInterval) {
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mInterval = clamp(defaultInterval);
+        mNextIncrease = mInterval;
+    }
+
+    /** Restores a model from a string produced by {@link #serialize()}. */
+    public static PingIntervalModel restore(String data, long minInterval, long maxInterval, long defaultInterval) {
+        PingIntervalModel model = new PingIntervalModel(minInterval, maxInterval, defaultInterval);
+        if (data != null) {
+            String[] parts = data.split(":");
+            if (parts.length == 4) {
+                try {
+                    long interval = Long.parseLong(parts[0]);
+                    long good = Long.parseLong(parts[1]);
+                    long bad = Long.parseLong(parts[2]);
+                    long nextIncrease = Long.parseLong(parts[3]);
+                    if (interval > 0 && good >= 0 && bad >= 0 && nextIncrease > 0) {
+                        model.mInterval = model.clamp(interval);
+                        model.mGoodInterval = good;
+                        model.mBadInterval = bad;
+                        model.mNextIncrease = nextIncrease;
+                    }
+                }
+                catch (NumberFormatException ignored) {
+                    // use defaults
+                }
+            }
+        }
+        return model;
+    }
+
+    public String serialize() {
+        // a probe is not a learned value: store the last good interval instead
+        long interval = (mProbing && mGoodInterval > 0) ? mGoodInterval : mInterval;
+        return interval + ":" + mGoodInterval + ":" + mBadInterval + ":" + mNextIncrease;
+    }
+
+    /**
+     * Resets the transient state after the connection has been (re)established.
+     * Learned bounds are kept.
+     */
+    public void reset() {
+        if (mProbing) {
+            // probe was interrupted, fall back to the last good interval
+            mProbing = false;
+            if (mGoodInterval > 0)
+                mInterval = mGoodInterval;
+        }
+        mPingStreak = 0;
+        mConfirmed = false;
+    }
+
+    /**
+     * Updates the model after a successful ping.
+     * @return the interval for the next ping
+     */
+    public long pingSuccess() {
+        boolean confirmed = mConfirmed;
+        mConfirmed = true;
+        mPingStreak += mInterval;
+
+        if (mInterval > mGoodInterval)
+            mGoodInterval = mInterval;
+        // network conditions changed: our upper bound is not valid anymore
+        if (mBadInterval > 0 && mGoodInterval >= mBadInterval)
+            mBadInterval = 0;
+
+        if (mProbing) {
+            // probe was successful, reset backoff
+            mProbing = false;
+            mNextIncrease = mInterval;
+
+            // keep bisecting right away until bounds converge
+            if (!isConverged())
+                return probe();
+        }
+        // the first ping after connecting doesn't tell us much
+        else if (confirmed && mPingStreak >= mNextIncrease && mInterval < mMaxInterval) {
+            return probe();
+        }
+
+        return mInterval;
+    }
+
+    /**
+     * Updates the model after a failed ping.
+     * @return the interval for the next ping
+     */
+    public long pingFailed() {
+        mPingStreak = 0;
+        mConfirmed = false;
+
+        if (mBadInterval == 0 || mInterval < mBadInterval)
+            mBadInterval = mInterval;
+
+        if (mProbing) {
+            mProbing = false;
+            if (isConverged()) {
+                // we were probing a stale bound, wait longer before the next probe
+                long interval = Math.max(mGoodInterval, mMinInterval);
+                mNextIncrease = Math.max(interval * MIN_BACKOFF_INTERVALS,
+                    Math.min((long) (mNextIncrease * BACKOFF_FACTOR),
+                        interval * MAX_BACKOFF_INTERVALS));
+            }
+            else {
+                // keep bisecting after the good interval has been confirmed
+                mNextIncrease = mGoodInterval;
+            }
+        }
+        else if (mGoodInterval >= mInterval) {
+            // interval we thought was good isn't anymore
+            mGoodInterval = 0;
+        }
+
+        if (mGoodInterval > 0 && mGoodInterval < mInterval) {
+            mInterval = mGoodInterval;
+        }
+        else {
+            // no idea where the timeout is, half interval
+            mInterval = clamp(mInterval / 2);
+            mNextIncrease = mInterval;
+        }
+
+        return mInterval;
+    }
+
+    /** Returns true if the probing has found the keep-alive interval. */
+    public boolean isConverged() {
+        if (mGoodInterval >= mMaxInterval)
+            return true;
+        if (mBadInterval <= mMinInterval && mBadInterval > 0)
+            return true;
+        return mGoodInterval > 0 && mBadInterval > 0 &&
+            (mBadInterval - mGoodInterval) <= (long) (mGoodInterval * CONVERGENCE_RATIO);
+    }
+
+    public boolean isProbing() {
+        return mProbing;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public long getGoodInterval() {
+        return mGoodInterval;
+    }
+
+    public long getBadInterval() {
+        return mBadInterval;
+    }
+
+    private long probe() {
+        long next;
+        if (mBadInterval == 0) {
+            next = (long) (mInterval * GROWTH_FACTOR);
+        }
+        else if (isConverged()) {
+            // we waited long enough, check if the upper bound is stale
+            next = mBadInterval;
+        }
+        else {
+            // bisect between known bounds
+            next = (mInterval + mBadInterval) / 2;
+        }
+
+        next = clamp(next);
+        if (next > mInterval) {
+            mProbing = true;
+            mInterval = next;
+        }
+        mPingStreak = 0;
+        return mInterval;
+    }
+
+    private long clamp(long interval) {
+        return Math.max(mMinInterval, Math.min(mMaxInterval, interval));
+    }
+
+}
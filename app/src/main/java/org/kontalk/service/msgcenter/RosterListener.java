@@ -62,6 +62,9 @@ public class RosterListener implements RosterLoadedListener, org.jivesoftware.sm
         if (service == null)
             return;
 
+        // subscriptions might have changed
+        service.mGroupRecipients.invalidateAuthorization();
+
         final Handler handler = service.mHandler;
         if (handler != null) {
             handler.post(new Runnable() {
@@ -88,7 +91,9 @@ public class RosterListener implements RosterLoadedListener, org.jivesoftware.sm
 
     @Override
     public void entriesAdded(Collection<Jid> addresses) {
-        // TODO something to do here?
+        MessageCenterService service = mService.get();
+        if (service != null)
+            service.mGroupRecipients.invalidateAuthorization();
     }
 
     @Override
@@ -98,6 +103,8 @@ public class RosterListener implements RosterLoadedListener, org.jivesoftware.sm
         if (service == null || presenceListener == null)
             return;
 
+        service.mGroupRecipients.invalidateAuthorization();
+
         // we got an updated roster entry
         // check if it's a subscription "both"
         for (Jid jid : addresses) {
@@ -110,7 +117,9 @@ public class RosterListener implements RosterLoadedListener, org.jivesoftware.sm
 
     @Override
     public void entriesDeleted(Collection<Jid> addresses) {
-        // TODO something to do here?
+        MessageCenterService service = mService.get();
+        if (service != null)
+            service.mGroupRecipients.invalidateAuthorization();
     }
 
     @Override
@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import android.text.TextUtils;
+
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Persisted results of service discovery for a server.
+ * The cache is keyed by server and by the entity capabilities hash
+ * advertised by the server (if any): when the hash changes, the cached
+ * results are discarded. Cached results are used right after login and
+ * revalidated by the regular discovery.
+ * @author Daniele Ricci
+ */
+class ServiceDiscoveryCache {
+
+    /** Cached data is discarded after this time even if the hash matches. */
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private final String mServer;
+    private String mVer;
+    private long mTimestamp;
+    private final Set<String> mUploadServices = new LinkedHashSet<>();
+
+    private ServiceDiscoveryCache(String server) {
+        mServer = server;
+    }
+
+    /**
+     * Loads the cached discovery data for a server.
+     * @param server the server domain
+     * @param ver the entity capabilities hash advertised by the server, null if not available
+     * @return the cached data, empty if not valid anymore
+     */
+    public static ServiceDiscoveryCache load(String server, String ver) {
+        ServiceDiscoveryCache cache = new ServiceDiscoveryCache(server);
+        String data = Preferences.getServiceDiscoveryCache(server);
+        if (data != null) {
+            String[] parts = data.split("\n", -1);
+            if (parts.length == 3) {
+                String cachedVer = TextUtils.isEmpty(parts[0]) ? null : parts[0];
+                long timestamp;
+                try {
+                    timestamp = Long.parseLong(parts[1]);
+                }
+                catch (NumberFormatException e) {
+                    timestamp = 0;
+                }
+
+                long age = System.currentTimeMillis() - timestamp;
+                boolean verMatches = (ver == null && cachedVer == null) ||
+                    (ver != null && ver.equals(cachedVer));
+                if (verMatches && age >= 0 && age < MAX_AGE && parts[2].length() > 0) {
+                    Collections.addAll(cache.mUploadServices, parts[2].split(" "));
+                    cache.mTimestamp = timestamp;
+                }
+            }
+        }
+        cache.mVer = ver;
+        return cache;
+    }
+
+    public Collection<String> getUploadServices() {
+        return Collections.unmodifiableSet(mUploadServices);
+    }
+
+    public boolean isEmpty() {
+        return mUploadServices.isEmpty();
+    }
+
+    /** Adds an upload service and saves the cache. */
+    public synchronized void addUploadService(String jid) {
+        if (mUploadServices.add(jid))
+            save();
+    }
+
+    /**
+     * Removes upload services not found in the given entities and saves the cache.
+     * @return true if something was removed
+     */
+    public synchronized boolean retainUploadServices(Collection<String> entities) {
+        boolean changed = mUploadServices.retainAll(entities);
+        save();
+        return changed;
+    }
+
+    private void save() {
+        mTimestamp = System.currentTimeMillis();
+        Preferences.setServiceDiscoveryCache(mServer,
+            (mVer != null ? mVer : "") + "\n" +
+            mTimestamp + "\n" +
+            TextUtils.join(" ", mUploadServices));
+    }
+
+}
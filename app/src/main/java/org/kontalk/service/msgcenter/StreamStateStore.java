@@ -0,0 +1,198 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.jivesoftware.smack.StanzaListener;
+
+import android.content.Context;
+
+import org.kontalk.Log;
+import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.StreamManagementState;
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Persists the resumable stream state across message center restarts.
+ * The state is consumed on load: a stream can be resumed only once.
+ * Saving is done in the background while disconnecting: a load waits for
+ * any save announced through {@link #beginSave()} to complete.
+ * @author Daniele Ricci
+ */
+class StreamStateStore {
+    private static final String TAG = MessageCenterService.TAG;
+
+    private static final String FILENAME = "stream_state";
+
+    /** Time needed to reconnect, subtracted from the resumption window. */
+    private static final long RESUMPTION_MARGIN = 10000;
+    /** Maximum time to wait for a pending save when loading. */
+    private static final long SAVE_TIMEOUT = 10000;
+
+    /** Saves announced but not completed yet. */
+    private static int sPendingSaves;
+
+    private StreamStateStore() {
+    }
+
+    /**
+     * Announces a save that will be done by another thread. Must be
+     * followed by a call to {@link #save}.
+     */
+    public static synchronized void beginSave() {
+        sPendingSaves++;
+    }
+
+    /**
+     * Saves the stream state of the given connection, including the mapping
+     * of stanzas waiting for an ack to their database IDs. Completes a save
+     * announced by {@link #beginSave()}.
+     * @return true if the stream was resumable and the state has been saved
+     */
+    public static synchronized boolean save(Context context, KontalkConnection connection) {
+        try {
+            return saveInternal(context, connection);
+        }
+        finally {
+            sPendingSaves--;
+            StreamStateStore.class.notifyAll();
+        }
+    }
+
+    private static boolean saveInternal(Context context, KontalkConnection connection) {
+        StreamManagementState state = connection.getStreamManagementState();
+        if (state == null) {
+            clear(context);
+            return false;
+        }
+
+        for (Map.Entry<String, StanzaListener> e : connection
+                .getStanzaIdAcknowledgedListeners().entrySet()) {
+            if (e.getValue() instanceof MessageAckListener) {
+                state.addPendingAck(e.getKey(),
+                    ((MessageAckListener) e.getValue()).getDatabaseId());
+            }
+        }
+
+        // a partially written file must never be loaded
+        File tmp = new File(context.getFilesDir(), FILENAME + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            state.writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(getFile(context)))
+                throw new IOException("unable to rename " + tmp);
+            Log.d(TAG, "stream state saved (" + state.getUnacknowledgedStanzas().size() +
+                " unacknowledged stanzas)");
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to save stream state", e);
+            clear(context);
+            return false;
+        }
+        finally {
+            SystemUtils.closeStream(out);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Loads and removes the saved stream state.
+     * @return the stream state if it can still be resumed on the given domain, null otherwise
+     */
+    public static synchronized StreamManagementState load(Context context, String domain) {
+        if (!waitForSaves()) {
+            Log.w(TAG, "stream state not saved in time - discarding");
+            clear(context);
+            return null;
+        }
+
+        File file = getFile(context);
+        if (!file.isFile())
+            return null;
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            StreamManagementState state = StreamManagementState.readFrom(in);
+            if (!state.getDomain().equalsIgnoreCase(domain)) {
+                Log.d(TAG, "stream state is for another server - discarding");
+                return null;
+            }
+            if (!state.isResumable(System.currentTimeMillis(), RESUMPTION_MARGIN)) {
+                Log.d(TAG, "stream state expired - discarding");
+                return null;
+            }
+            return state;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to load stream state", e);
+            return null;
+        }
+        finally {
+            SystemUtils.closeStream(in);
+            clear(context);
+        }
+    }
+
+    /**
+     * Waits for pending saves to complete. Must be called while holding the lock.
+     * @return false if a save is still pending
+     */
+    private static boolean waitForSaves() {
+        long deadline = System.currentTimeMillis() + SAVE_TIMEOUT;
+        try {
+            while (sPendingSaves > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                StreamStateStore.class.wait(remaining);
+            }
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public static synchronized void clear(Context context) {
+        File file = getFile(context);
+        if (file.exists())
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILENAME);
+    }
+
+}
@@ -62,7 +62,6 @@ import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPUserID;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.Keyring;
-import org.kontalk.provider.MyUsers;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.XMPPUtils;
@@ -533,6 +532,19 @@ public class Syncer {
                     syncResult.databaseError = true;
                 }
 
+                // update keys table immediately, all keys in one batch
+                Map<String, byte[]> keys = new HashMap<>();
+                Set<String> trustedJids = new HashSet<>();
+                for (PresenceItem entry : res) {
+                    if (!entry.discarded && entry.publicKey != null) {
+                        keys.put(entry.from, entry.publicKey);
+                        // trust our own key blindly
+                        if (Authenticator.isSelfJID(mContext, entry.from))
+                            trustedJids.add(entry.from);
+                    }
+                }
+                Map<String, PGPPublicKey> masterKeys = Keyring.setKeys(mContext, keys, trustedJids);
+
                 ContentValues registeredValues = new ContentValues();
                 registeredValues.put(Users.REGISTERED, 1);
                 for (int i = 0; i < res.size(); i++) {
@@ -566,15 +578,9 @@ public class Syncer {
                         else
                             registeredValues.putNull(Users.LAST_SEEN);
 
-                        if (entry.publicKey != null) {
+                        PGPPublicKey pubKey = masterKeys.get(entry.from);
+                        if (pubKey != null) {
                             try {
-                                PGPPublicKey pubKey = PGP.getMasterKey(entry.publicKey);
-                                // trust our own key blindly
-                                int trustLevel = Authenticator.isSelfJID(mContext, entry.from) ?
-                                    MyUsers.Keys.TRUST_VERIFIED : -1;
-                                // update keys table immediately
-                                Keyring.setKey(mContext, entry.from, entry.publicKey, trustLevel);
-
                                 // no data from system contacts, use name from public key
                                 if (data == null) {
                                     PGPUserID uid = PGP.parseUserId(pubKey, XmppStringUtils.parseDomain(entry.from));
@@ -120,6 +120,7 @@ import org.kontalk.ui.view.AudioContentViewControl;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.ComposerBar;
 import org.kontalk.ui.view.ComposerListener;
+import org.kontalk.ui.view.MessageBodyLoader;
 import org.kontalk.ui.view.MessageListItem;
 import org.kontalk.ui.view.ReplyBar;
 import org.kontalk.util.MediaStorage;
@@ -148,9 +149,18 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     private static final int MESSAGE_PAGE_QUERY_TOKEN = 8723;
 
     /**
-     * How many messages to load per page.
+     * How many messages to load when opening a conversation.
      */
-    private static final int MESSAGE_PAGE_SIZE = 1000;
+    private static final int MESSAGE_FIRST_PAGE_SIZE = 50;
+    /**
+     * How many older messages to load per page.
+     */
+    private static final int MESSAGE_PAGE_SIZE = 100;
+    /**
+     * Older messages are loaded when scrolling closer than this
+     * number of rows to the top of the list.
+     */
+    private static final int MESSAGE_PREFETCH_THRESHOLD = 20;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = 1;
     private static final int SELECT_ATTACHMENT_CONTACT = 2;
@@ -295,14 +305,24 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         mNextPageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // disable button in the meantime
-                enableHeaderView(false);
-                // start query for the next page
-                startMessagesQuery(mQueryHandler.getLastId());
+                loadNextPage();
             }
         });
         list.addHeaderView(mHeaderView, null, false);
 
+        // prefetch older messages while scrolling up
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem <= MESSAGE_PREFETCH_THRESHOLD)
+                    loadNextPage();
+            }
+        });
+
         // set custom background (if any)
         mBackground = getView().findViewById(R.id.background);
         Drawable bg = Preferences.getConversationBackground(getActivity());
@@ -598,7 +618,10 @@ public abstract class AbstractComposeFragment extends ListFragment implements
             throw new IllegalStateException("checked items count must be exactly 1");
 
         Cursor cursor = (Cursor) getListView().getItemAtPosition(getCheckedItemPosition());
-        return CompositeMessage.fromCursor(getActivity(), cursor);
+        CompositeMessage msg = CompositeMessage.fromCursor(getActivity(), cursor);
+        // actions need the full body (usually already loaded by the list)
+        MessageBodyLoader.getInstance(getActivity()).loadNow(msg);
+        return msg;
     }
 
     private int getCheckedItemPosition() {
@@ -1352,8 +1375,16 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     }
 
     void startMessagesQuery() {
-        CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-            threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE, 0);
+        long firstId = mQueryHandler.getLastId();
+        if (firstId > 0) {
+            // reload everything we already loaded
+            CompositeMessage.startQueryFrom(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                threadId, firstId);
+        }
+        else {
+            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                threadId, isSearching() ? 0 : MESSAGE_FIRST_PAGE_SIZE, 0);
+        }
     }
 
     void startMessagesQuery(long lastId) {
@@ -2208,6 +2239,16 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         mHeaderView.setVisibility(View.GONE);
     }
 
+    /** Loads the next page of older messages, if any and not already loading. */
+    void loadNextPage() {
+        if (mHeaderView.getVisibility() == View.VISIBLE && mNextPageButton.isEnabled()) {
+            // disable button in the meantime
+            enableHeaderView(false);
+            // start query for the next page
+            startMessagesQuery(mQueryHandler.getLastId());
+        }
+    }
+
     void enableHeaderView(boolean enabled) {
         mNextPageButton.setEnabled(enabled);
     }
@@ -2679,7 +2720,9 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                             });
                         }
 
-                        if (newSelectionPos < 0 && cursor.getCount() >= MESSAGE_PAGE_SIZE)
+                        // a reload doesn't change the availability of older messages
+                        if (cookie == null && newSelectionPos < 0 &&
+                                cursor.getCount() >= MESSAGE_FIRST_PAGE_SIZE)
                             parent.showHeaderView();
 
                         parent.updateUI();
@@ -2700,16 +2743,21 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                         mLastId = Conversation.getMessageId(cursor);
 
                         // join with the old cursor (if any)
+                        ListView list = parent.getListView();
+                        int top = 0;
                         Cursor oldCursor = parent.mListAdapter.getCursor();
                         if (oldCursor != null) {
-                            // the new selection will be the next item after this new cursor
-                            newSelectionPos = cursor.getCount();
+                            // keep the current scroll position
+                            newSelectionPos = list.getFirstVisiblePosition() + cursor.getCount();
+                            View first = list.getChildAt(0);
+                            if (first != null)
+                                top = first.getTop();
                             cursor = new MergeCursor(new Cursor[]{cursor, oldCursor});
                         }
 
                         parent.mListAdapter.swapCursor(cursor);
                         if (newSelectionPos >= 0)
-                            parent.getListView().setSelection(newSelectionPos);
+                            list.setSelectionFromTop(newSelectionPos, top);
 
                         parent.updateUI();
                     }
@@ -25,15 +25,13 @@ import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.github.clans.fab.FloatingActionMenu;
 
-import android.content.AsyncQueryHandler;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
-import android.support.v4.app.ListFragment;
-import android.util.SparseBooleanArray;
+import android.support.v4.app.Fragment;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -43,44 +41,33 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
-import android.widget.AbsListView;
 import android.widget.CheckBox;
-import android.widget.ListView;
 import android.widget.TextView;
 
-import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
+import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.ui.adapter.ConversationListAdapter;
-import org.kontalk.ui.view.AbsListViewScrollDetector;
 import org.kontalk.ui.view.ConversationListItem;
-import org.kontalk.util.SystemUtils;
 
 
-public class ConversationListFragment extends ListFragment
-        implements Contact.ContactChangeListener, AbsListView.MultiChoiceModeListener {
+public class ConversationListFragment extends Fragment
+        implements Contact.ContactChangeListener, ActionMode.Callback,
+        ConversationListAdapter.OnItemClickListener, ConversationListUpdater.OnUpdateListener {
     static final String TAG = ConversationsActivity.TAG;
 
-    private static final int THREAD_LIST_QUERY_TOKEN = 8720;
-
-    private ThreadListQueryHandler mQueryHandler;
+    private ConversationListUpdater mUpdater;
     ConversationListAdapter mListAdapter;
+    private RecyclerView mList;
+    private View mEmptyView;
     private boolean mDualPane;
 
     FloatingActionMenu mAction;
     boolean mActionVisible;
 
-    private int mCheckedItemCount;
-
-    private final ConversationListAdapter.OnContentChangedListener mContentChangedListener =
-        new ConversationListAdapter.OnContentChangedListener() {
-        public void onContentChanged(ConversationListAdapter adapter) {
-            if (!isFinishing())
-                startQuery();
-        }
-    };
+    private ActionMode mActionMode;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -91,6 +78,12 @@ public class ConversationListFragment extends ListFragment
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
+        mList = view.findViewById(android.R.id.list);
+        mList.setLayoutManager(new LinearLayoutManager(getContext()));
+        mEmptyView = view.findViewById(android.R.id.empty);
+        // shown after the first query
+        mEmptyView.setVisibility(View.GONE);
+
         mAction = view.findViewById(R.id.action);
         mAction.setClosedOnTouchOutside(true);
         mActionVisible = true;
@@ -108,9 +101,16 @@ public class ConversationListFragment extends ListFragment
             }
         });
 
-        getListView().setOnScrollListener(new AbsListViewScrollDetector() {
+        mList.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onScrollUp() {
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0)
+                    onScrollUp();
+                else if (dy < 0)
+                    onScrollDown();
+            }
+
+            private void onScrollUp() {
                 if (mActionVisible) {
                     mActionVisible = false;
                     if (isAnimating())
@@ -136,8 +136,7 @@ public class ConversationListFragment extends ListFragment
                 }
             }
 
-            @Override
-            public void onScrollDown() {
+            private void onScrollDown() {
                 if (!mActionVisible) {
                     mActionVisible = true;
                     if (isAnimating())
@@ -173,11 +172,9 @@ public class ConversationListFragment extends ListFragment
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
-        mQueryHandler = new ThreadListQueryHandler(getActivity().getContentResolver());
-        mListAdapter = new ConversationListAdapter(getActivity(), null, getListView());
-        mListAdapter.setOnContentChangedListener(mContentChangedListener);
-
-        ListView list = getListView();
+        mListAdapter = new ConversationListAdapter(getActivity());
+        mListAdapter.setOnItemClickListener(this);
+        mUpdater = new ConversationListUpdater(getActivity(), this);
 
         // Check to see if we have a frame in which to embed the details
         // fragment directly in the containing UI.
@@ -185,17 +182,9 @@ public class ConversationListFragment extends ListFragment
         mDualPane = detailsFrame != null
                 && detailsFrame.getVisibility() == View.VISIBLE;
 
-        if (mDualPane) {
-            // TODO restore state
-            list.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
-            list.setItemsCanFocus(true);
-        }
-        else {
-            list.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
-        }
+        // TODO restore state (dual pane)
 
-        setListAdapter(mListAdapter);
-        list.setMultiChoiceModeListener(this);
+        mList.setAdapter(mListAdapter);
     }
 
     @Override
@@ -224,33 +213,66 @@ public class ConversationListFragment extends ListFragment
     }
 
     public boolean isActionModeActive() {
-        return mCheckedItemCount > 0;
+        return mActionMode != null;
+    }
+
+    @Override
+    public void onItemClick(ConversationListItem view, int position) {
+        if (isActionModeActive()) {
+            toggleItemChecked(position);
+            return;
+        }
+
+        Conversation conv = view.getConversation();
+
+        ConversationsActivity parent = getParentActivity();
+        if (parent != null)
+            parent.openConversation(conv, position);
     }
 
     @Override
-    public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
-        if (checked)
-            mCheckedItemCount++;
-        else
-            mCheckedItemCount--;
-        mode.setTitle(getResources()
-            .getQuantityString(R.plurals.context_selected,
-                mCheckedItemCount, mCheckedItemCount));
-        mode.invalidate();
+    public boolean onItemLongClick(ConversationListItem view, int position) {
+        // no contextual actions in dual pane mode
+        if (mDualPane)
+            return false;
+
+        if (!isActionModeActive()) {
+            mListAdapter.clearChecked();
+            mActionMode = getActivity().startActionMode(this);
+        }
+        toggleItemChecked(position);
+        return true;
+    }
+
+    private void toggleItemChecked(int position) {
+        mListAdapter.setItemChecked(position, !mListAdapter.isItemChecked(position));
+        onCheckedItemsChanged();
+    }
+
+    private void onCheckedItemsChanged() {
+        if (mActionMode == null)
+            return;
+
+        int count = mListAdapter.getCheckedItemCount();
+        if (count == 0) {
+            mActionMode.finish();
+        }
+        else {
+            mActionMode.setTitle(getResources()
+                .getQuantityString(R.plurals.context_selected, count, count));
+            mActionMode.invalidate();
+        }
     }
 
     @Override
     public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_archive:
-                archiveSelectedThreads(SystemUtils
-                    .cloneSparseBooleanArray(getListView().getCheckedItemPositions()));
+                archiveSelectedThreads(mListAdapter.getCheckedItems());
                 mode.finish();
                 return true;
             case R.id.menu_delete:
-                // using clone because listview returns its original copy
-                deleteSelectedThreads(SystemUtils
-                    .cloneSparseBooleanArray(getListView().getCheckedItemPositions()));
+                deleteSelectedThreads(mListAdapter.getCheckedItems());
                 mode.finish();
                 return true;
             case R.id.menu_sticky:
@@ -270,41 +292,35 @@ public class ConversationListFragment extends ListFragment
 
     @Override
     public void onDestroyActionMode(ActionMode mode) {
-        mCheckedItemCount = 0;
-        getListView().clearChoices();
-        mListAdapter.notifyDataSetChanged();
+        mActionMode = null;
+        mListAdapter.clearChecked();
     }
 
     @Override
     public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
-        boolean singleItem = (mCheckedItemCount == 1);
+        boolean singleItem = (mListAdapter.getCheckedItemCount() == 1);
         menu.findItem(R.id.menu_sticky).setVisible(singleItem);
         return true;
     }
 
-    private void archiveSelectedThreads(SparseBooleanArray checked) {
+    private void archiveSelectedThreads(List<Conversation> checked) {
         Context ctx = getContext();
-        for (int i = 0, c = mListAdapter.getCount(); i < c; ++i) {
-            if (checked.get(i)) {
-                Cursor item = (Cursor) mListAdapter.getItem(i);
-                Conversation.archiveFromCursor(ctx, item);
-            }
+        for (Conversation conv : checked) {
+            MessagesProviderClient.setArchived(ctx, conv.getThreadId(), true);
         }
     }
 
-    private void deleteSelectedThreads(SparseBooleanArray checked) {
+    private void deleteSelectedThreads(List<Conversation> checked) {
         boolean addGroupCheckbox = false;
         int checkedCount = 0;
         final List<Conversation.DeleteThreadHolder> list = new LinkedList<>();
-        for (int i = 0, c = mListAdapter.getCount(); i < c; ++i) {
-            if (checked.get(i)) {
-                checkedCount++;
-                Cursor item = (Cursor) mListAdapter.getItem(i);
-                if (!addGroupCheckbox && Conversation.isGroup(item, MyMessages.Groups.MEMBERSHIP_MEMBER)) {
-                    addGroupCheckbox = true;
-                }
-                list.add(new Conversation.DeleteThreadHolder(item));
+        for (Conversation conv : checked) {
+            checkedCount++;
+            Conversation.DeleteThreadHolder item = new Conversation.DeleteThreadHolder(conv);
+            if (!addGroupCheckbox && Conversation.isGroup(item, MyMessages.Groups.MEMBERSHIP_MEMBER)) {
+                addGroupCheckbox = true;
             }
+            list.add(item);
         }
 
         final boolean hasGroupCheckbox = addGroupCheckbox;
@@ -329,7 +345,6 @@ public class ConversationListFragment extends ListFragment
                         Conversation.deleteFromCursor(ctx, item,
                             hasGroupCheckbox ? promptCheckBoxChecked : hasLeftGroup);
                     }
-                    mListAdapter.notifyDataSetChanged();
                 }
             })
             .negativeText(android.R.string.cancel);
@@ -354,24 +369,20 @@ public class ConversationListFragment extends ListFragment
     }
 
     private Conversation getCheckedItem() {
-        if (mCheckedItemCount != 1)
+        List<Conversation> checked = mListAdapter.getCheckedItems();
+        if (checked.size() != 1)
             throw new IllegalStateException("checked items count must be exactly 1");
 
-        Cursor cursor = (Cursor) getListView().getItemAtPosition(getCheckedItemPosition());
-        return Conversation.createFromCursor(getActivity(), cursor);
-    }
-
-    private int getCheckedItemPosition() {
-        SparseBooleanArray checked = getListView().getCheckedItemPositions();
-        return checked.keyAt(checked.indexOfValue(true));
+        return checked.get(0);
     }
 
     private void stickSelectedThread() {
         Conversation conv = getCheckedItem();
         if (conv != null) {
-            conv.setSticky(!conv.isSticky());
+            // the snapshot is shared with the updater: it will load a new copy
+            MessagesProviderClient.setThreadSticky(getContext(),
+                conv.getThreadId(), !conv.isSticky());
         }
-        mListAdapter.notifyDataSetChanged();
     }
 
     public void chooseContact(boolean multiselect) {
@@ -384,24 +395,16 @@ public class ConversationListFragment extends ListFragment
         return (ConversationsActivity) getActivity();
     }
 
+    /** Requests a full reload of the conversation list. */
     public void startQuery() {
-        Cursor c = null;
-        Context ctx = getActivity();
-        if (ctx != null) {
-            try {
-                c = Conversation.startQuery(ctx, false);
-            }
-            catch (SQLiteException e) {
-                Log.e(TAG, "query error", e);
-            }
-        }
-        mQueryHandler.onQueryComplete(THREAD_LIST_QUERY_TOKEN, null, c);
+        if (mUpdater != null)
+            mUpdater.requery();
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        startQuery();
+        mUpdater.start();
         Contact.registerContactChangeListener(this);
     }
 
@@ -409,19 +412,46 @@ public class ConversationListFragment extends ListFragment
     public void onStop() {
         super.onStop();
         Contact.unregisterContactChangeListener(this);
-        mListAdapter.changeCursor(null);
+        mUpdater.stop();
         if (isActionMenuOpen())
             mAction.close(false);
     }
 
     @Override
-    public void onListItemClick(ListView l, View v, int position, long id) {
-        ConversationListItem cv = (ConversationListItem) v;
-        Conversation conv = cv.getConversation();
+    public void onDestroy() {
+        super.onDestroy();
+        if (mUpdater != null)
+            mUpdater.quit();
+    }
+
+    @Override
+    public void onConversationsUpdated(List<Conversation> conversations, DiffUtil.DiffResult diff) {
+        if (isFinishing() || mListAdapter == null)
+            return;
+
+        mListAdapter.setItems(conversations, diff);
+        updateEmptyView();
+        onCheckedItemsChanged();
 
         ConversationsActivity parent = getParentActivity();
         if (parent != null)
-            parent.openConversation(conv, position);
+            parent.onDatabaseChanged();
+    }
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mListAdapter.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+
+    /** Marks the given conversation as the selected one (dual pane only). */
+    public void setSelectedItem(int position) {
+        if (mDualPane)
+            mListAdapter.setSingleItemChecked(position);
+    }
+
+    /** Marks the conversation with the given peer as the selected one (dual pane only). */
+    public void setSelectedItem(String peer) {
+        if (mDualPane)
+            mListAdapter.setSingleItemChecked(mListAdapter.getItemPosition(peer));
     }
 
     /** Used only in fragment contexts. */
@@ -437,52 +467,14 @@ public class ConversationListFragment extends ListFragment
 
     @Override
     public void onContactInvalidated(String userId) {
-        mQueryHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                // just requery
-                startQuery();
-            }
-        });
+        // just requery (contact instances will be reloaded)
+        startQuery();
     }
 
     public boolean hasListItems() {
         return mListAdapter != null && !mListAdapter.isEmpty();
     }
 
-    /**
-     * The conversation list query handler.
-     */
-    private final class ThreadListQueryHandler extends AsyncQueryHandler {
-        public ThreadListQueryHandler(ContentResolver contentResolver) {
-            super(contentResolver);
-        }
-
-        @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            if (cursor == null || isFinishing()) {
-                // close cursor - if any
-                if (cursor != null) cursor.close();
-
-                Log.w(TAG, "query aborted or error!");
-                mListAdapter.changeCursor(null);
-                return;
-            }
-
-            switch (token) {
-                case THREAD_LIST_QUERY_TOKEN:
-                    mListAdapter.changeCursor(cursor);
-                    ConversationsActivity parent = getParentActivity();
-                    if (parent != null)
-                        parent.onDatabaseChanged();
-                    break;
-
-                default:
-                    Log.e(TAG, "onQueryComplete called with unknown token " + token);
-            }
-        }
-    }
-
     public boolean isDualPane() {
         return mDualPane;
     }
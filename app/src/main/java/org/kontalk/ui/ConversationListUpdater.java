@@ -0,0 +1,312 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v7.util.DiffUtil;
+
+import org.kontalk.Log;
+import org.kontalk.data.Conversation;
+import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.ui.adapter.ConversationListAdapter;
+
+
+/**
+ * Keeps an in-memory snapshot of the conversation list up to date.
+ * Changes to threads are collected by thread ID and only the changed threads
+ * are queried again; a full query is done only when the change can't be
+ * attributed to a single thread. Updates are rate limited and diffed against
+ * the previous snapshot in a background thread.
+ * @author Daniele Ricci
+ */
+class ConversationListUpdater {
+    private static final String TAG = ConversationsActivity.TAG;
+
+    /** Minimum time between two updates. */
+    private static final long MIN_UPDATE_INTERVAL = 500;
+    /** Maximum number of thread IDs in a single query. */
+    private static final int MAX_QUERY_IDS = 200;
+
+    private static final int MSG_UPDATE = 1;
+
+    /** Same order as {@link Threads#DEFAULT_SORT_ORDER}. */
+    private static final Comparator<Conversation> SORT_ORDER = new Comparator<Conversation>() {
+        @Override
+        public int compare(Conversation c1, Conversation c2) {
+            if (c1.isSticky() != c2.isSticky())
+                return c1.isSticky() ? -1 : 1;
+            if (c1.getDate() != c2.getDate())
+                return c1.getDate() > c2.getDate() ? -1 : 1;
+            return c1.getThreadId() > c2.getThreadId() ? -1 :
+                (c1.getThreadId() == c2.getThreadId() ? 0 : 1);
+        }
+    };
+
+    interface OnUpdateListener {
+        /** Called on the main thread with the new snapshot. */
+        void onConversationsUpdated(List<Conversation> conversations, DiffUtil.DiffResult diff);
+    }
+
+    private final Context mContext;
+    private final OnUpdateListener mListener;
+    private final Handler mMainHandler;
+    private final ContentObserver mObserver;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /** Threads changed since the last update. */
+    private final Set<Long> mChangedThreads = new HashSet<>();
+    private boolean mFullQuery;
+    private volatile boolean mStarted;
+
+    /** The current snapshot. Accessed only by the worker thread. */
+    private List<Conversation> mSnapshot;
+    private volatile long mLastUpdate;
+
+    ConversationListUpdater(Context context, OnUpdateListener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                threadChanged(uri);
+            }
+        };
+    }
+
+    /** Starts observing changes and requests a full query. */
+    public void start() {
+        if (mThread == null) {
+            mThread = new HandlerThread("ConversationListUpdater", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == MSG_UPDATE)
+                        update();
+                }
+            };
+        }
+
+        mStarted = true;
+        mContext.getContentResolver()
+            .registerContentObserver(Threads.CONTENT_URI, true, mObserver);
+        // we might have missed some changes
+        requery();
+    }
+
+    /** Stops observing changes. The snapshot is kept for the next start. */
+    public void stop() {
+        mStarted = false;
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        synchronized (this) {
+            if (mHandler != null)
+                mHandler.removeMessages(MSG_UPDATE);
+        }
+    }
+
+    /** Stops the worker thread. */
+    public void quit() {
+        stop();
+        synchronized (this) {
+            if (mThread != null) {
+                mThread.quit();
+                mThread = null;
+                mHandler = null;
+            }
+        }
+    }
+
+    /** Requests a full query. */
+    public void requery() {
+        synchronized (this) {
+            mFullQuery = true;
+            schedule(true);
+        }
+    }
+
+    void threadChanged(Uri uri) {
+        long threadId = -1;
+        if (uri != null && uri.getPathSegments().size() == 2) {
+            try {
+                threadId = Long.parseLong(uri.getLastPathSegment());
+            }
+            catch (NumberFormatException ignored) {
+                // not a thread ID (e.g. a peer)
+            }
+        }
+
+        synchronized (this) {
+            if (threadId > 0)
+                mChangedThreads.add(threadId);
+            else
+                // API level < 16 or change not related to a single thread
+                mFullQuery = true;
+            schedule(false);
+        }
+    }
+
+    /** Must be called while holding the lock. */
+    private void schedule(boolean now) {
+        if (mHandler == null || !mStarted)
+            return;
+
+        if (now) {
+            mHandler.removeMessages(MSG_UPDATE);
+            mHandler.sendEmptyMessage(MSG_UPDATE);
+        }
+        else if (!mHandler.hasMessages(MSG_UPDATE)) {
+            // coalesce changes arriving too close to the last update
+            long delay = mLastUpdate + MIN_UPDATE_INTERVAL - SystemClock.elapsedRealtime();
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE, Math.max(0, delay));
+        }
+    }
+
+    /** Runs in the worker thread. */
+    private void update() {
+        mLastUpdate = SystemClock.elapsedRealtime();
+
+        boolean full;
+        List<Long> changed;
+        synchronized (this) {
+            full = mFullQuery || mSnapshot == null;
+            changed = new ArrayList<>(mChangedThreads);
+            mFullQuery = false;
+            mChangedThreads.clear();
+        }
+
+        List<Conversation> oldItems = mSnapshot != null ?
+            mSnapshot : Collections.<Conversation>emptyList();
+        List<Conversation> newItems;
+        try {
+            if (full) {
+                newItems = queryAll();
+            }
+            else if (!changed.isEmpty()) {
+                newItems = merge(oldItems, changed);
+            }
+            else {
+                return;
+            }
+        }
+        catch (SQLiteException e) {
+            Log.e(TAG, "query error", e);
+            // try again at the next change
+            synchronized (this) {
+                mFullQuery = true;
+            }
+            return;
+        }
+
+        final List<Conversation> items = Collections.unmodifiableList(newItems);
+        final DiffUtil.DiffResult diff = ConversationListAdapter.calculateDiff(oldItems, items);
+        mSnapshot = items;
+
+        if (!full)
+            Log.v(TAG, "conversation list updated: " + changed.size() + " changed threads");
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onConversationsUpdated(items, diff);
+            }
+        });
+    }
+
+    private List<Conversation> queryAll() {
+        List<Conversation> list = new ArrayList<>();
+        Cursor c = Conversation.startQuery(mContext, false);
+        if (c == null)
+            throw new SQLiteException("unable to query threads");
+        try {
+            while (c.moveToNext())
+                list.add(load(c));
+        }
+        finally {
+            c.close();
+        }
+        Collections.sort(list, SORT_ORDER);
+        return list;
+    }
+
+    /** Replaces the changed threads in the snapshot. */
+    private List<Conversation> merge(List<Conversation> oldItems, List<Long> changed) {
+        Map<Long, Conversation> updated = new HashMap<>(changed.size());
+        for (int i = 0; i < changed.size(); i += MAX_QUERY_IDS) {
+            Cursor c = Conversation.startQuery(mContext, false,
+                changed.subList(i, Math.min(i + MAX_QUERY_IDS, changed.size())));
+            if (c == null)
+                throw new SQLiteException("unable to query threads");
+            try {
+                while (c.moveToNext()) {
+                    Conversation conv = load(c);
+                    updated.put(conv.getThreadId(), conv);
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        // changed threads not found anymore have been deleted or archived
+        Set<Long> changedSet = new HashSet<>(changed);
+        List<Conversation> list = new ArrayList<>(oldItems.size() + updated.size());
+        for (Conversation conv : oldItems) {
+            if (!changedSet.contains(conv.getThreadId()))
+                list.add(conv);
+        }
+        list.addAll(updated.values());
+        Collections.sort(list, SORT_ORDER);
+        return list;
+    }
+
+    private Conversation load(Cursor c) {
+        Conversation conv = Conversation.createFromCursor(mContext, c);
+        // load group members now instead of while binding
+        conv.isGroupChat();
+        return conv;
+    }
+
+}
@@ -38,15 +38,18 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.SearchView;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.ListAdapter;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
+import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.data.Conversation;
@@ -56,11 +59,11 @@ import org.kontalk.provider.MyMessages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.sync.Syncer;
-import org.kontalk.ui.adapter.ConversationListAdapter;
 import org.kontalk.ui.prefs.HelpPreference;
 import org.kontalk.ui.prefs.PreferencesActivity;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.StartupTrace;
 import org.kontalk.util.XMPPUtils;
 
 
@@ -89,11 +92,16 @@ public class ConversationsActivity extends MainActivity
 
     private static final int REQUEST_CONTACT_PICKER = 7720;
 
+    /** Time from activity creation to its first frame in milliseconds (0 until drawn). */
+    private volatile long mFirstFrameTime;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        long createStart = StartupTrace.begin();
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.conversations_screen);
+        traceFirstFrame(createStart);
 
         setupToolbar(false, false);
 
@@ -104,6 +112,31 @@ public class ConversationsActivity extends MainActivity
             handleIntent(getIntent());
     }
 
+    private void traceFirstFrame(final long createStart) {
+        final View decor = getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                long now = StartupTrace.end(TAG + " first frame", createStart);
+                mFirstFrameTime = Math.max(1, (now - createStart) / 1000000);
+
+                // first activity drawn: startup is completed
+                List<StartupTrace.Entry> trace = StartupTrace.finish();
+                if (trace != null) {
+                    Log.d(TAG, "first frame " + StartupTrace.elapsed() + " ms after process start\n" +
+                        StartupTrace.format(trace));
+                }
+                return true;
+            }
+        });
+    }
+
+    @VisibleForTesting
+    long getFirstFrameTime() {
+        return mFirstFrameTime;
+    }
+
     /** Called when a new intent is sent to the activity (if already started). */
     @Override
     protected void onNewIntent(Intent intent) {
@@ -166,9 +199,8 @@ public class ConversationsActivity extends MainActivity
     public boolean onSearchRequested() {
         ConversationListFragment fragment = getListFragment();
 
-        ListAdapter list = fragment.getListAdapter();
         // no data found
-        if (list == null || list.getCount() == 0)
+        if (!fragment.hasListItems())
             return false;
 
         toggleSearch();
@@ -381,7 +413,7 @@ public class ConversationsActivity extends MainActivity
 
     public void openConversation(Conversation conv, int position) {
         if (isDualPane()) {
-            mFragment.getListView().setItemChecked(position, true);
+            mFragment.setSelectedItem(position);
 
             // get the old fragment
             AbstractComposeFragment f = getCurrentConversation();
@@ -573,9 +605,7 @@ public class ConversationsActivity extends MainActivity
         // select the current conversation item
         AbstractComposeFragment f = getCurrentConversation();
         if (f != null) {
-            int position = ((ConversationListAdapter) mFragment.getListAdapter())
-                .getItemPosition(f.getUserId());
-            mFragment.getListView().setItemChecked(position, true);
+            mFragment.setSelectedItem(f.getUserId());
         }
     }
 
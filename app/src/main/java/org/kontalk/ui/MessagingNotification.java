@@ -20,12 +20,16 @@ package org.kontalk.ui;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jxmpp.util.XmppStringUtils;
 
@@ -42,6 +46,11 @@ import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.BigPictureStyle;
 import android.support.v4.app.NotificationCompat.InboxStyle;
@@ -50,6 +59,7 @@ import android.support.v4.app.NotificationCompat.Style;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
@@ -104,6 +114,7 @@ public class MessagingNotification {
         Groups.GROUP_JID,
         Groups.SUBJECT,
         Messages.TIMESTAMP,
+        Messages._ID,
     };
 
     // mapped to MESSAGES_UNREAD_PROJECTION
@@ -118,6 +129,27 @@ public class MessagingNotification {
     private static final int COLUMN_MESSAGES_GROUP_JID = 8;
     private static final int COLUMN_MESSAGES_GROUP_SUBJECT = 9;
     private static final int COLUMN_MESSAGES_TIMESTAMP = 10;
+    private static final int COLUMN_MESSAGES_ID = 11;
+
+    /** Just enough data to compare unread messages with the notification model. */
+    private static final String[] MESSAGES_UNREAD_ID_PROJECTION =
+    {
+        Messages._ID,
+        Messages.ENCRYPTED,
+        Groups.SUBJECT,
+    };
+
+    // mapped to MESSAGES_UNREAD_ID_PROJECTION
+    private static final int COLUMN_UNREAD_ID = 0;
+    private static final int COLUMN_UNREAD_ENCRYPTED = 1;
+    private static final int COLUMN_UNREAD_GROUP_SUBJECT = 2;
+
+    /** Maximum number of message ids loaded in a single query. */
+    private static final int MAX_QUERY_IDS = 200;
+    /** Minimum interval between delayed notification updates. */
+    private static final long MIN_UPDATE_INTERVAL = 1000;
+    /** Maximum number of cached notification avatars. */
+    private static final int MAX_CACHED_AVATARS = 8;
 
     private static final String[] THREADS_UNREAD_PROJECTION =
     {
@@ -147,9 +179,24 @@ public class MessagingNotification {
         Messages.NEW + " <> 0 AND " +
         Messages.DIRECTION + " = " + Messages.DIRECTION_IN;
 
-    /** Pending delayed notification update flag. */
+    private static final int MSG_UPDATE = 1;
+
+    /** Notification worker: delayed updates are coalesced here. */
+    private static Handler sWorker;
+    /** True if a coalesced delayed update should start notification alerts. */
     @SuppressWarnings("WeakerAccess")
-    static volatile boolean sPending;
+    static final AtomicBoolean sPendingNew = new AtomicBoolean();
+    /** Uptime of the last notification update. */
+    private static volatile long sLastUpdate;
+
+    /** Unread messages currently notified (big notifications only). */
+    private static final UnreadModel sModel = new UnreadModel();
+    /** Set when some contact has changed and cached names must be reloaded. */
+    @SuppressWarnings("WeakerAccess")
+    static final AtomicBoolean sContactsChanged = new AtomicBoolean();
+    /** Avatars already resized for notifications. */
+    @SuppressWarnings("WeakerAccess")
+    static final LruCache<String, Bitmap> sAvatars = new LruCache<>(MAX_CACHED_AVATARS);
 
     /** Temporary disable all notifications flag */
     private static volatile boolean sDisabled;
@@ -169,6 +216,16 @@ public class MessagingNotification {
     private MessagingNotification() {}
 
     public static void init(Context context) {
+        Contact.registerContactChangeListener(new Contact.ContactChangeListener() {
+            @Override
+            public void onContactInvalidated(String userId) {
+                if (userId != null)
+                    sAvatars.remove(userId);
+                else
+                    sAvatars.evictAll();
+                sContactsChanged.set(true);
+            }
+        });
     }
 
     public static void setPaused(String jid) {
@@ -197,17 +254,38 @@ public class MessagingNotification {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
     }
 
-    /** Starts messages notification updates in another thread. */
-    public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
-        if (!sPending) {
-            sPending = true;
-            new Thread(new Runnable() {
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread("MessagingNotification", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper(), new Handler.Callback() {
                 @Override
-                public void run() {
-                    updateMessagesNotification(context, isNew);
-                    sPending = false;
+                public boolean handleMessage(Message msg) {
+                    if (msg.what == MSG_UPDATE) {
+                        updateMessagesNotification((Context) msg.obj, sPendingNew.getAndSet(false));
+                        return true;
+                    }
+                    return false;
                 }
-            }).start();
+            });
+        }
+        return sWorker;
+    }
+
+    /**
+     * Starts messages notification updates in the notification worker.
+     * Requests coming while an update is already scheduled are merged into it
+     * and updates are not executed more often than {@link #MIN_UPDATE_INTERVAL}.
+     */
+    public static void delayedUpdateMessagesNotification(Context context, boolean isNew) {
+        if (isNew)
+            sPendingNew.set(true);
+
+        Handler worker = getWorker();
+        if (!worker.hasMessages(MSG_UPDATE)) {
+            long delay = Math.max(0, sLastUpdate + MIN_UPDATE_INTERVAL - SystemClock.uptimeMillis());
+            worker.sendMessageDelayed(worker.obtainMessage(MSG_UPDATE,
+                context.getApplicationContext()), delay);
         }
     }
 
@@ -222,39 +300,8 @@ public class MessagingNotification {
         if (account == null)
             return;
 
-        // if notifying new messages, wait a little bit
-        // to let all incoming messages come through
-        /*
-        FIXME this is useless because message are slow to arrive anyway
-        (time to receive packs, store messages in db, etc. wastes too much time
-        if (isNew) {
-            try {
-                Thread.sleep(500);
-            }
-            catch (InterruptedException e) {
-                // ignored
-            }
-        }
-        */
-
-        ContentResolver res = context.getContentResolver();
-        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
-
         String query = MESSAGES_UNREAD_SELECTION;
         String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
-        }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
-        }
 
         // is there a peer to not notify for?
         final String paused = sPaused;
@@ -264,7 +311,108 @@ public class MessagingNotification {
             args = new String[] { paused, paused };
         }
 
-        Cursor c = res.query(uri, proj, query, args, order);
+        if (supportsBigNotifications()) {
+            synchronized (sModel) {
+                updateBigNotification(context, account, isNew, query, args);
+            }
+        }
+        else {
+            updateLegacyNotification(context, isNew, query, args);
+        }
+
+        sLastUpdate = SystemClock.uptimeMillis();
+
+        /* TODO take this from configuration
+        boolean quickReply = false;
+        if (isNew && quickReply) {
+            Intent i = new Intent(context.getApplicationContext(), QuickReplyActivity.class);
+            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
+            i.putExtra("org.kontalk.quickreply.FROM", accumulator.getLastMessagePeer());
+            i.putExtra("org.kontalk.quickreply.MESSAGE", accumulator.getLastMessageText());
+            i.putExtra("org.kontalk.quickreply.OPEN_INTENT", accumulator.getLastMessagePendingIntent());
+            context.startActivity(i);
+        }
+        */
+    }
+
+    /**
+     * Updates the unread messages model with the changes since the last
+     * update and posts a notification built from it. Must be called with
+     * the model lock held.
+     */
+    private static void updateBigNotification(Context context, Account account, boolean isNew, String query, String[] args) {
+        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+
+        boolean changed = sModel.update(context, query, args);
+        if (sContactsChanged.getAndSet(false)) {
+            // names and persons must be reloaded
+            sModel.invalidate();
+            changed = true;
+        }
+
+        // no unread messages - delete notification
+        int unread = sModel.size();
+        if (unread == 0) {
+            sModel.posted = false;
+            nm.cancel(NOTIFICATION_ID_MESSAGES);
+            return;
+        }
+
+        // notifications are disabled
+        if (!Preferences.getNotificationsEnabled(context) || sDisabled) {
+            sModel.posted = false;
+            return;
+        }
+
+        // notification is already up to date
+        if (sModel.posted && !changed && !isNew)
+            return;
+
+        List<NotificationConversation> conversations = sModel.getConversations();
+        Set<Uri> conversationIds = new HashSet<>(conversations.size());
+        long latestTimestamp = 0;
+        for (NotificationConversation conv : conversations) {
+            conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, conv.getThreadId()));
+            latestTimestamp = Math.max(latestTimestamp, conv.getLastMessage().timestamp);
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
+        NotificationGenerator ngen = new NotificationGenerator(context, builder, conversations);
+
+        long threadId = conversations.get(0).getThreadId();
+        int convCount = ngen.build(account, unread,
+            ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+
+        builder.setSmallIcon(R.drawable.ic_stat_notify);
+        builder.setVisibility(NotificationCompat.VISIBILITY_PRIVATE);
+
+        Intent ni;
+        // more than one unread conversation - open conversations list
+        if (convCount > 1) {
+            ni = new Intent(context, ConversationsActivity.class);
+            ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                | Intent.FLAG_ACTIVITY_SINGLE_TOP
+                | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        }
+        // one unread conversation - open compose message on that thread
+        else {
+            ni = ComposeMessage.fromConversation(context, threadId);
+        }
+        PendingIntent pi = createPendingIntent(context, ni);
+
+        builder.setContentIntent(pi);
+
+        notify(context, builder, isNew, conversationIds, latestTimestamp);
+        sModel.posted = true;
+    }
+
+    /** Updates the notification for unread threads. Used only pre-JB. */
+    private static void updateLegacyNotification(Context context, boolean isNew, String query, String[] args) {
+        ContentResolver res = context.getContentResolver();
+        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+
+        Cursor c = res.query(Threads.CONTENT_URI, THREADS_UNREAD_PROJECTION,
+            query, args, Threads.INVERTED_SORT_ORDER);
 
         // this shouldn't happen, but who knows...
         if (c == null) {
@@ -290,123 +438,75 @@ public class MessagingNotification {
         Set<Uri> conversationIds = new HashSet<>(unread);
         long latestTimestamp = 0;
 
-        if (supportsBigNotifications()) {
-            NotificationGenerator ngen = new NotificationGenerator(context, builder);
-
-            long id = 0;
-            while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(COLUMN_MESSAGES_THREAD_ID);
-                String peer = c.getString(COLUMN_MESSAGES_PEER);
-                String mime = c.getString(COLUMN_MESSAGES_BODY_MIME);
-                byte[] content = c.getBlob(COLUMN_MESSAGES_BODY_CONTENT);
-                String attMime = c.getString(COLUMN_MESSAGES_ATTACHMENT_MIME);
-                String attPreviewPath = c.getString(COLUMN_MESSAGES_ATTACHMENT_PREVIEW_PATH);
-                boolean encrypted = c.getInt(COLUMN_MESSAGES_ENCRYPTED) != 0;
-                String groupJid = c.getString(COLUMN_MESSAGES_GROUP_JID);
-                String groupSubject = c.getString(COLUMN_MESSAGES_GROUP_SUBJECT);
-                long timestamp = c.getLong(COLUMN_MESSAGES_TIMESTAMP);
-
-                if (!c.isNull(COLUMN_MESSAGES_GEO_LATITUDE)) {
-                    content = context.getString(R.string.notification_location).getBytes();
-                }
+        // loop all threads and accumulate them
+        MessageAccumulator accumulator = new MessageAccumulator(context);
+        while (c.moveToNext()) {
+            long threadId = c.getLong(COLUMN_THREADS_ID);
+            String peer = c.getString(COLUMN_THREADS_PEER);
+            String mime = c.getString(COLUMN_THREADS_MIME);
+            String content = c.getString(COLUMN_THREADS_CONTENT);
+            boolean encrypted = c.getInt(COLUMN_THREADS_ENCRYPTED) != 0;
+            int unreadCount = c.getInt(COLUMN_THREADS_UNREAD);
+            String groupJid = c.getString(COLUMN_THREADS_GROUP_JID);
+            String groupSubject = c.getString(COLUMN_THREADS_GROUP_SUBJECT);
+            long timestamp = c.getLong(COLUMN_THREADS_TIMESTAMP);
 
-                // store conversation id for intents
-                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, id));
-
-                Uri attPreview = attPreviewPath != null ? Uri.fromFile(new File(attPreviewPath)) : null;
-                ngen.addMessage(peer, mime, content, attMime, attPreview, encrypted, timestamp, groupJid, groupSubject);
-                latestTimestamp = Math.max(latestTimestamp, timestamp);
+            if (encrypted) {
+                content = context.getString(R.string.text_encrypted);
             }
-            c.close();
-
-            int convCount = ngen.build(account, unread, conversationIds.iterator().next());
-
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setVisibility(NotificationCompat.VISIBILITY_PRIVATE);
-
-            Intent ni;
-            // more than one unread conversation - open conversations list
-            if (convCount > 1) {
-                ni = new Intent(context, ConversationsActivity.class);
-                ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            else if (GroupCommandComponent.supportsMimeType(mime)) {
+                // content is in a special format
+                GroupThreadContent parsed = GroupThreadContent.parseIncoming(content);
+                try {
+                    peer = parsed.sender;
+                    content = GroupCommandComponent.getTextContent(context, parsed.command, true);
+                }
+                catch (UnsupportedOperationException e) {
+                    // TODO using another string
+                    content = context.getString(R.string.peer_unknown);
+                }
             }
-            // one unread conversation - open compose message on that thread
-            else {
-                ni = ComposeMessage.fromConversation(context, id);
+            else if (LocationComponent.supportsMimeType(mime)) {
+                content = context.getString(R.string.notification_location);
+            }
+            else if (content == null) {
+                content = CompositeMessage.getSampleTextContent(mime);
             }
-            PendingIntent pi = createPendingIntent(context, ni);
 
-            builder.setContentIntent(pi);
+            accumulator.accumulate(
+                threadId,
+                peer,
+                content,
+                unreadCount,
+                // group data
+                groupJid,
+                groupSubject
+            );
+            // actually we don't need to check for max since conversations were selected
+            // in timestamp order, but whatever...
+            latestTimestamp = Math.max(latestTimestamp, timestamp);
+            conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
         }
+        c.close();
 
-        else {
-            // loop all threads and accumulate them
-            MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                long threadId = c.getLong(COLUMN_THREADS_ID);
-                String peer = c.getString(COLUMN_THREADS_PEER);
-                String mime = c.getString(COLUMN_THREADS_MIME);
-                String content = c.getString(COLUMN_THREADS_CONTENT);
-                boolean encrypted = c.getInt(COLUMN_THREADS_ENCRYPTED) != 0;
-                int unreadCount = c.getInt(COLUMN_THREADS_UNREAD);
-                String groupJid = c.getString(COLUMN_THREADS_GROUP_JID);
-                String groupSubject = c.getString(COLUMN_THREADS_GROUP_SUBJECT);
-                long timestamp = c.getLong(COLUMN_THREADS_TIMESTAMP);
-
-                if (encrypted) {
-                    content = context.getString(R.string.text_encrypted);
-                }
-                else if (GroupCommandComponent.supportsMimeType(mime)) {
-                    // content is in a special format
-                    GroupThreadContent parsed = GroupThreadContent.parseIncoming(content);
-                    try {
-                        peer = parsed.sender;
-                        content = GroupCommandComponent.getTextContent(context, parsed.command, true);
-                    }
-                    catch (UnsupportedOperationException e) {
-                        // TODO using another string
-                        content = context.getString(R.string.peer_unknown);
-                    }
-                }
-                else if (LocationComponent.supportsMimeType(mime)) {
-                    content = context.getString(R.string.notification_location);
-                }
-                else if (content == null) {
-                    content = CompositeMessage.getSampleTextContent(mime);
-                }
-
-                accumulator.accumulate(
-                    threadId,
-                    peer,
-                    content,
-                    unreadCount,
-                    // group data
-                    groupJid,
-                    groupSubject
-                );
-                // actually we don't need to check for max since conversations were selected
-                // in timestamp order, but whatever...
-                latestTimestamp = Math.max(latestTimestamp, timestamp);
-                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-            }
-            c.close();
-
-            builder.setTicker(accumulator.getTicker());
-            Contact contact = accumulator.getContact();
-            if (contact != null) {
-                Bitmap avatar = contact.getAvatarBitmap(context, true);
-                builder.setLargeIcon(avatar);
-            }
-            builder.setNumber(accumulator.unreadCount);
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setContentTitle(accumulator.getTitle());
-            builder.setContentText(accumulator.getText());
-            builder.setContentIntent(accumulator.getPendingIntent());
+        builder.setTicker(accumulator.getTicker());
+        Contact contact = accumulator.getContact();
+        if (contact != null) {
+            Bitmap avatar = contact.getAvatarBitmap(context, true);
+            builder.setLargeIcon(avatar);
         }
+        builder.setNumber(accumulator.unreadCount);
+        builder.setSmallIcon(R.drawable.ic_stat_notify);
+        builder.setContentTitle(accumulator.getTitle());
+        builder.setContentText(accumulator.getText());
+        builder.setContentIntent(accumulator.getPendingIntent());
+
+        notify(context, builder, isNew, conversationIds, latestTimestamp);
+    }
 
+    /** Adds common data to a messages notification and posts it. */
+    private static void notify(Context context, NotificationCompat.Builder builder,
+            boolean isNew, Set<Uri> conversationIds, long latestTimestamp) {
         // shouldn't happen, but let's check it anyway
         if (latestTimestamp > 0)
             builder.setWhen(latestTimestamp);
@@ -425,19 +525,19 @@ public class MessagingNotification {
         // features (priority, category)
         setFeatures(context, builder);
 
+        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
         nm.notify(NOTIFICATION_ID_MESSAGES, builder.build());
+    }
 
-        /* TODO take this from configuration
-        boolean quickReply = false;
-        if (isNew && quickReply) {
-            Intent i = new Intent(context.getApplicationContext(), QuickReplyActivity.class);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
-            i.putExtra("org.kontalk.quickreply.FROM", accumulator.getLastMessagePeer());
-            i.putExtra("org.kontalk.quickreply.MESSAGE", accumulator.getLastMessageText());
-            i.putExtra("org.kontalk.quickreply.OPEN_INTENT", accumulator.getLastMessagePendingIntent());
-            context.startActivity(i);
+    /** Returns the avatar of a contact resized for the notification large icon. */
+    @SuppressWarnings("WeakerAccess")
+    static Bitmap getAvatar(Context context, String userId) {
+        Bitmap avatar = sAvatars.get(userId);
+        if (avatar == null) {
+            avatar = Contact.findByUserId(context, userId).getAvatarBitmap(context, true);
+            sAvatars.put(userId, avatar);
         }
-        */
+        return avatar;
     }
 
     /** Adds proper alerts to the notification. */
@@ -476,18 +576,28 @@ public class MessagingNotification {
 
     private static final class NotificationConversation {
         static final class ConversationMessage {
+            final long id;
+            final long threadId;
             final String peer;
             final CharSequence content;
             final long timestamp;
             final String mime;
             final Uri media;
-
-            ConversationMessage(String peer, CharSequence content, long timestamp, String mime, Uri media) {
+            final boolean encrypted;
+            /** Key of the conversation this message belongs to. */
+            final String conversationKey;
+
+            ConversationMessage(long id, long threadId, String peer, CharSequence content,
+                    long timestamp, String mime, Uri media, boolean encrypted, String conversationKey) {
+                this.id = id;
+                this.threadId = threadId;
                 this.peer = peer;
                 this.content = content;
                 this.timestamp = timestamp;
                 this.mime = mime;
                 this.media = media;
+                this.encrypted = encrypted;
+                this.conversationKey = conversationKey;
             }
 
             @Override
@@ -496,23 +606,329 @@ public class MessagingNotification {
             }
         }
 
-        final List<ConversationMessage> content;
+        /** Messages in database order. */
+        final List<ConversationMessage> content = new ArrayList<>();
         final String groupJid;
-        final String groupSubject;
+        String groupSubject;
 
-        final Set<String> allPeers = new HashSet<>();
-        CharSequence lastContent;
+        // cached notification payload, rebuilt only when the conversation changes
+        private List<MessagingStyle.Message> mStyleMessages;
+        private SpannableStringBuilder mAllContent;
+        private List<String> mPersons;
+        private String mLastName;
 
-        NotificationConversation(List<ConversationMessage> content, CharSequence lastContent, String groupJid, String groupSubject) {
-            this.content = content;
-            this.lastContent = lastContent;
+        NotificationConversation(String groupJid, String groupSubject) {
             this.groupJid = groupJid;
             this.groupSubject = groupSubject;
         }
 
-        public void addContent(ConversationMessage message) {
-            this.content.add(message);
-            this.allPeers.add(message.peer);
+        void addContent(ConversationMessage message) {
+            // messages usually come in order
+            int index = content.size();
+            while (index > 0 && content.get(index - 1).id > message.id)
+                index--;
+            content.add(index, message);
+            invalidate();
+        }
+
+        void removeContent(ConversationMessage message) {
+            content.remove(message);
+            invalidate();
+        }
+
+        ConversationMessage getFirstMessage() {
+            return content.get(0);
+        }
+
+        ConversationMessage getLastMessage() {
+            return content.get(content.size() - 1);
+        }
+
+        CharSequence getLastContent() {
+            return getLastMessage().content;
+        }
+
+        long getThreadId() {
+            return getLastMessage().threadId;
+        }
+
+        void invalidate() {
+            mStyleMessages = null;
+            mAllContent = null;
+            mPersons = null;
+            mLastName = null;
+        }
+
+        /** Resolves contacts and builds the cached payload if needed. */
+        private void prepare(Context context) {
+            if (mStyleMessages != null)
+                return;
+
+            Map<String, String> names = new LinkedHashMap<>();
+            List<MessagingStyle.Message> messages = new ArrayList<>(content.size());
+            // needed only for custom direct reply
+            SpannableStringBuilder allContent = supportsDirectReply() ? null : new SpannableStringBuilder();
+            String name = null;
+            for (ConversationMessage message : content) {
+                name = names.get(message.peer);
+                if (name == null) {
+                    name = Contact.findByUserId(context, message.peer).getDisplayName();
+                    names.put(message.peer, name);
+                }
+
+                messages.add(new MessagingStyle.Message(message.content, message.timestamp, name));
+
+                if (allContent != null) {
+                    if (allContent.length() > 0)
+                        allContent.append("\n");
+
+                    int start = allContent.length();
+                    allContent.append(name).append(':').append(' ');
+                    allContent.setSpan(new StyleSpan(Typeface.BOLD), start, start + name.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    allContent.append(message.toString());
+                }
+            }
+
+            List<String> persons = new ArrayList<>(names.size());
+            for (String peer : names.keySet()) {
+                Contact contact = Contact.findByUserId(context, peer);
+                Uri personUri = contact.getUri();
+                if (personUri == null && contact.getNumber() != null) {
+                    // no contact uri available, try phone number lookup
+                    try {
+                        personUri = Uri.parse("tel:" + contact.getNumber());
+                    }
+                    catch (Exception ignored) {
+                    }
+                }
+                if (personUri != null)
+                    persons.add(personUri.toString());
+            }
+
+            mStyleMessages = messages;
+            mAllContent = allContent;
+            mPersons = persons;
+            mLastName = name;
+        }
+
+        List<MessagingStyle.Message> getStyleMessages(Context context) {
+            prepare(context);
+            return mStyleMessages;
+        }
+
+        SpannableStringBuilder getAllContent(Context context) {
+            prepare(context);
+            return mAllContent;
+        }
+
+        /** Person URIs of all senders. */
+        List<String> getPersons(Context context) {
+            prepare(context);
+            return mPersons;
+        }
+
+        /** Display name of the sender of the last message. */
+        String getLastName(Context context) {
+            prepare(context);
+            return mLastName;
+        }
+    }
+
+    /**
+     * In-memory copy of the unread messages being notified, grouped by
+     * conversation. It is kept up to date by comparing the ids of the unread
+     * messages with the ones already known: only new messages are loaded and
+     * parsed, and only conversations actually changed need to be rebuilt.
+     * Used only for big notifications (JB+).
+     */
+    private static final class UnreadModel {
+        private final Map<Long, NotificationConversation.ConversationMessage> mMessages = new HashMap<>();
+        private final Map<String, NotificationConversation> mConversations = new HashMap<>();
+
+        /** True if the notification for the current state has been posted. */
+        boolean posted;
+
+        /**
+         * Applies inserted, read and deleted messages to the model.
+         * @return true if the model has changed
+         */
+        boolean update(Context context, String selection, String[] args) {
+            ContentResolver res = context.getContentResolver();
+            Cursor c = res.query(Messages.CONTENT_URI, MESSAGES_UNREAD_ID_PROJECTION,
+                selection, args, null);
+
+            // this shouldn't happen, but who knows...
+            if (c == null) {
+                boolean changed = !mMessages.isEmpty();
+                mMessages.clear();
+                mConversations.clear();
+                return changed;
+            }
+
+            boolean changed = false;
+            Set<Long> unread = new HashSet<>(c.getCount());
+            List<Long> added = new ArrayList<>();
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(COLUMN_UNREAD_ID);
+                    unread.add(id);
+
+                    NotificationConversation.ConversationMessage msg = mMessages.get(id);
+                    if (msg != null && msg.encrypted != (c.getInt(COLUMN_UNREAD_ENCRYPTED) != 0)) {
+                        // message has been decrypted in the meantime, reload it
+                        removeMessage(msg);
+                        msg = null;
+                    }
+
+                    if (msg == null) {
+                        added.add(id);
+                    }
+                    else {
+                        NotificationConversation conv = mConversations.get(msg.conversationKey);
+                        String subject = c.getString(COLUMN_UNREAD_GROUP_SUBJECT);
+                        if (conv.groupJid != null && !TextUtils.equals(conv.groupSubject, subject)) {
+                            conv.groupSubject = subject;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            finally {
+                c.close();
+            }
+
+            // read or deleted messages
+            if (unread.size() < mMessages.size() + added.size()) {
+                List<NotificationConversation.ConversationMessage> removed = new ArrayList<>();
+                for (NotificationConversation.ConversationMessage msg : mMessages.values()) {
+                    if (!unread.contains(msg.id))
+                        removed.add(msg);
+                }
+                for (NotificationConversation.ConversationMessage msg : removed)
+                    removeMessage(msg);
+                changed |= removed.size() > 0;
+            }
+
+            // new messages
+            for (int i = 0; i < added.size(); i += MAX_QUERY_IDS) {
+                List<Long> ids = added.subList(i, Math.min(added.size(), i + MAX_QUERY_IDS));
+                c = res.query(Messages.CONTENT_URI, MESSAGES_UNREAD_PROJECTION,
+                    "(" + selection + ") AND " + Messages._ID + " IN (" + TextUtils.join(",", ids) + ")",
+                    args, null);
+                if (c == null)
+                    continue;
+
+                try {
+                    while (c.moveToNext()) {
+                        addMessage(context, c);
+                        changed = true;
+                    }
+                }
+                finally {
+                    c.close();
+                }
+            }
+
+            return changed;
+        }
+
+        int size() {
+            return mMessages.size();
+        }
+
+        /** Drops the cached payload of all conversations. */
+        void invalidate() {
+            for (NotificationConversation conv : mConversations.values())
+                conv.invalidate();
+        }
+
+        /** Returns the conversations in order of their first unread message. */
+        List<NotificationConversation> getConversations() {
+            List<NotificationConversation> list = new ArrayList<>(mConversations.values());
+            Collections.sort(list, new Comparator<NotificationConversation>() {
+                @Override
+                public int compare(NotificationConversation lhs, NotificationConversation rhs) {
+                    long lid = lhs.getFirstMessage().id;
+                    long rid = rhs.getFirstMessage().id;
+                    return lid < rid ? -1 : (lid == rid ? 0 : 1);
+                }
+            });
+            return list;
+        }
+
+        private void addMessage(Context context, Cursor c) {
+            long id = c.getLong(COLUMN_MESSAGES_ID);
+            long threadId = c.getLong(COLUMN_MESSAGES_THREAD_ID);
+            String peer = c.getString(COLUMN_MESSAGES_PEER);
+            String mime = c.getString(COLUMN_MESSAGES_BODY_MIME);
+            byte[] content = c.getBlob(COLUMN_MESSAGES_BODY_CONTENT);
+            String attMime = c.getString(COLUMN_MESSAGES_ATTACHMENT_MIME);
+            String attPreviewPath = c.getString(COLUMN_MESSAGES_ATTACHMENT_PREVIEW_PATH);
+            boolean encrypted = c.getInt(COLUMN_MESSAGES_ENCRYPTED) != 0;
+            String groupJid = c.getString(COLUMN_MESSAGES_GROUP_JID);
+            String groupSubject = c.getString(COLUMN_MESSAGES_GROUP_SUBJECT);
+            long timestamp = c.getLong(COLUMN_MESSAGES_TIMESTAMP);
+
+            if (!c.isNull(COLUMN_MESSAGES_GEO_LATITUDE)) {
+                content = context.getString(R.string.notification_location).getBytes();
+            }
+
+            String key = conversationKey(peer, groupJid);
+            NotificationConversation conv = mConversations.get(key);
+            if (conv == null) {
+                conv = new NotificationConversation(groupJid, groupSubject);
+                mConversations.put(key, conv);
+            }
+            else if (groupJid != null) {
+                conv.groupSubject = groupSubject;
+            }
+
+            Uri attPreview = attPreviewPath != null ? Uri.fromFile(new File(attPreviewPath)) : null;
+            NotificationConversation.ConversationMessage msg = new NotificationConversation
+                .ConversationMessage(id, threadId, peer,
+                    getTextContent(context, mime, content, attMime, encrypted),
+                    timestamp, attMime, attPreview, encrypted, key);
+            conv.addContent(msg);
+            mMessages.put(id, msg);
+        }
+
+        private void removeMessage(NotificationConversation.ConversationMessage msg) {
+            mMessages.remove(msg.id);
+            NotificationConversation conv = mConversations.get(msg.conversationKey);
+            if (conv != null) {
+                conv.removeContent(msg);
+                if (conv.content.isEmpty())
+                    mConversations.remove(msg.conversationKey);
+            }
+        }
+
+        private static String conversationKey(String peer, String groupJid) {
+            return groupJid != null ? groupJid : peer;
+        }
+
+        private static String getTextContent(Context context, String mime, byte[] content, String attMime, boolean encrypted) {
+            String textContent;
+
+            if (encrypted) {
+                textContent = context.getString(R.string.text_encrypted);
+            }
+            else if (content == null && attMime != null) {
+                textContent = CompositeMessage.getSampleTextContent(attMime);
+            }
+            else {
+                textContent = content != null ? new String(content) : "";
+                if (GroupCommandComponent.supportsMimeType(mime)) {
+                    try {
+                        textContent = GroupCommandComponent.getTextContent(context, textContent, true);
+                    }
+                    catch (UnsupportedOperationException e) {
+                        // TODO using another string
+                        textContent = context.getString(R.string.peer_unknown);
+                    }
+                }
+            }
+
+            return textContent;
         }
     }
 
@@ -621,62 +1037,22 @@ public class MessagingNotification {
     }
 
     /**
-     * Takes messages to be notified and fills a notification builder.
+     * Takes conversations to be notified and fills a notification builder.
      * Used only for big notifications (JB+).
      */
     private static final class NotificationGenerator {
         private final Context mContext;
         private final NotificationCompat.Builder mBuilder;
-        private final Map<String, NotificationConversation> mConversations;
+        private final List<NotificationConversation> mConversations;
 
-        NotificationGenerator(Context context, NotificationCompat.Builder builder) {
+        NotificationGenerator(Context context, NotificationCompat.Builder builder, List<NotificationConversation> conversations) {
             mContext = context;
             mBuilder = builder;
-            mConversations = new LinkedHashMap<>();
-        }
-
-        void addMessage(String peer, String mime, byte[] content, String attMime, Uri attPreview, boolean encrypted, long timestamp,
-                String groupJid, String groupSubject) {
-            String key = conversationKey(peer, groupJid);
-            NotificationConversation conv = mConversations.get(key);
-            if (conv == null) {
-                conv = new NotificationConversation(new LinkedList<NotificationConversation.ConversationMessage>(),
-                    null, groupJid, groupSubject);
-                mConversations.put(key, conv);
-            }
-
-            String textContent;
-
-            if (encrypted) {
-                textContent = mContext.getString(R.string.text_encrypted);
-            }
-            else if (content == null && attMime != null) {
-                textContent = CompositeMessage.getSampleTextContent(attMime);
-            }
-            else {
-                textContent = content != null ? new String(content) : "";
-                if (GroupCommandComponent.supportsMimeType(mime)) {
-                    try {
-                        textContent = GroupCommandComponent.getTextContent(mContext, textContent, true);
-                    }
-                    catch (UnsupportedOperationException e) {
-                        // TODO using another string
-                        textContent = mContext.getString(R.string.peer_unknown);
-                    }
-                }
-            }
-
-            conv.addContent(new NotificationConversation.ConversationMessage(peer, textContent, timestamp, attMime, attPreview));
-            conv.lastContent = textContent;
-        }
-
-        private String conversationKey(String peer, String groupJid) {
-            return groupJid != null ? groupJid : peer;
+            mConversations = conversations;
         }
 
         /**
-         * Call this when all messages are added. We will fill the builder with
-         * relevant information.
+         * Fills the builder with relevant information.
          * @param account account information
          * @param unread total number of unread messages
          * @param firstThreadUri Uri of first conversation, used for reply intent
@@ -700,15 +1076,11 @@ public class MessagingNotification {
                 // text: comma separated names (TODO RTL?)
                 StringBuilder btext = new StringBuilder();
                 int count = 0;
-                for (String convId : mConversations.keySet()) {
-                    NotificationConversation conv = mConversations.get(convId);
+                for (NotificationConversation conv : mConversations) {
                     count++;
 
                     // we'll take the last message and user who sent it
-                    String lastPeer = ((LinkedList<NotificationConversation.ConversationMessage>) conv.content)
-                        .getLast().peer;
-                    Contact contact = Contact.findByUserId(mContext, lastPeer);
-                    String name = contact.getDisplayName();
+                    String name = conv.getLastName(mContext);
 
                     if (conv.groupJid != null) {
                         name = mContext.getResources().getString(R.string.notification_group_title,
@@ -717,20 +1089,8 @@ public class MessagingNotification {
                     }
 
                     // add persons to notification
-                    for (String peer : conv.allPeers) {
-                        Contact lContact = Contact.findByUserId(mContext, peer);
-                        Uri personUri = lContact.getUri();
-                        if (personUri == null && lContact.getNumber() != null) {
-                            // no contact uri available, try phone number lookup
-                            try {
-                                personUri = Uri.parse("tel:" + lContact.getNumber());
-                            }
-                            catch (Exception ignored) {
-                            }
-                        }
-                        if (personUri != null)
-                            mBuilder.addPerson(personUri.toString());
-                    }
+                    for (String person : conv.getPersons(mContext))
+                        mBuilder.addPerson(person);
 
                     if (btext.length() > 0)
                         btext.append(", ");
@@ -744,7 +1104,7 @@ public class MessagingNotification {
                             .getColor(mContext, R.color.notification_name_color)),
                             0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                         // take just the last message
-                        buf.append(conv.lastContent);
+                        buf.append(conv.getLastContent());
 
                         inboxStyle.addLine(buf);
                     }
@@ -772,14 +1132,12 @@ public class MessagingNotification {
             }
             // one conversation/one group, use MessagingStyle
             else {
-                NotificationConversation conv = mConversations.values().iterator().next();
+                NotificationConversation conv = mConversations.get(0);
                 List<NotificationConversation.ConversationMessage> content = conv.content;
-                CharSequence last = conv.lastContent;
+                CharSequence last = conv.getLastContent();
 
                 // needed only for custom direct reply
-                SpannableStringBuilder allContent = null;
-                if (!supportsDirectReply())
-                    allContent = new SpannableStringBuilder();
+                SpannableStringBuilder allContent = conv.getAllContent(mContext);
 
                 // single image media, use big picture style
                 NotificationConversation.ConversationMessage soloMessage = content.get(0);
@@ -801,26 +1159,11 @@ public class MessagingNotification {
                     }
                 }
 
-                String name = null;
+                String name = conv.getLastName(mContext);
                 if (style == null) {
                     MessagingStyle msgStyle = new MessagingStyle(mContext.getString(R.string.person_me));
-                    int start = 0;
-                    for (NotificationConversation.ConversationMessage message : content) {
-                        Contact contact = Contact.findByUserId(mContext, message.peer);
-                        name = contact.getDisplayName();
-
-                        msgStyle.addMessage(message.content, message.timestamp, name);
-
-                        if (allContent != null) {
-                            if (allContent.length() > 0)
-                                allContent.append("\n");
-
-                            start = allContent.length();
-                            allContent.append(name).append(':').append(' ');
-                            allContent.setSpan(new StyleSpan(Typeface.BOLD), start, start + name.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            allContent.append(message.toString());
-                        }
-                    }
+                    for (MessagingStyle.Message message : conv.getStyleMessages(mContext))
+                        msgStyle.addMessage(message);
 
                     // group ticker
                     if (conv.groupJid != null) {
@@ -833,38 +1176,19 @@ public class MessagingNotification {
 
                     style = msgStyle;
                 }
-                else {
-                    NotificationConversation.ConversationMessage message = content.get(content.size()-1);
-                    Contact contact = Contact.findByUserId(mContext, message.peer);
-                    name = contact.getDisplayName();
-                }
 
                 // name now contains data from the latest message
 
                 // add people data
-                for (String peer : conv.allPeers) {
-                    Contact contact = Contact.findByUserId(mContext, peer);
-                    Uri personUri = contact.getUri();
-                    if (personUri == null && contact.getNumber() != null) {
-                        // no contact uri available, try phone number lookup
-                        try {
-                            personUri = Uri.parse("tel:" + contact.getNumber());
-                        }
-                        catch (Exception ignored) {
-                        }
-                    }
-                    if (personUri != null)
-                        mBuilder.addPerson(personUri.toString());
+                for (String person : conv.getPersons(mContext))
+                    mBuilder.addPerson(person);
 
-                    // avatar (non-group)
-                    if (conv.groupJid == null) {
-                        Bitmap avatar = contact.getAvatarBitmap(mContext, true);
-                        mBuilder.setLargeIcon(avatar);
-                    }
+                // avatar (non-group)
+                if (conv.groupJid == null) {
+                    mBuilder.setLargeIcon(getAvatar(mContext, conv.getLastMessage().peer));
                 }
-
                 // group avatar and ticker
-                if (conv.groupJid != null) {
+                else {
                     mBuilder.setLargeIcon(MessageUtils
                         .drawableToBitmap(ContextCompat
                             .getDrawable(mContext, R.drawable.ic_default_group)));
@@ -590,6 +590,8 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
 
     /** Starts the validation activity. */
     public static void start(Context context) {
+        KeyPairGeneratorService.pregenerate(context);
+
         Intent i = new Intent(context, NumberValidation.class);
         i.putExtra(PARAM_FROM_INTERNAL, true);
         context.startActivity(i);
@@ -18,86 +18,251 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import android.content.Context;
-import android.database.Cursor;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AbsListView.RecyclerListener;
-import android.widget.CursorAdapter;
-import android.widget.ListView;
 
-import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.data.Conversation;
-import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.view.ConversationListItem;
 
 
-public class ConversationListAdapter extends CursorAdapter {
-    private static final String TAG = ConversationsActivity.TAG;
+/**
+ * Conversation list adapter backed by an in-memory snapshot of conversations.
+ * New snapshots are applied with a {@link DiffUtil.DiffResult} so that only
+ * changed rows are bound again.
+ * @author Daniele Ricci
+ */
+public class ConversationListAdapter extends RecyclerView.Adapter<ConversationListAdapter.ViewHolder> {
 
+    private final Context mContext;
     private final LayoutInflater mFactory;
-    private OnContentChangedListener mOnContentChangedListener;
 
-    public ConversationListAdapter(Context context, Cursor cursor, ListView list) {
-        super(context, cursor, false);
+    private List<Conversation> mItems = Collections.emptyList();
+    /** Checked thread IDs. */
+    private final Set<Long> mChecked = new HashSet<>();
+
+    private OnItemClickListener mListener;
+
+    public interface OnItemClickListener {
+        void onItemClick(ConversationListItem view, int position);
+
+        boolean onItemLongClick(ConversationListItem view, int position);
+    }
+
+    public ConversationListAdapter(Context context) {
+        mContext = context;
         mFactory = LayoutInflater.from(context);
+        setHasStableIds(true);
+    }
 
-        list.setRecyclerListener(new RecyclerListener() {
-            public void onMovedToScrapHeap(View view) {
-                if (view instanceof ConversationListItem) {
-                    ((ConversationListItem) view).unbind();
-                }
-            }
-        });
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        mListener = listener;
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (!(view instanceof ConversationListItem)) {
-            Log.e(TAG, "Unexpected bound view: " + view);
-            return;
-        }
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder((ConversationListItem) mFactory
+            .inflate(R.layout.conversation_list_item, parent, false), this);
+    }
 
-        ConversationListItem headerView = (ConversationListItem) view;
-        Conversation conv = Conversation.createFromCursor(context, cursor);
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Conversation conv = mItems.get(position);
+        holder.item.bind(mContext, conv);
+        holder.item.setChecked(mChecked.contains(conv.getThreadId()));
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        holder.item.unbind();
+    }
 
-        headerView.bind(context, conv);
+    @Override
+    public int getItemCount() {
+        return mItems.size();
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return mFactory.inflate(R.layout.conversation_list_item, parent, false);
+    public long getItemId(int position) {
+        return mItems.get(position).getThreadId();
     }
 
-    public interface OnContentChangedListener {
-        void onContentChanged(ConversationListAdapter adapter);
+    public Conversation getItem(int position) {
+        return mItems.get(position);
     }
 
-    public void setOnContentChangedListener(OnContentChangedListener l) {
-        mOnContentChangedListener = l;
+    public boolean isEmpty() {
+        return mItems.isEmpty();
     }
 
-    @Override
-    protected void onContentChanged() {
-        Cursor c = getCursor();
-        if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
-            mOnContentChangedListener.onContentChanged(this);
+    /**
+     * Replaces the current snapshot.
+     * @param items the new snapshot
+     * @param diff differences from the current snapshot, null to refresh everything
+     */
+    public void setItems(List<Conversation> items, DiffUtil.DiffResult diff) {
+        mItems = items;
+
+        // drop checked items that don't exist anymore
+        if (!mChecked.isEmpty()) {
+            Set<Long> ids = new HashSet<>(items.size());
+            for (Conversation conv : items)
+                ids.add(conv.getThreadId());
+            mChecked.retainAll(ids);
         }
+
+        if (diff != null)
+            diff.dispatchUpdatesTo(this);
+        else
+            notifyDataSetChanged();
     }
 
     /** Search for an item and return its position. */
     public int getItemPosition(String peer) {
-        Cursor cursor = getCursor();
-        if (cursor != null) {
-            cursor.moveToPosition(-1);
-            while (cursor.moveToNext()) {
-                if (peer.equals(Conversation.getPeer(cursor)))
-                    return cursor.getPosition();
-            }
+        for (int i = 0, c = mItems.size(); i < c; i++) {
+            if (TextUtils.equals(peer, mItems.get(i).getRecipient()))
+                return i;
         }
         return -1;
     }
 
+    public boolean isItemChecked(int position) {
+        return mChecked.contains(getItemId(position));
+    }
+
+    public void setItemChecked(int position, boolean checked) {
+        long threadId = getItemId(position);
+        if (checked ? mChecked.add(threadId) : mChecked.remove(threadId))
+            notifyItemChanged(position);
+    }
+
+    /** Checks only the given item, -1 to clear. */
+    public void setSingleItemChecked(int position) {
+        long threadId = position >= 0 ? getItemId(position) : 0;
+        if (position >= 0 && mChecked.size() == 1 && mChecked.contains(threadId))
+            return;
+
+        for (int i = 0, c = mItems.size(); i < c && !mChecked.isEmpty(); i++) {
+            if (mChecked.remove(mItems.get(i).getThreadId()))
+                notifyItemChanged(i);
+        }
+        mChecked.clear();
+        if (position >= 0)
+            setItemChecked(position, true);
+    }
+
+    public int getCheckedItemCount() {
+        return mChecked.size();
+    }
+
+    /** Returns the checked conversations, in list order. */
+    public List<Conversation> getCheckedItems() {
+        List<Conversation> checked = new ArrayList<>(mChecked.size());
+        for (Conversation conv : mItems) {
+            if (mChecked.contains(conv.getThreadId()))
+                checked.add(conv);
+        }
+        return checked;
+    }
+
+    public void clearChecked() {
+        if (!mChecked.isEmpty()) {
+            mChecked.clear();
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Computes the differences between two snapshots.
+     * Meant to be called from a background thread.
+     */
+    public static DiffUtil.DiffResult calculateDiff(List<Conversation> oldItems, List<Conversation> newItems) {
+        return DiffUtil.calculateDiff(new ConversationDiffCallback(oldItems, newItems), true);
+    }
+
+    static final class ConversationDiffCallback extends DiffUtil.Callback {
+        private final List<Conversation> mOld;
+        private final List<Conversation> mNew;
+
+        ConversationDiffCallback(List<Conversation> oldItems, List<Conversation> newItems) {
+            mOld = oldItems;
+            mNew = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.get(oldItemPosition).getThreadId() == mNew.get(newItemPosition).getThreadId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            Conversation o = mOld.get(oldItemPosition);
+            Conversation n = mNew.get(newItemPosition);
+            // same instance: not reloaded
+            return o == n || (o.getDate() == n.getDate() &&
+                o.getUnreadCount() == n.getUnreadCount() &&
+                o.getStatus() == n.getStatus() &&
+                o.getRequestStatus() == n.getRequestStatus() &&
+                o.isSticky() == n.isSticky() &&
+                o.isEncrypted() == n.isEncrypted() &&
+                o.getGroupMembership() == n.getGroupMembership() &&
+                // contacts are cached: a new instance means it was invalidated
+                o.getContact() == n.getContact() &&
+                TextUtils.equals(o.getRecipient(), n.getRecipient()) &&
+                TextUtils.equals(o.getSubject(), n.getSubject()) &&
+                TextUtils.equals(o.getMime(), n.getMime()) &&
+                TextUtils.equals(o.getDraft(), n.getDraft()) &&
+                TextUtils.equals(o.getGroupSubject(), n.getGroupSubject()));
+        }
+    }
+
+    public static final class ViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
+        final ConversationListItem item;
+        private final ConversationListAdapter mAdapter;
+
+        ViewHolder(ConversationListItem view, ConversationListAdapter adapter) {
+            super(view);
+            item = view;
+            mAdapter = adapter;
+            view.setOnClickListener(this);
+            view.setOnLongClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && mAdapter.mListener != null)
+                mAdapter.mListener.onItemClick(item, position);
+        }
+
+        @Override
+        public boolean onLongClick(View v) {
+            int position = getAdapterPosition();
+            return position != RecyclerView.NO_POSITION && mAdapter.mListener != null &&
+                mAdapter.mListener.onItemLongClick(item, position);
+        }
+    }
+
 }
@@ -22,6 +22,7 @@ import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
 import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,11 +36,12 @@ import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.AudioPlayerControl;
+import org.kontalk.ui.view.MessageBodyLoader;
 import org.kontalk.ui.view.MessageListItem;
 import org.kontalk.util.MessageUtils;
 
 
-public class MessageListAdapter extends CursorAdapter {
+public class MessageListAdapter extends CursorAdapter implements MessageBodyLoader.Callback {
 
     private static final String TAG = ComposeMessage.TAG;
 
@@ -49,16 +51,25 @@ public class MessageListAdapter extends CursorAdapter {
 
     private AudioPlayerControl mAudioPlayerControl;
 
+    private final ListView mList;
+    /** Full bodies of visible messages, kept outside of the loader cache. */
+    private final LongSparseArray<byte[]> mBodies = new LongSparseArray<>();
+
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
         mAudioPlayerControl = audioPlayerControl;
+        mList = list;
 
         list.setRecyclerListener(new RecyclerListener() {
             public void onMovedToScrapHeap(View view) {
                 if (view instanceof MessageListItem) {
-                    ((MessageListItem) view).unbind();
+                    MessageListItem item = (MessageListItem) view;
+                    CompositeMessage msg = item.getMessage();
+                    if (msg != null)
+                        mBodies.remove(msg.getDatabaseId());
+                    item.unbind();
                 }
             }
         });
@@ -73,6 +84,16 @@ public class MessageListAdapter extends CursorAdapter {
 
         MessageListItem headerView = (MessageListItem) view;
         CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        if (msg.isBodyTruncated()) {
+            byte[] body = mBodies.get(msg.getDatabaseId());
+            if (body != null && body.length == msg.getBodyLength()) {
+                msg.setFullBody(body);
+            }
+            else {
+                // show the preview while the full body is being loaded
+                MessageBodyLoader.getInstance(context).load(msg, this);
+            }
+        }
 
         long previousTimestamp = -1;
         int previousItemType = -1;
@@ -88,6 +109,27 @@ public class MessageListAdapter extends CursorAdapter {
             previousItemType, previousTimestamp, previousPeer, mAudioPlayerControl);
     }
 
+    @Override
+    public void onBodyLoaded(long databaseId, byte[] body) {
+        // rebind the item with the full body if it's still visible
+        for (int i = 0; i < mList.getChildCount(); i++) {
+            View view = mList.getChildAt(i);
+            if (!(view instanceof MessageListItem))
+                continue;
+            CompositeMessage msg = ((MessageListItem) view).getMessage();
+            if (msg != null && msg.getDatabaseId() == databaseId) {
+                int position = mList.getPositionForView(view) - mList.getHeaderViewsCount();
+                Cursor cursor = (position >= 0 && position < getCount()) ?
+                    (Cursor) getItem(position) : null;
+                if (cursor != null) {
+                    mBodies.put(databaseId, body);
+                    bindView(view, mContext, cursor);
+                }
+                break;
+            }
+        }
+    }
+
     @Override
     public boolean isEnabled(int position) {
         return !isEvent((Cursor) getItem(position));
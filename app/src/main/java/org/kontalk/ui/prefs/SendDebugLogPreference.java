@@ -19,11 +19,14 @@
 package org.kontalk.ui.prefs;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.preference.Preference;
 import android.util.AttributeSet;
@@ -70,15 +73,48 @@ public class SendDebugLogPreference extends Preference {
     }
 
     void sendDebugLog(Context context) {
-        File file = Log.getLogFile();
-        if (file != null && file.isFile()) {
-            Intent i = new Intent(Intent.ACTION_SEND);
+        // flushing the log might block
+        new SendDebugLogTask(context).execute();
+    }
+
+    static void sendLogFiles(Context context, List<File> files) {
+        if (files.size() > 0) {
+            Intent i;
+            if (files.size() > 1) {
+                // rotated log segments
+                ArrayList<Uri> uris = new ArrayList<>(files.size());
+                for (File file : files)
+                    uris.add(Uri.fromFile(file));
+                i = new Intent(Intent.ACTION_SEND_MULTIPLE);
+                i.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+            }
+            else {
+                i = new Intent(Intent.ACTION_SEND);
+                i.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(files.get(0)));
+            }
             i.setType("text/plain");
             i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
             i.putExtra(Intent.EXTRA_SUBJECT, "Kontalk debug log");
-            i.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
             context.startActivity(i);
         }
     }
 
+    private static final class SendDebugLogTask extends AsyncTask<Void, Void, List<File>> {
+        private final Context mContext;
+
+        SendDebugLogTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected List<File> doInBackground(Void... params) {
+            return Log.getLogFiles();
+        }
+
+        @Override
+        protected void onPostExecute(List<File> files) {
+            sendLogFiles(mContext, files);
+        }
+    }
+
 }
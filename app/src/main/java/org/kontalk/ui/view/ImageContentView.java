@@ -19,29 +19,22 @@
 package org.kontalk.ui.view;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.ui.ComposeMessage;
-import org.kontalk.util.MediaStorage;
 
 
 /**
@@ -56,6 +49,13 @@ public class ImageContentView extends FrameLayout
     private ImageView mContent;
     private TextView mPlaceholder;
 
+    private final ThumbnailLoader.Callback mThumbnailCallback = new ThumbnailLoader.Callback() {
+        @Override
+        public void onThumbnailLoaded(Bitmap bitmap) {
+            showBitmap(bitmap);
+        }
+    };
+
     public ImageContentView(Context context) {
         super(context);
     }
@@ -79,13 +79,34 @@ public class ImageContentView extends FrameLayout
     public void bind(long messageId, ImageComponent component, Pattern highlight) {
         mComponent = component;
 
-        Bitmap bitmap = getBitmap();
-        showBitmap(bitmap);
+        /*
+         * local_uri is used for referencing the original media.
+         * preview_uri is used to load the media thumbnail.
+         * If preview_uri is null or cannot be found, a thumbnail is
+         * generated on the fly from local_uri - if possible.
+         */
+        File previewFile = component.getPreviewFile();
+        if (previewFile == null) {
+            showBitmap(null);
+            return;
+        }
+
+        ThumbnailLoader loader = ThumbnailLoader.getInstance(getContext());
+        int size = getThumbnailSize();
+        Bitmap bitmap = loader.getCached(messageId, previewFile, size);
+        if (bitmap != null) {
+            showBitmap(bitmap);
+        }
+        else {
+            // show an empty image until the thumbnail is loaded
+            mContent.setImageBitmap(null);
+            mPlaceholder.setVisibility(GONE);
+            mContent.setVisibility(VISIBLE);
+            loader.load(messageId, previewFile, component.getLocalUri(), size, mThumbnailCallback);
+        }
     }
 
-    /** This method might be called from a thread other than the main thread. */
     void showBitmap(Bitmap bitmap) {
-        // this method might be called from another thread
         final ImageComponent component = mComponent;
         if (component == null)
             return;
@@ -104,59 +125,15 @@ public class ImageContentView extends FrameLayout
         }
     }
 
-    Bitmap loadPreview(File previewFile) throws IOException {
-        InputStream in = new FileInputStream(previewFile);
-        Bitmap bitmap = MediaStorage.loadBitmapSimple(in);
-        in.close();
-        return bitmap;
-    }
-
-    private Bitmap getBitmap() {
-        /*
-         * local_uri is used for referencing the original media.
-         * preview_uri is used to load the media thumbnail.
-         * If preview_uri is null or cannot be found, a thumbnail is
-         * generated on the fly from local_uri - if possible.
-         */
-
-        File previewFile = mComponent.getPreviewFile();
-        Uri localUri = mComponent.getLocalUri();
-        try {
-            // preview path
-            if (previewFile != null) {
-                // load from file - we know it's a file uri
-                return loadPreview(previewFile);
-            }
-        }
-        catch (Exception e) {
-            Log.w(TAG, "unable to load thumbnail, generating one");
-
-            /*
-             * unable to load preview - generate thumbnail
-             * Of course a thumbnail can be generated only if the image has
-             * already been downloaded.
-             */
-            if (localUri != null) {
-                new GenerateThumbnailTask(getContext(), localUri, previewFile, new ThumbnailListener() {
-                    @Override
-                    public void onThumbnailGenerated(File previewFile) {
-                        try {
-                            Bitmap bitmap = loadPreview(previewFile);
-                            showBitmap(bitmap);
-                        }
-                        catch (IOException e) {
-                            // since at this point anything can happen, just ignore any errors
-                            Log.w(TAG, "unable to load generated thumbnail", e);
-                        }
-                    }
-                }).execute();
-            }
-        }
-        return null;
+    /** Thumbnails are decoded at the maximum size they can be displayed. */
+    private int getThumbnailSize() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.min(metrics.widthPixels, metrics.heightPixels) * 3 / 4;
     }
 
     @Override
     public void unbind() {
+        ThumbnailLoader.getInstance(getContext()).cancel(mThumbnailCallback);
         clear();
     }
 
@@ -181,44 +158,4 @@ public class ImageContentView extends FrameLayout
             parent, false);
     }
 
-    interface ThumbnailListener {
-        void onThumbnailGenerated(File previewFile);
-    }
-
-    final static class GenerateThumbnailTask extends AsyncTask<Void, Void, Boolean> {
-        private final Uri mLocalUri;
-        private final File mPreviewFile;
-        private final WeakReference<Context> mContext;
-        private final ThumbnailListener mListener;
-
-        GenerateThumbnailTask(Context context, Uri localUri, File previewFile, ThumbnailListener listener) {
-            mContext = new WeakReference<>(context);
-            mLocalUri = localUri;
-            mPreviewFile = previewFile;
-            mListener = listener;
-        }
-
-        @Override
-        protected Boolean doInBackground(Void... params) {
-            Context context = mContext.get();
-            if (context != null) {
-                try {
-                    MediaStorage.cacheThumbnail(context, mLocalUri, mPreviewFile, false);
-                    return true;
-                }
-                catch (Exception e) {
-                    Log.e(TAG, "unable to generate thumbnail", e);
-                }
-            }
-            return false;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean result) {
-            if (result != null && result) {
-                mListener.onThumbnailGenerated(mPreviewFile);
-            }
-        }
-    }
-
 }
@@ -0,0 +1,176 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui.view;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.provider.MessagesProviderClient;
+
+
+/**
+ * Loads full message bodies in the background.
+ * Message lists load only a truncated preview of large bodies; the full
+ * body is loaded here and kept in a memory cache keyed by message ID and
+ * body length (so a message decrypted in the meantime won't be served from
+ * stale data).
+ * @author Daniele Ricci
+ */
+public class MessageBodyLoader {
+
+    /** Maximum size in bytes of the memory cache. */
+    private static final int CACHE_SIZE = 1024 * 1024;
+    /** Larger bodies are not cached, so they can't push each other out. */
+    private static final int MAX_CACHED_BODY = CACHE_SIZE / 4;
+
+    private static MessageBodyLoader sInstance;
+
+    /**
+     * Called on the main thread when a body has been loaded. The body might
+     * not be cached: callers must keep it as long as they need it.
+     */
+    public interface Callback {
+        void onBodyLoaded(long databaseId, byte[] body);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+    private final LruCache<String, byte[]> mCache;
+
+    /** Callbacks waiting for a body by cache key. Accessed only from the main thread. */
+    private final Map<String, Set<Callback>> mJobs = new HashMap<>();
+
+    private MessageBodyLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "MessageBodyLoader");
+            }
+        });
+        mCache = new LruCache<String, byte[]>(CACHE_SIZE) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public static MessageBodyLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new MessageBodyLoader(context);
+        return sInstance;
+    }
+
+    private static String key(long databaseId, long length) {
+        return databaseId + ":" + length;
+    }
+
+    private void cache(String key, byte[] body) {
+        if (body.length <= MAX_CACHED_BODY)
+            mCache.put(key, body);
+    }
+
+    /**
+     * Replaces the truncated body of a message with the cached full body.
+     * @return true if the message has its full body
+     */
+    public boolean applyCached(CompositeMessage msg) {
+        if (!msg.isBodyTruncated())
+            return true;
+
+        byte[] body = mCache.get(key(msg.getDatabaseId(), msg.getBodyLength()));
+        if (body != null)
+            msg.setFullBody(body);
+        return body != null;
+    }
+
+    /**
+     * Loads the full body of a message in the background.
+     * Must be called from the main thread.
+     */
+    public void load(CompositeMessage msg, Callback callback) {
+        if (applyCached(msg))
+            return;
+
+        final long databaseId = msg.getDatabaseId();
+        final String key = key(databaseId, msg.getBodyLength());
+        Set<Callback> callbacks = mJobs.get(key);
+        if (callbacks == null) {
+            callbacks = new LinkedHashSet<>();
+            mJobs.put(key, callbacks);
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] body = MessagesProviderClient.getMessageBody(mContext, databaseId);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (body != null)
+                                cache(key, body);
+                            Set<Callback> waiting = mJobs.remove(key);
+                            if (waiting != null && body != null) {
+                                for (Callback callback : waiting)
+                                    callback.onBodyLoaded(databaseId, body);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        callbacks.add(callback);
+    }
+
+    /**
+     * Loads the full body of a message immediately.
+     * To be used only on explicit user actions (e.g. copy or share).
+     */
+    public void loadNow(CompositeMessage msg) {
+        if (applyCached(msg))
+            return;
+
+        byte[] body = MessagesProviderClient.getMessageBody(mContext, msg.getDatabaseId());
+        if (body != null) {
+            cache(key(msg.getDatabaseId(), msg.getBodyLength()), body);
+            msg.setFullBody(body);
+        }
+    }
+
+}
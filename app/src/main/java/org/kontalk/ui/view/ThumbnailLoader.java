@@ -0,0 +1,234 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.Log;
+import org.kontalk.util.MediaStorage;
+
+
+/**
+ * Loads message thumbnails in the background.
+ * Decoded thumbnails are kept in a memory cache keyed by message ID,
+ * preview path and target size; preview files act as the disk cache and
+ * are generated from the original media if missing. Concurrent requests for
+ * the same thumbnail are served by a single job.
+ * @author Daniele Ricci
+ */
+public class ThumbnailLoader {
+    static final String TAG = ImageContentView.TAG;
+
+    /** Number of threads used for decoding thumbnails. */
+    private static final int THREAD_COUNT = 2;
+
+    /** Fraction of the heap used for the memory cache. */
+    private static final int MEMORY_CACHE_FRACTION = 16;
+
+    private static ThumbnailLoader sInstance;
+
+    /** Called on the main thread when a thumbnail is ready (null if not available). */
+    public interface Callback {
+        void onThumbnailLoaded(Bitmap bitmap);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+    private final LruCache<String, Bitmap> mCache;
+
+    /** Running jobs by cache key. Accessed only from the main thread. */
+    private final Map<String, Job> mJobs = new HashMap<>();
+    /** Job each callback is waiting for. Accessed only from the main thread. */
+    private final Map<Callback, Job> mCallbacks = new HashMap<>();
+
+    private ThumbnailLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ThumbnailLoader");
+            }
+        });
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_FRACTION);
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    public static ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailLoader(context);
+        return sInstance;
+    }
+
+    private static String key(long messageId, File previewFile, int size) {
+        return messageId + ":" + previewFile + ":" + size;
+    }
+
+    /** Returns a thumbnail from the memory cache, or null. */
+    public Bitmap getCached(long messageId, File previewFile, int size) {
+        return mCache.get(key(messageId, previewFile, size));
+    }
+
+    /**
+     * Loads a thumbnail in the background. Must be called from the main thread.
+     * @param previewFile the thumbnail file
+     * @param localUri the original media, used to generate the thumbnail if missing
+     * @param size the thumbnail will be decoded at least at this size
+     */
+    public void load(long messageId, File previewFile, Uri localUri, int size, Callback callback) {
+        cancel(callback);
+
+        String key = key(messageId, previewFile, size);
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            callback.onThumbnailLoaded(cached);
+            return;
+        }
+
+        Job job = mJobs.get(key);
+        if (job == null) {
+            job = new Job(key, previewFile, localUri, size);
+            mJobs.put(key, job);
+            job.future = mExecutor.submit(job);
+        }
+        job.callbacks.add(callback);
+        mCallbacks.put(callback, job);
+    }
+
+    /**
+     * Cancels a request. The job is cancelled if nobody else is waiting for
+     * it. Must be called from the main thread.
+     */
+    public void cancel(Callback callback) {
+        Job job = mCallbacks.remove(callback);
+        if (job != null) {
+            job.callbacks.remove(callback);
+            // a running job is left alone so that new requests can join it
+            if (job.callbacks.isEmpty() && job.future.cancel(false))
+                mJobs.remove(job.key);
+        }
+    }
+
+    void deliver(final Job job, final Bitmap bitmap) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mJobs.get(job.key) == job)
+                    mJobs.remove(job.key);
+                for (Callback callback : job.callbacks) {
+                    mCallbacks.remove(callback);
+                    callback.onThumbnailLoaded(bitmap);
+                }
+                job.callbacks.clear();
+            }
+        });
+    }
+
+    static Bitmap decode(File file, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = 1;
+        while ((options.outWidth / (sampleSize * 2)) >= size &&
+                (options.outHeight / (sampleSize * 2)) >= size)
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private final class Job implements Runnable {
+        final String key;
+        final File previewFile;
+        final Uri localUri;
+        final int size;
+        final Set<Callback> callbacks = new LinkedHashSet<>();
+        Future<?> future;
+
+        Job(String key, File previewFile, Uri localUri, int size) {
+            this.key = key;
+            this.previewFile = previewFile;
+            this.localUri = localUri;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                if (previewFile.isFile())
+                    bitmap = decode(previewFile, size);
+
+                if (bitmap == null && localUri != null) {
+                    /*
+                     * unable to load preview - generate thumbnail
+                     * Of course a thumbnail can be generated only if the image has
+                     * already been downloaded.
+                     */
+                    Log.w(TAG, "unable to load thumbnail, generating one");
+                    MediaStorage.cacheThumbnail(mContext, localUri, previewFile, false);
+                    bitmap = decode(previewFile, size);
+                }
+
+                if (bitmap != null)
+                    mCache.put(key, bitmap);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to load thumbnail", e);
+            }
+
+            deliver(this, bitmap);
+        }
+    }
+
+}
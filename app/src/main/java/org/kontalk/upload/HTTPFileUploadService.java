@@ -48,6 +48,10 @@ public class HTTPFileUploadService implements IUploadService {
         return mConnection.get();
     }
 
+    public BareJid getService() {
+        return mService;
+    }
+
     @Override
     public boolean requiresCertificate() {
         return false;
@@ -76,4 +80,15 @@ public class HTTPFileUploadService implements IUploadService {
         }
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HTTPFileUploadService &&
+            ((HTTPFileUploadService) o).mService.equals(mService);
+    }
+
+    @Override
+    public int hashCode() {
+        return mService.hashCode();
+    }
+
 }
@@ -0,0 +1,251 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Asynchronous line writer on top of a {@link RotatingFileWriter}.
+ * Lines are queued in a lock-free ring buffer and written in batches by a
+ * single writer thread, so callers never wait for disk I/O. When the buffer
+ * is full lines are either dropped or the caller waits for some space,
+ * depending on the {@link OverflowPolicy}.
+ * @author Daniele Ricci
+ */
+public class AsyncLogWriter implements Flushable, Closeable {
+
+    /** What to do when the buffer is full. */
+    public enum OverflowPolicy {
+        /** Discard the line (a marker with the count of dropped lines will be written). */
+        DROP,
+        /** Wait for the writer thread to make some space. */
+        BLOCK,
+    }
+
+    /** Maximum time between a line being queued and being written. */
+    private static final long WRITE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    /** Time to wait for space when blocking. */
+    private static final long BLOCK_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Maximum time a flush will wait for the writer thread. */
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    private final RotatingFileWriter mWriter;
+    private final OverflowPolicy mPolicy;
+
+    private final AtomicReferenceArray<String> mBuffer;
+    private final int mMask;
+    /** Next sequence to be claimed by producers. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next sequence to be consumed by the writer thread. */
+    private volatile long mHead;
+    /** Sequence up to which lines have been written and flushed. */
+    private long mFlushed;
+    private final Object mFlushLock = new Object();
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile IOException mError;
+
+    /**
+     * Creates a new writer and starts its writer thread.
+     * @param writer the underlying writer, owned by this object
+     * @param capacity buffer size in lines, rounded up to a power of two
+     * @param policy what to do when the buffer is full
+     */
+    public AsyncLogWriter(RotatingFileWriter writer, int capacity, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mWriter = writer;
+        mPolicy = policy;
+        mBuffer = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, AsyncLogWriter.class.getSimpleName());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues a line for writing.
+     * @return false if the line was dropped
+     * @throws IOException if the writer has failed or has been closed
+     */
+    public boolean println(String line) throws IOException {
+        if (line == null)
+            line = "null";
+
+        while (true) {
+            checkState();
+
+            if (offer(line))
+                return true;
+
+            // buffer is full: writer thread must be stuck or lagging behind
+            LockSupport.unpark(mThread);
+            if (mPolicy == OverflowPolicy.DROP) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            LockSupport.parkNanos(BLOCK_WAIT);
+        }
+    }
+
+    private boolean offer(String line) {
+        int capacity = mBuffer.length();
+        while (true) {
+            long tail = mTail.get();
+            long used = tail - mHead;
+            if (used >= capacity)
+                return false;
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mBuffer.lazySet((int) (tail & mMask), line);
+                // wake the writer early if we are filling up
+                if (used == capacity / 2)
+                    LockSupport.unpark(mThread);
+                return true;
+            }
+        }
+    }
+
+    /** Returns the number of lines dropped so far. */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /** Waits (for a limited time) for all queued lines to be written to disk. */
+    @Override
+    public void flush() throws IOException {
+        long target = mTail.get();
+        LockSupport.unpark(mThread);
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        synchronized (mFlushLock) {
+            while (mFlushed < target && mRunning && mError == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                try {
+                    mFlushLock.wait(wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        checkState();
+    }
+
+    /** Writes all queued lines and closes the underlying writer. */
+    @Override
+    public void close() throws IOException {
+        stop();
+        mWriter.close();
+    }
+
+    /** Stops writing and deletes the log files. */
+    public void abort() throws IOException {
+        stop();
+        mWriter.abort();
+    }
+
+    private void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join(FLUSH_TIMEOUT);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (mError != null)
+            throw mError;
+        if (!mRunning)
+            throw new IOException("writer closed");
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    void writeLoop() {
+        try {
+            boolean running;
+            do {
+                // read the flag first so lines queued before closing are written
+                running = mRunning;
+                if (writeBatch() == 0 && running)
+                    LockSupport.parkNanos(this, WRITE_INTERVAL);
+            } while (running);
+        }
+        catch (IOException e) {
+            mError = e;
+        }
+        finally {
+            synchronized (mFlushLock) {
+                mFlushLock.notifyAll();
+            }
+        }
+    }
+
+    /** Writes all lines available in the buffer. */
+    private int writeBatch() throws IOException {
+        int count = 0;
+        long head = mHead;
+        while (true) {
+            int index = (int) (head & mMask);
+            String line = mBuffer.get(index);
+            if (line == null) {
+                // empty or slot claimed but not yet published
+                break;
+            }
+            mBuffer.lazySet(index, null);
+            mHead = ++head;
+            mWriter.println(line);
+            count++;
+        }
+
+        long dropped = mDropped.getAndSet(0);
+        if (dropped > 0) {
+            mWriter.println("[" + dropped + " log lines dropped]");
+            count++;
+        }
+
+        if (count > 0) {
+            mWriter.flush();
+            synchronized (mFlushLock) {
+                mFlushed = head;
+                mFlushLock.notifyAll();
+            }
+        }
+        return count;
+    }
+
+}
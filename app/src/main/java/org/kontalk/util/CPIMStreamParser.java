@@ -0,0 +1,186 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jxmpp.util.XmppDateTime;
+
+
+/**
+ * Incremental Message/CPIM parser.
+ * Headers are read directly from the stream, which is then left positioned
+ * at the start of the message contents, so that the contents can be
+ * consumed (or parsed) without buffering the whole message first.
+ * Messages are expected to be in the format produced by {@link CPIMMessage}.
+ * @author Daniele Ricci
+ */
+public class CPIMStreamParser {
+
+    /** Maximum length of the headers section. */
+    private static final int MAX_HEADERS_LENGTH = 4096;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final InputStream mIn;
+
+    private String mFrom;
+    private final List<String> mTo = new ArrayList<>();
+    private Date mDate;
+    private String mMime;
+
+    /** Headers line buffer. */
+    private final byte[] mLine = new byte[MAX_HEADERS_LENGTH];
+    private int mHeadersLength;
+
+    public CPIMStreamParser(InputStream in) {
+        mIn = in.markSupported() ? in : new BufferedInputStream(in, MAX_HEADERS_LENGTH);
+        mIn.mark(MAX_HEADERS_LENGTH + 1);
+    }
+
+    /**
+     * Parses CPIM and message headers.
+     * If parsing fails, {@link #reset()} can be used to read the data as-is.
+     */
+    public void parseHeaders() throws IOException, ParseException {
+        String dateTime = null;
+
+        // first pass: CPIM headers
+        String[] header;
+        int count = 0;
+        while ((header = nextHeader()) != null) {
+            String name = header[0];
+            if ("From".equalsIgnoreCase(name))
+                mFrom = header[1];
+            else if ("To".equalsIgnoreCase(name))
+                mTo.add(header[1]);
+            else if ("DateTime".equalsIgnoreCase(name))
+                dateTime = header[1];
+            count++;
+        }
+        if (count == 0)
+            throw new ParseException("no CPIM headers found", mHeadersLength);
+
+        // second pass: message headers
+        while ((header = nextHeader()) != null) {
+            if ("Content-Type".equalsIgnoreCase(header[0])) {
+                // remove parameters (e.g. charset)
+                String mime = header[1];
+                int sep = mime.indexOf(';');
+                mMime = (sep >= 0 ? mime.substring(0, sep) : mime).trim();
+            }
+        }
+        if (mMime == null)
+            throw new ParseException("no content type found", mHeadersLength);
+
+        if (dateTime != null) {
+            try {
+                mDate = XmppDateTime.parseDate(dateTime);
+            }
+            catch (ParseException ignored) {
+                // invalid date will be treated as missing
+            }
+        }
+    }
+
+    /**
+     * Reads the next header line.
+     * @return header name and value, or null at the end of the headers block
+     */
+    private String[] nextHeader() throws IOException, ParseException {
+        int start = mHeadersLength;
+        int c;
+        while ((c = mIn.read()) != '\n') {
+            if (c < 0)
+                throw new ParseException("unexpected end of headers", mHeadersLength);
+            if (mHeadersLength >= MAX_HEADERS_LENGTH)
+                throw new ParseException("headers too long", mHeadersLength);
+            mLine[mHeadersLength++] = (byte) c;
+        }
+
+        int end = mHeadersLength;
+        if (end > start && mLine[end - 1] == '\r')
+            end--;
+        // empty line: end of block
+        if (end == start)
+            return null;
+
+        String line = new String(mLine, start, end - start, CHARSET);
+        int sep = line.indexOf(':');
+        if (sep <= 0)
+            throw new ParseException("invalid header: " + line, start);
+
+        return new String[] {
+            line.substring(0, sep).trim(),
+            line.substring(sep + 1).trim(),
+        };
+    }
+
+    /** Rewinds the stream to the beginning of the data. */
+    public void reset() throws IOException {
+        mIn.reset();
+        mHeadersLength = 0;
+        mFrom = null;
+        mTo.clear();
+        mDate = null;
+        mMime = null;
+    }
+
+    /** Returns the stream positioned at the start of the message contents. */
+    public InputStream getBody() {
+        return mIn;
+    }
+
+    public String getFrom() {
+        return mFrom;
+    }
+
+    public String[] getTo() {
+        return mTo.toArray(new String[mTo.size()]);
+    }
+
+    /** Returns true if the given user ID is among the recipients. */
+    public boolean hasRecipient(String uid) {
+        for (String to : mTo) {
+            if (uid.equals(to))
+                return true;
+            // multiple recipients might be in the same header
+            for (String addr : to.split("[,;]")) {
+                if (uid.equals(addr.trim()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public Date getDate() {
+        return mDate;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.support.annotation.VisibleForTesting;
+import android.support.media.ExifInterface;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+
+
+/**
+ * Prepares scaled versions of an image with a single decode of the source.
+ * Orientation and bounds are read in one pass over the image header, then
+ * the image is decoded once with a power-of-two sample size large enough for
+ * the biggest requested output. All outputs are derived from that bitmap,
+ * whose buffer is reused by the next job when possible. Only a few images
+ * are decoded at the same time to keep memory usage bounded.
+ * @author Daniele Ricci
+ */
+public final class ImagePreparer {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Bytes kept for going back to the beginning after reading the header. */
+    private static final int HEADER_MARK_LIMIT = 512 * 1024;
+
+    /** Maximum number of pixels of a decoded source image. */
+    private static final int MAX_DECODE_PIXELS = 4 * 1024 * 1024;
+
+    /** Maximum number of full-size bitmaps in memory at the same time. */
+    private static final int MAX_DECODES = 2;
+
+    /**
+     * Limits the number of concurrent decodes. Each decode might need a
+     * full-size bitmap plus its scaled copies.
+     */
+    private static final Semaphore sDecodePermits = new Semaphore(maxDecodes(), true);
+
+    /** Maximum number of bitmaps kept for reuse. */
+    private static final int MAX_POOL_SIZE = MAX_DECODES;
+
+    private static final List<SoftReference<Bitmap>> sBitmapPool = new LinkedList<>();
+
+    /** A scaled version of the image to be produced. */
+    public static final class Output {
+        final int maxWidth;
+        final int maxHeight;
+        final Bitmap.CompressFormat format;
+        final int quality;
+        final OutputStream stream;
+
+        /**
+         * @param maxWidth maximum width of the image (it will not be upscaled)
+         * @param maxHeight maximum height of the image (it will not be upscaled)
+         */
+        public Output(int maxWidth, int maxHeight, Bitmap.CompressFormat format, int quality, OutputStream stream) {
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.format = format;
+            this.quality = quality;
+            this.stream = stream;
+        }
+    }
+
+    private ImagePreparer() {
+    }
+
+    /**
+     * Writes the given outputs of an image. Outputs should be given from the
+     * biggest to the smallest since smaller outputs are derived from the
+     * previous ones.
+     */
+    public static void prepare(Context context, Uri uri, Output... outputs) throws IOException {
+        if (outputs.length == 0)
+            return;
+
+        ContentResolver cr = context.getContentResolver();
+
+        // read bounds and orientation in one pass
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        int orientation = readHeader(cr, uri, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            throw new IOException("unable to decode image bounds");
+
+        if (orientation <= ExifInterface.ORIENTATION_UNDEFINED) {
+            // no EXIF orientation available, ask the media storage
+            orientation = queryOrientation(cr, uri);
+        }
+
+        // swapped dimensions for rotated images
+        boolean swap = isTransposed(orientation);
+        int width = swap ? bounds.outHeight : bounds.outWidth;
+        int height = swap ? bounds.outWidth : bounds.outHeight;
+
+        int maxWidth = 0, maxHeight = 0;
+        for (Output output : outputs) {
+            maxWidth = Math.max(maxWidth, output.maxWidth);
+            maxHeight = Math.max(maxHeight, output.maxHeight);
+        }
+
+        int sampleSize = computeSampleSize(width, height, maxWidth, maxHeight, MAX_DECODE_PIXELS);
+        Log.d(TAG, "image " + bounds.outWidth + "x" + bounds.outHeight +
+            ", orientation " + orientation + ", sample size " + sampleSize);
+
+        try {
+            sDecodePermits.acquire();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+        }
+
+        Bitmap decoded = null;
+        try {
+            decoded = decode(cr, uri, bounds, sampleSize);
+            if (decoded == null)
+                throw new IOException("unable to decode image");
+
+            Bitmap source = decoded;
+            int sourceOrientation = orientation;
+            for (Output output : outputs) {
+                Bitmap scaled = transform(source, sourceOrientation, output.maxWidth, output.maxHeight);
+                scaled.compress(output.format, output.quality, output.stream);
+
+                // next output will be derived from this one (already oriented)
+                if (source != decoded && source != scaled)
+                    source.recycle();
+                source = scaled;
+                sourceOrientation = ExifInterface.ORIENTATION_NORMAL;
+            }
+            if (source != decoded)
+                source.recycle();
+        }
+        finally {
+            if (decoded != null)
+                release(decoded);
+            sDecodePermits.release();
+        }
+    }
+
+    /**
+     * Reads image bounds and EXIF orientation opening the image only once.
+     * @return the EXIF orientation, or -1 if not available
+     */
+    private static int readHeader(ContentResolver cr, Uri uri, BitmapFactory.Options bounds) throws IOException {
+        InputStream in = new BufferedInputStream(cr.openInputStream(uri));
+        try {
+            in.mark(HEADER_MARK_LIMIT);
+            BitmapFactory.decodeStream(in, null, bounds);
+            try {
+                in.reset();
+            }
+            catch (IOException e) {
+                // header bigger than expected, open the image again
+                SystemUtils.closeStream(in);
+                in = cr.openInputStream(uri);
+            }
+
+            try {
+                ExifInterface exif = new ExifInterface(in);
+                return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_UNDEFINED);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to read EXIF data", e);
+                return -1;
+            }
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+    }
+
+    /** Queries the media storage for the image orientation (in degrees). */
+    private static int queryOrientation(ContentResolver cr, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = cr.query(uri,
+                new String[] { MediaStore.Images.ImageColumns.ORIENTATION }, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                switch (cursor.getInt(0)) {
+                    case 90:
+                        return ExifInterface.ORIENTATION_ROTATE_90;
+                    case 180:
+                        return ExifInterface.ORIENTATION_ROTATE_180;
+                    case 270:
+                        return ExifInterface.ORIENTATION_ROTATE_270;
+                }
+            }
+        }
+        catch (Exception e) {
+            // not a media storage URI
+        }
+        finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    private static Bitmap decode(ContentResolver cr, Uri uri, BitmapFactory.Options bounds, int sampleSize)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        int width = (bounds.outWidth + sampleSize - 1) / sampleSize;
+        int height = (bounds.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = acquire(width, height);
+
+        InputStream in = cr.openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        catch (IllegalArgumentException e) {
+            // reusable bitmap not suitable, decode again without it
+            SystemUtils.closeStream(in);
+            Log.d(TAG, "unable to reuse bitmap", e);
+            options.inBitmap = null;
+            in = cr.openInputStream(uri);
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+    }
+
+    /** Scales and orients a bitmap in a single pass to fit the given size. */
+    private static Bitmap transform(Bitmap source, int orientation, int maxWidth, int maxHeight) {
+        boolean swap = isTransposed(orientation);
+        float width = swap ? source.getHeight() : source.getWidth();
+        float height = swap ? source.getWidth() : source.getHeight();
+
+        // never upscale
+        float scale = Math.min(1f, Math.min(maxWidth / width, maxHeight / height));
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        applyOrientation(matrix, orientation);
+
+        return Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), matrix, true);
+    }
+
+    private static boolean isTransposed(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+            orientation == ExifInterface.ORIENTATION_ROTATE_270 ||
+            orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+            orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+        }
+    }
+
+    /** Number of decodes allowed at the same time based on available memory. */
+    private static int maxDecodes() {
+        // a full-size bitmap and its scaled copies, with some margin
+        long perDecode = MAX_DECODE_PIXELS * 4L * 3;
+        long available = Runtime.getRuntime().maxMemory() / 2;
+        return (int) Math.max(1, Math.min(MAX_DECODES, available / perDecode));
+    }
+
+    /**
+     * Computes the largest power-of-two sample size which doesn't make the
+     * image smaller than the requested size (fitting inside it) and keeps the
+     * decoded image below the given number of pixels.
+     */
+    @VisibleForTesting
+    static int computeSampleSize(int width, int height, int maxWidth, int maxHeight, int maxPixels) {
+        int sampleSize = 1;
+        // halve until the next step would make the image smaller than requested
+        while ((width / (sampleSize * 2)) >= maxWidth || (height / (sampleSize * 2)) >= maxHeight)
+            sampleSize *= 2;
+        while (((long) width / sampleSize) * ((long) height / sampleSize) > maxPixels)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /** Returns a pooled bitmap usable for decoding an image of the given size. */
+    private static Bitmap acquire(int width, int height) {
+        // reusing bitmaps of different size is supported since KitKat
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return null;
+
+        int bytes = width * height * 4;
+        synchronized (sBitmapPool) {
+            Iterator<SoftReference<Bitmap>> iter = sBitmapPool.iterator();
+            while (iter.hasNext()) {
+                Bitmap bitmap = iter.next().get();
+                if (bitmap == null || bitmap.isRecycled()) {
+                    iter.remove();
+                }
+                else if (bitmap.getAllocationByteCount() >= bytes) {
+                    iter.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Puts a bitmap back in the pool, or recycles it if the pool is full. */
+    private static void release(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && bitmap.isMutable()) {
+            synchronized (sBitmapPool) {
+                if (sBitmapPool.size() < MAX_POOL_SIZE) {
+                    sBitmapPool.add(new SoftReference<>(bitmap));
+                    return;
+                }
+            }
+        }
+        bitmap.recycle();
+    }
+
+}
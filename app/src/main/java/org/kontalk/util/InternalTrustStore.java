@@ -51,7 +51,7 @@ public class InternalTrustStore {
     private static boolean sInitialized;
 
     /** Sets all {@link HttpsURLConnection}s to use our trust store. */
-    public static void initUrlConnections(Context context)
+    public static synchronized void initUrlConnections(Context context)
             throws  NoSuchAlgorithmException, CertificateException,
             NoSuchProviderException, KeyStoreException, IOException,
             KeyManagementException {
@@ -71,9 +71,9 @@ public class InternalTrustStore {
 
     /**
      * Returns a trust store merged from the internal keystore and system
-     * keystore.
+     * keystore. The trust store is loaded on first use.
      */
-    public static KeyStore getTrustStore(Context context)
+    public static synchronized KeyStore getTrustStore(Context context)
             throws KeyStoreException,
             NoSuchProviderException,
             NoSuchAlgorithmException,
@@ -82,7 +82,7 @@ public class InternalTrustStore {
 
         if (sTrustStore == null) {
             // load internal truststore from file
-            sTrustStore = KeyStore.getInstance("BKS", PGP.PROVIDER);
+            sTrustStore = KeyStore.getInstance("BKS", PGP.getProvider());
             InputStream in = context.getResources()
                     .openRawResource(R.raw.truststore);
             sTrustStore.load(in, "changeit".toCharArray());
@@ -19,18 +19,19 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import android.annotation.TargetApi;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetFileDescriptor;
@@ -44,10 +45,13 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.support.annotation.RawRes;
 import android.support.media.ExifInterface;
 import android.support.v4.app.Fragment;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.webkit.MimeTypeMap;
 
 import org.kontalk.Kontalk;
@@ -95,6 +99,9 @@ public abstract class MediaStorage {
     public static final String COMPRESS_MIME = "image/jpeg";
     private static final int COMPRESSION_QUALITY = 85;
 
+    /** Buffer size for staging outgoing media. */
+    private static final int STAGING_BUFFER_SIZE = 65536;
+
     public static final int OUTGOING_MESSAGE_SOUND = R.raw.sound_outgoing;
     // TODO
     public static final int INCOMING_MESSAGE_SOUND = 0;
@@ -494,111 +501,190 @@ public abstract class MediaStorage {
             Bitmap.CompressFormat format, int quality, FileOutputStream output)
             throws IOException {
 
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
-
-        ContentResolver cr = context.getContentResolver();
+        ImagePreparer.prepare(context, uri,
+            new ImagePreparer.Output(maxWidth, maxHeight, format, quality, output));
+    }
 
-        // compute optimal image scale size
-        int scale = 1;
-        InputStream in = cr.openInputStream(uri);
+    /**
+     * Prepares an outgoing image: writes the network thumbnail and, if
+     * requested, a compressed version of the image, decoding the source only once.
+     * @param thumbnail destination of the network thumbnail
+     * @param compressed destination of the compressed image, null for no compression
+     * @param maxSize maximum size of the compressed image
+     */
+    public static void prepareOutgoingImage(Context context, Uri uri, File thumbnail,
+            File compressed, int maxSize) throws IOException {
 
+        OutputStream thumbnailOut = null;
+        OutputStream compressedOut = null;
         try {
-            // decode image size
-            BitmapFactory.Options o = bitmapOptionsDecodeBounds();
-            BitmapFactory.decodeStream(in, null, o);
-            in.close();
+            thumbnailOut = new FileOutputStream(thumbnail);
+            ImagePreparer.Output thumbnailOutput = new ImagePreparer.Output(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                Bitmap.CompressFormat.JPEG, THUMBNAIL_MIME_COMPRESSION, thumbnailOut);
+
+            if (compressed != null) {
+                compressedOut = new FileOutputStream(compressed);
+                ImagePreparer.prepare(context, uri,
+                    new ImagePreparer.Output(maxSize, maxSize,
+                        Bitmap.CompressFormat.JPEG, COMPRESSION_QUALITY, compressedOut),
+                    thumbnailOutput);
+            }
+            else {
+                ImagePreparer.prepare(context, uri, thumbnailOutput);
+            }
+        }
+        finally {
+            SystemUtils.closeStream(thumbnailOut);
+            SystemUtils.closeStream(compressedOut);
+        }
+    }
 
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
+    /** A media staged for sending. */
+    public static final class StagedMedia {
+        public final File file;
+        public final long length;
 
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
+        StagedMedia(File file, long length) {
+            this.file = file;
+            this.length = length;
         }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
+    }
+
+    /**
+     * Stages a media for sending. Files owned by the application are hard
+     * linked if possible; any other media is copied from the original
+     * descriptor, by the kernel through {@link FileChannel#transferTo} when
+     * the descriptor is backed by a regular file. Streams are copied only as
+     * a last resort. User files are never linked, since a later change to
+     * the original would silently change the sent copy.
+     * @return the staged media
+     */
+    public static StagedMedia copyOutgoingMedia(Context context, Uri media) throws IOException {
+        final File outFile = getOutgoingPictureFile();
+
+        if ("file".equals(media.getScheme())) {
+            File source = new File(media.getPath());
+            if (isApplicationFile(context, source) && linkFile(source, outFile))
+                return new StagedMedia(outFile, outFile.length());
         }
 
-        // open image again for the actual scaling
-        Bitmap bitmap = null;
+        InputStream in = null;
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(media, "r");
+        }
+        catch (Exception e) {
+            Log.d(TAG, "no file descriptor for " + media, e);
+        }
 
+        FileOutputStream out = null;
         try {
-            in = cr.openInputStream(uri);
-            BitmapFactory.Options o = new BitmapFactory.Options();
+            out = new FileOutputStream(outFile);
 
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
+            long length = -1;
+            if (pfd != null) {
+                FileInputStream fileIn = new FileInputStream(pfd.getFileDescriptor());
+                in = fileIn;
+                length = transferFile(fileIn.getChannel(), out.getChannel());
             }
-
-            bitmap = BitmapFactory.decodeStream(in, null, o);
-        }
-        finally {
-            try {
-                in.close();
+            else {
+                in = context.getContentResolver().openInputStream(media);
+                if (in == null)
+                    throw new IOException("unable to open " + media);
             }
-            catch (Exception e) {
-                // ignored
+
+            if (length < 0) {
+                // not a regular file (e.g. a pipe): nothing has been read yet
+                byte[] buffer = new byte[STAGING_BUFFER_SIZE];
+                int count;
+                length = 0;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                    length += count;
+                }
             }
-        }
+            out.close();
+            out = null;
 
-        if (bitmap == null) {
-            return;
+            return new StagedMedia(outFile, length);
         }
-        float photoW = bitmap.getWidth();
-        float photoH = bitmap.getHeight();
-        if (photoW == 0 || photoH == 0) {
-            return;
-        }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
-        int w = (int) (photoW / scaleFactor);
-        int h = (int) (photoH / scaleFactor);
-        if (h == 0 || w == 0) {
-            return;
+        finally {
+            SystemUtils.closeStream(in);
+            SystemUtils.closeStream(out);
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
         }
+    }
 
-        Bitmap scaledBitmap = null;
+    /**
+     * Copies a channel to another using {@link FileChannel#transferTo}.
+     * @return the number of bytes copied, -1 if the source is not a regular
+     * file (e.g. a pipe)
+     */
+    private static long transferFile(FileChannel source, FileChannel destination) throws IOException {
+        long size;
         try {
-            scaledBitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
+            size = source.size();
         }
-        finally {
-            if (scaledBitmap != bitmap)
-                bitmap.recycle();
+        catch (IOException e) {
+            return -1;
         }
+        if (size <= 0)
+            return -1;
 
-        // check for rotation data
-        Bitmap rotatedScaledBitmap = bitmapOrientation(context, uri, scaledBitmap);
-        if (rotatedScaledBitmap != scaledBitmap)
-            scaledBitmap.recycle();
+        long position = 0;
+        while (position < size) {
+            long count = source.transferTo(position, size - position, destination);
+            if (count <= 0)
+                break;
+            position += count;
+        }
+        if (position != size)
+            throw new IOException("short transfer: " + position + " of " + size + " bytes");
+        return size;
+    }
 
+    /** Returns true if the file lives in the application private storage. */
+    private static boolean isApplicationFile(Context context, File file) {
         try {
-            rotatedScaledBitmap.compress(format, quality, output);
+            String path = file.getCanonicalPath();
+            File[] roots = {
+                context.getFilesDir(),
+                context.getCacheDir(),
+                context.getExternalFilesDir(null),
+                context.getExternalCacheDir(),
+            };
+            for (File root : roots) {
+                if (root != null && path.startsWith(root.getCanonicalPath() + File.separator))
+                    return true;
+            }
         }
-        finally {
-            rotatedScaledBitmap.recycle();
+        catch (IOException e) {
+            Log.d(TAG, "unable to resolve " + file, e);
         }
+        return false;
     }
 
-    public static File copyOutgoingMedia(Context context, Uri media) throws IOException {
-        final File outFile = getOutgoingPictureFile();
-        InputStream in = context.getContentResolver().openInputStream(media);
-        OutputStream out = null;
+    /** Creates a hard link to a file, replacing the destination. */
+    private static boolean linkFile(File source, File destination) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !source.isFile())
+            return false;
+
         try {
-            out = new FileOutputStream(outFile);
-            SystemUtils.copy(in, out);
-            return outFile;
+            destination.delete();
+            Os.link(source.getPath(), destination.getPath());
+            return true;
         }
-        finally {
-            SystemUtils.closeStream(in);
-            SystemUtils.closeStream(out);
+        catch (ErrnoException e) {
+            // different filesystem or not supported
+            Log.d(TAG, "unable to link " + source + ": " + e.getMessage());
+            return false;
         }
-
     }
 
     /**
@@ -188,7 +188,8 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list,
+                ServerListUpdater.getServerSelector(context));
         }
     }
 
@@ -515,6 +516,16 @@ public final class Preferences {
             .getBoolean(R.bool.pref_default_accept_any_certificate));
     }
 
+    public static boolean getConnectionRacing(Context context) {
+        return getBoolean("pref_connection_racing", context.getResources()
+            .getBoolean(R.bool.pref_default_connection_racing));
+    }
+
+    public static boolean getStreamResumption(Context context) {
+        return getBoolean("pref_stream_resumption", context.getResources()
+            .getBoolean(R.bool.pref_default_stream_resumption));
+    }
+
     @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
     public static boolean setAcceptAnyCertificate(boolean acceptAnyCertificate) {
         return sPreferences.edit()
@@ -600,31 +611,25 @@ public final class Preferences {
             .getResources().getBoolean(R.bool.pref_default_debug_log));
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+    /** Returns the serialized ping interval model for the given network. */
+    public static String getPingIntervalModel(String networkId) {
+        return getString("ping_model_" + networkId, null);
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
+    public static boolean setPingIntervalModel(String networkId, String model) {
+        return sPreferences.edit()
+            .putString("ping_model_" + networkId, model)
             .commit();
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
+    /** Returns the cached service discovery data for the given server. */
+    public static String getServiceDiscoveryCache(String server) {
+        return getString("discovery_cache_" + server, null);
     }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+    public static boolean setServiceDiscoveryCache(String server, String data) {
+        return sPreferences.edit()
+            .putString("discovery_cache_" + server, data)
             .commit();
     }
 
@@ -25,11 +25,16 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * A simplified FileWriter capable of rotating a file after a given
  * amount of bytes have been written to the underlying file.
+ * The file can be rotated either by deleting old lines from the file itself
+ * or by renaming it to a new segment (file.1, file.2, ...) and starting
+ * over with an empty file. The latter doesn't need to rewrite the file.
  * @author Daniele Ricci
  */
 public class RotatingFileWriter implements Flushable, Closeable {
@@ -38,27 +43,75 @@ public class RotatingFileWriter implements Flushable, Closeable {
 
     /** Rotate at this amount of bytes. */
     private static final long ROTATE_AT = 1048576;
-    /** How many old lines to delete when rotating. */
-    private static final int DELETE_OLD = 100;
+    /** How many old segments to keep when rotating. */
+    private static final int OLD_SEGMENTS = 1;
 
     private final long mRotateAt;
     private final long mDeleteOld;
+    /** Number of old segments to keep, 0 to delete old lines instead. */
+    private final int mSegments;
     private final File mLogFile;
     private FileWriter mWriter;
     /** Caches the amount of bytes written in the current file. */
     private long mSize;
 
+    /** Creates a writer rotating the file into segments. */
     public RotatingFileWriter(File logFile) throws IOException {
-        this(logFile, ROTATE_AT, DELETE_OLD);
+        this(logFile, ROTATE_AT, 0, OLD_SEGMENTS);
     }
 
+    /** Creates a writer deleting the given amount of old lines when rotating. */
     public RotatingFileWriter(File logFile, long rotateAt, int deleteOld) throws IOException {
+        this(logFile, rotateAt, deleteOld, 0);
+    }
+
+    private RotatingFileWriter(File logFile, long rotateAt, int deleteOld, int segments) throws IOException {
         super();
         mLogFile = logFile;
         mWriter = new FileWriter(logFile, true);
         mSize = mLogFile.length();
         mRotateAt = rotateAt;
         mDeleteOld = deleteOld;
+        mSegments = segments;
+    }
+
+    /**
+     * Creates a writer rotating the file into segments.
+     * @param logFile the file to write to
+     * @param rotateAt maximum size of a segment
+     * @param segments how many old segments to keep
+     */
+    public static RotatingFileWriter segmented(File logFile, long rotateAt, int segments) throws IOException {
+        if (segments <= 0)
+            throw new IllegalArgumentException("at least one old segment is needed");
+        return new RotatingFileWriter(logFile, rotateAt, 0, segments);
+    }
+
+    /** Returns all existing files written by this writer, oldest first. */
+    public List<File> getFiles() {
+        return getFiles(mLogFile, mSegments);
+    }
+
+    /** Returns all existing files of a log, oldest first. */
+    public static List<File> getFiles(File logFile, int segments) {
+        List<File> files = new ArrayList<>(segments + 1);
+        for (int i = segments; i > 0; i--) {
+            File segment = getSegment(logFile, i);
+            if (segment.isFile())
+                files.add(segment);
+        }
+        if (logFile.isFile())
+            files.add(logFile);
+        return files;
+    }
+
+    /** Returns the default number of old segments kept. */
+    public static int getDefaultSegments() {
+        return OLD_SEGMENTS;
+    }
+
+    private static File getSegment(File logFile, int index) {
+        return new File(logFile.toString() + "." + index);
     }
 
     @Override
@@ -75,7 +128,8 @@ public class RotatingFileWriter implements Flushable, Closeable {
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public synchronized void abort() throws IOException {
         close();
-        mLogFile.delete();
+        for (File file : getFiles())
+            file.delete();
     }
 
     private void write(String str) throws IOException {
@@ -110,6 +164,32 @@ public class RotatingFileWriter implements Flushable, Closeable {
     }
 
     private boolean rotate() throws IOException {
+        return mSegments > 0 ? rotateSegments() : rotateLines();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private boolean rotateSegments() {
+        // shift old segments, dropping the oldest one
+        File oldest = getSegment(mLogFile, mSegments);
+        oldest.delete();
+        for (int i = mSegments - 1; i > 0; i--) {
+            File segment = getSegment(mLogFile, i);
+            if (segment.isFile())
+                segment.renameTo(getSegment(mLogFile, i + 1));
+        }
+
+        mSize = 0;
+        if (mLogFile.renameTo(getSegment(mLogFile, 1))) {
+            return true;
+        }
+        else {
+            // we couldn't rename the old log file
+            // we just delete it to make space for a new one
+            return mLogFile.delete();
+        }
+    }
+
+    private boolean rotateLines() throws IOException {
         // rename the current file
         File oldFile = new File(mLogFile.toString() + ".old");
         File newFile = new File(mLogFile.toString());
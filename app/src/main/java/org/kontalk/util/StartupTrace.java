@@ -0,0 +1,143 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Lightweight tracing of application startup.
+ * Each initialization step records when it started (relative to the start
+ * of the process, approximated by the call to {@link #start()}) and how long
+ * it took. Tracing stops when the first activity draws its first frame; the
+ * trace can then be logged.
+ * @author Daniele Ricci
+ */
+public final class StartupTrace {
+
+    /** Maximum number of steps recorded. */
+    private static final int MAX_ENTRIES = 64;
+
+    public static final class Entry {
+        public final String step;
+        public final String thread;
+        /** Start of the step since process start, in nanoseconds. */
+        public final long start;
+        /** Duration of the step, in nanoseconds. */
+        public final long duration;
+
+        Entry(String step, String thread, long start, long duration) {
+            this.step = step;
+            this.thread = thread;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%9.1f %9.1f  %s [%s]",
+                start / 1e6, duration / 1e6, step, thread);
+        }
+    }
+
+    private static long sOrigin;
+    private static boolean sStarted;
+    private static final List<Entry> sEntries = new ArrayList<>();
+    private static volatile boolean sFinished;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Sets the trace origin. Should be called as early as possible;
+     * calling it again has no effect.
+     */
+    public static synchronized void start() {
+        if (!sStarted) {
+            sOrigin = System.nanoTime();
+            sStarted = true;
+        }
+    }
+
+    /** Returns the trace origin, setting it if {@link #start()} was not called. */
+    private static synchronized long origin() {
+        start();
+        return sOrigin;
+    }
+
+    /** Marks the beginning of a step. */
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a step.
+     * @param step step name
+     * @param begin value returned by {@link #begin()}
+     * @return the current time, to be used as the beginning of the next step
+     */
+    public static long end(String step, long begin) {
+        long now = System.nanoTime();
+        if (!sFinished) {
+            synchronized (sEntries) {
+                if (!sFinished && sEntries.size() < MAX_ENTRIES) {
+                    sEntries.add(new Entry(step, Thread.currentThread().getName(),
+                        begin - origin(), now - begin));
+                }
+            }
+        }
+        return now;
+    }
+
+    /** Returns the time elapsed since process start, in milliseconds. */
+    public static long elapsed() {
+        return (System.nanoTime() - origin()) / 1000000;
+    }
+
+    public static boolean isFinished() {
+        return sFinished;
+    }
+
+    /**
+     * Stops tracing.
+     * @return the recorded steps, or null if tracing was already stopped
+     */
+    public static List<Entry> finish() {
+        synchronized (sEntries) {
+            if (sFinished)
+                return null;
+            sFinished = true;
+            List<Entry> entries = new ArrayList<>(sEntries);
+            sEntries.clear();
+            return Collections.unmodifiableList(entries);
+        }
+    }
+
+    /** Formats a trace for logging, one step per line. */
+    public static String format(List<Entry> entries) {
+        StringBuilder out = new StringBuilder("    start  duration  step [thread] (ms)");
+        for (Entry e : entries)
+            out.append('\n').append(e);
+        return out.toString();
+    }
+
+}
@@ -32,6 +32,8 @@ import com.afollestad.assent.Assent;
 import com.afollestad.assent.AssentCallback;
 import com.afollestad.assent.PermissionResultSet;
 
+import org.jivesoftware.smack.util.SHA1;
+
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
@@ -51,12 +53,16 @@ import android.graphics.Point;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.PowerManager;
 import android.provider.ContactsContract;
 import android.support.annotation.AttrRes;
 import android.support.annotation.ColorRes;
 import android.support.v4.content.ContextCompat;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
@@ -85,6 +91,9 @@ public final class SystemUtils {
     private static final Pattern VERSION_CODE_MATCH = Pattern
         .compile("\\(([0-9]+)\\)$");
 
+    /** SSID returned by {@link WifiInfo#getSSID()} when not available. */
+    private static final String UNKNOWN_SSID = "<unknown ssid>";
+
     private static Uri sProfileUri;
 
     private SystemUtils() {
@@ -199,6 +208,40 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns an identifier for the current network, or null.
+     * For WiFi networks an hash of the SSID is used; for mobile networks the
+     * operator code and network subtype are used. The network type name is
+     * used as a fallback.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        String id = null;
+        if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifiMgr = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifiMgr != null ? wifiMgr.getConnectionInfo() : null;
+            String ssid = wifiInfo != null ? wifiInfo.getSSID() : null;
+            if (ssid != null && !UNKNOWN_SSID.equals(ssid))
+                id = SHA1.hex(ssid);
+        }
+        else if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            TelephonyManager telMgr = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+            String operator = telMgr != null ? telMgr.getNetworkOperator() : null;
+            if (!TextUtils.isEmpty(operator))
+                id = operator + "_" + info.getSubtypeName();
+        }
+
+        return id != null ? info.getTypeName() + "_" + id : info.getTypeName();
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -18,6 +18,7 @@
 
 package org.kontalk.util;
 
+import java.io.InputStream;
 import java.io.StringReader;
 import java.util.Date;
 
@@ -51,22 +52,58 @@ public class XMPPUtils {
 
     private static XmlPullParserFactory _xmlFactory;
 
-    private static XmlPullParser getPullParser(String data) throws XmlPullParserException {
+    /** Pull parsers are reused by each thread parsing streams. */
+    private static final ThreadLocal<XmlPullParser> sStreamParser = new ThreadLocal<>();
+
+    private static synchronized XmlPullParser newPullParser() throws XmlPullParserException {
         if (_xmlFactory == null) {
             _xmlFactory = XmlPullParserFactory.newInstance();
             _xmlFactory.setNamespaceAware(true);
         }
 
-        XmlPullParser parser = _xmlFactory.newPullParser();
+        return _xmlFactory.newPullParser();
+    }
+
+    private static XmlPullParser getPullParser(String data) throws XmlPullParserException {
+        XmlPullParser parser = newPullParser();
         parser.setInput(new StringReader(data));
 
         return parser;
     }
 
+    private static XmlPullParser getPullParser(InputStream in, String encoding) throws XmlPullParserException {
+        XmlPullParser parser = sStreamParser.get();
+        if (parser == null) {
+            parser = newPullParser();
+            sStreamParser.set(parser);
+        }
+        // this will also reset the parser
+        parser.setInput(in, encoding);
+
+        return parser;
+    }
+
     /** Parses a &lt;xmpp&gt;-wrapped message stanza. */
     public static Message parseMessageStanza(String data) throws Exception {
+        return parseMessageStanza(getPullParser(data));
+    }
 
-        XmlPullParser parser = getPullParser(data);
+    /**
+     * Parses a &lt;xmpp&gt;-wrapped message stanza directly from a stream.
+     * The stream might not be read completely.
+     */
+    public static Message parseMessageStanza(InputStream in, String encoding) throws Exception {
+        XmlPullParser parser = getPullParser(in, encoding);
+        try {
+            return parseMessageStanza(parser);
+        }
+        finally {
+            // release the stream
+            parser.setInput(null);
+        }
+    }
+
+    private static Message parseMessageStanza(XmlPullParser parser) throws Exception {
         boolean done = false, in_xmpp = false;
         Message msg = null;
 
@@ -88,6 +125,10 @@ public class XMPPUtils {
                 if ("xmpp".equals(parser.getName()))
                     done = true;
             }
+
+            else if (eventType == XmlPullParser.END_DOCUMENT) {
+                done = true;
+            }
         }
 
         return msg;
@@ -0,0 +1,234 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.SocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Connection racing tests and benchmark against local listeners.
+ * Black-holed addresses are simulated by sockets never completing the
+ * connection until the timeout expires.
+ */
+public class ConnectionRacerTest {
+
+    private static final int TIMEOUT = 2000;
+
+    /** A socket factory black-holing connections to some ports. */
+    private static final class BlackHoleSocketFactory extends SocketFactory {
+        final Set<Integer> blackHoled = new HashSet<>();
+
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                private final Object mLock = new Object();
+                private boolean mClosed;
+
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    if (blackHoled.contains(((InetSocketAddress) endpoint).getPort())) {
+                        synchronized (mLock) {
+                            long end = System.currentTimeMillis() + timeout;
+                            long now;
+                            while (!mClosed && (now = System.currentTimeMillis()) < end) {
+                                try {
+                                    mLock.wait(end - now);
+                                }
+                                catch (InterruptedException e) {
+                                    break;
+                                }
+                            }
+                            if (mClosed)
+                                throw new SocketException("closed");
+                            throw new SocketTimeoutException("black holed");
+                        }
+                    }
+                    super.connect(endpoint, timeout);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    synchronized (mLock) {
+                        mClosed = true;
+                        mLock.notifyAll();
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private BlackHoleSocketFactory mFactory;
+    private List<ServerSocket> mListeners;
+
+    @Before
+    public void setUp() {
+        mFactory = new BlackHoleSocketFactory();
+        mListeners = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ServerSocket s : mListeners)
+            s.close();
+    }
+
+    private InetSocketAddress listener() throws IOException {
+        ServerSocket s = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mListeners.add(s);
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), s.getLocalPort());
+    }
+
+    private InetSocketAddress blackHole() throws IOException {
+        InetSocketAddress address = listener();
+        mFactory.blackHoled.add(address.getPort());
+        return address;
+    }
+
+    private static InetSocketAddress refused() throws IOException {
+        ServerSocket s = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int port = s.getLocalPort();
+        s.close();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /** Connects and returns the time to connected in milliseconds. */
+    private long timeToConnected(long attemptDelay, List<InetSocketAddress> addresses,
+            InetSocketAddress expected) throws Exception {
+        ConnectionRacer racer = new ConnectionRacer(mFactory, attemptDelay, TIMEOUT);
+        long start = System.nanoTime();
+        ConnectionRacer.Result result = racer.connect(addresses);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        try {
+            assertEquals(expected, result.getAddress());
+            assertTrue(result.getSocket().isConnected());
+        }
+        finally {
+            result.getSocket().close();
+        }
+        return elapsed;
+    }
+
+    @Test
+    public void testGoodNetwork() throws Exception {
+        InetSocketAddress good = listener();
+        long time = timeToConnected(ConnectionRacer.DEFAULT_ATTEMPT_DELAY,
+            Arrays.asList(good, listener()), good);
+        assertTrue(time < ConnectionRacer.DEFAULT_ATTEMPT_DELAY);
+    }
+
+    @Test
+    public void testRefusedStartsNextImmediately() throws Exception {
+        InetSocketAddress good = listener();
+        long time = timeToConnected(ConnectionRacer.DEFAULT_ATTEMPT_DELAY,
+            Arrays.asList(refused(), refused(), good), good);
+        assertTrue(time < ConnectionRacer.DEFAULT_ATTEMPT_DELAY);
+    }
+
+    @Test
+    public void testAllFailed() throws Exception {
+        InetSocketAddress a1 = refused();
+        InetSocketAddress a2 = blackHole();
+        ConnectionRacer racer = new ConnectionRacer(mFactory, 50, 200);
+        try {
+            racer.connect(Arrays.asList(a1, a2));
+            fail("connection should have failed");
+        }
+        catch (ConnectionRacer.RaceFailedException e) {
+            assertEquals(2, e.getFailures().size());
+            assertTrue(e.getFailures().get(a2) instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void testInterleave() throws Exception {
+        InetSocketAddress v6a = new InetSocketAddress(InetAddress.getByName("::1"), 1);
+        InetSocketAddress v6b = new InetSocketAddress(InetAddress.getByName("::1"), 2);
+        InetSocketAddress v4a = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1);
+        InetSocketAddress v4b = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 2);
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b),
+            ConnectionRacer.interleave(Arrays.asList(v6a, v6b, v4a, v4b)));
+        assertEquals(Arrays.asList(v4a, v6a, v4b),
+            ConnectionRacer.interleave(Arrays.asList(v4a, v4b, v6a)));
+    }
+
+    /** Compares sequential connection attempts with racing. */
+    @Test
+    public void benchmarkTimeToConnected() throws Exception {
+        // sequential: the next attempt starts only after the previous one has timed out
+        long sequential = TIMEOUT + 1000;
+
+        InetSocketAddress good = listener();
+        List<InetSocketAddress> goodNetwork = Arrays.asList(good, listener());
+        long goodSequential = timeToConnected(sequential, goodNetwork, good);
+        long goodRacing = timeToConnected(ConnectionRacer.DEFAULT_ATTEMPT_DELAY, goodNetwork, good);
+
+        good = listener();
+        List<InetSocketAddress> degradedNetwork = Arrays.asList(blackHole(), good);
+        long degradedSequential = timeToConnected(sequential, degradedNetwork, good);
+        long degradedRacing = timeToConnected(ConnectionRacer.DEFAULT_ATTEMPT_DELAY, degradedNetwork, good);
+
+        // racing costs nothing on a good network
+        assertTrue(goodSequential < TIMEOUT / 2);
+        assertTrue(goodRacing < TIMEOUT / 2);
+        assertTrue(degradedSequential >= TIMEOUT);
+        assertTrue(degradedRacing < TIMEOUT / 2);
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PriorityBlockingQueueWithShutdownTest {
+
+    private static final int MESSAGE = 1;
+    private static final int PRESENCE = 3;
+
+    private static final class Item {
+        final int priority;
+        final int index;
+
+        Item(int priority, int index) {
+            this.priority = priority;
+            this.index = index;
+        }
+    }
+
+    private static final PriorityBlockingQueueWithShutdown.Prioritizer<Item> PRIORITIZER =
+        new PriorityBlockingQueueWithShutdown.Prioritizer<Item>() {
+            @Override
+            public int getPriority(Item element) {
+                return element.priority;
+            }
+        };
+
+    private static final PriorityBlockingQueueWithShutdown.Prioritizer<Item> FIFO =
+        new PriorityBlockingQueueWithShutdown.Prioritizer<Item>() {
+            @Override
+            public int getPriority(Item element) {
+                return 0;
+            }
+        };
+
+    private static PriorityBlockingQueueWithShutdown<Item> newQueue(int capacity, int maxSkips) {
+        return new PriorityBlockingQueueWithShutdown<>(capacity, 4, maxSkips, PRIORITIZER);
+    }
+
+    @Test
+    public void testOrderWithinClass() throws Exception {
+        PriorityBlockingQueueWithShutdown<Item> queue = newQueue(100, 8);
+        for (int i = 0; i < 10; i++)
+            queue.put(new Item(MESSAGE, i));
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, queue.take().index);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        PriorityBlockingQueueWithShutdown<Item> queue = newQueue(100, 8);
+        for (int i = 0; i < 50; i++)
+            queue.put(new Item(PRESENCE, i));
+        queue.put(new Item(MESSAGE, 0));
+        queue.put(new Item(0, 0));
+
+        assertEquals(0, queue.take().priority);
+        assertEquals(MESSAGE, queue.take().priority);
+        assertEquals(PRESENCE, queue.take().priority);
+    }
+
+    @Test
+    public void testStarvationBounded() throws Exception {
+        final int maxSkips = 4;
+        PriorityBlockingQueueWithShutdown<Item> queue = newQueue(100, maxSkips);
+        queue.put(new Item(PRESENCE, 0));
+        for (int i = 0; i < 50; i++)
+            queue.put(new Item(MESSAGE, i));
+
+        int taken = 0;
+        Item item;
+        do {
+            item = queue.take();
+            taken++;
+        } while (item.priority != PRESENCE);
+        assertEquals(maxSkips + 1, taken);
+
+        // messages order is preserved
+        for (int i = maxSkips; i < 50; i++)
+            assertEquals(i, queue.take().index);
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+        PriorityBlockingQueueWithShutdown<Item> queue = newQueue(100, 8);
+        for (int i = 0; i < 10; i++)
+            queue.put(new Item(i % 2 == 0 ? PRESENCE : MESSAGE, i));
+
+        List<Item> items = new ArrayList<>();
+        assertEquals(10, queue.drainTo(items));
+        // insertion order is kept
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, items.get(i).index);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        final PriorityBlockingQueueWithShutdown<Item> queue = newQueue(1, 8);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread taker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.take();
+                }
+                catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        taker.start();
+        Thread.sleep(100);
+        queue.shutdown();
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+
+        try {
+            queue.put(new Item(MESSAGE, 0));
+            fail("put should fail after shutdown");
+        }
+        catch (InterruptedException ignored) {
+        }
+
+        queue.start();
+        queue.put(new Item(MESSAGE, 0));
+        assertEquals(1, queue.size());
+    }
+
+    /**
+     * A chat message queued behind a presence flood must not wait for the
+     * flood to be written.
+     */
+    @Test
+    public void testMessageUnderPresenceFlood() throws Exception {
+        final int maxSkips = 8;
+        final int presences = 400;
+        assertEquals(1, takesUntilMessage(newQueue(500, maxSkips), presences));
+        // the flood has already been skipped by earlier messages
+        PriorityBlockingQueueWithShutdown<Item> queue = newQueue(500, maxSkips);
+        queue.put(new Item(PRESENCE, -1));
+        for (int i = 0; i < maxSkips; i++)
+            queue.put(new Item(MESSAGE, i));
+        for (int i = 0; i < maxSkips; i++)
+            assertEquals(MESSAGE, queue.take().priority);
+        assertTrue(takesUntilMessage(queue, presences) <= maxSkips + 1);
+
+        // compare with a FIFO queue
+        assertEquals(presences + 1, takesUntilMessage(
+            new PriorityBlockingQueueWithShutdown<>(500, 4, maxSkips, FIFO), presences));
+    }
+
+    /** Fills the queue with presences, then returns the takes needed to get a message. */
+    private static int takesUntilMessage(PriorityBlockingQueueWithShutdown<Item> queue, int presences)
+            throws InterruptedException {
+        for (int i = 0; i < presences; i++)
+            queue.put(new Item(PRESENCE, i));
+        queue.put(new Item(MESSAGE, -1));
+
+        int taken = 0;
+        Item item;
+        do {
+            item = queue.take();
+            taken++;
+        } while (item.priority != MESSAGE);
+        return taken;
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ServerSelectorTest {
+
+    /**
+     * A local endpoint answering to a fake handshake after a given delay.
+     */
+    private static final class StandInEndpoint implements Runnable {
+        final ServerSocket socket;
+        final long latency;
+        final EndpointServer server;
+        final Thread thread;
+
+        StandInEndpoint(long latency) throws IOException {
+            this.latency = latency;
+            socket = new ServerSocket(0);
+            server = new EndpointServer("kontalk.test", "127.0.0.1", socket.getLocalPort());
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    Thread.sleep(latency);
+                    client.getOutputStream().write(1);
+                    client.close();
+                }
+                catch (Exception e) {
+                    // closed
+                }
+            }
+        }
+
+        void close() throws Exception {
+            socket.close();
+            thread.join();
+        }
+    }
+
+    private static final long TIMEOUT = 2000;
+
+    private List<StandInEndpoint> mEndpoints;
+
+    @Before
+    public void setUp() throws Exception {
+        mEndpoints = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (StandInEndpoint e : mEndpoints)
+            e.close();
+    }
+
+    private EndpointServer addEndpoint(long latency) throws IOException {
+        StandInEndpoint e = new StandInEndpoint(latency);
+        mEndpoints.add(e);
+        return e.server;
+    }
+
+    /** Returns an endpoint nobody is listening to. */
+    private static EndpointServer deadEndpoint() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return new EndpointServer("kontalk.test", "127.0.0.1", port);
+    }
+
+    /** Connects to the endpoint and records the result in the selector. */
+    private static void connect(ServerSelector selector, EndpointServer server) {
+        Socket socket = new Socket();
+        try {
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), (int) TIMEOUT);
+            long connectTime = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            socket.setSoTimeout((int) TIMEOUT);
+            InputStream in = socket.getInputStream();
+            if (in.read() < 0)
+                throw new IOException("handshake failed");
+            long handshakeTime = (System.nanoTime() - start) / 1000000;
+
+            selector.connected(server, connectTime, handshakeTime);
+        }
+        catch (IOException e) {
+            selector.failed(server);
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Map<EndpointServer, Integer> run(ServerSelector selector, List<EndpointServer> servers, int count) {
+        Map<EndpointServer, Integer> picks = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            EndpointServer server = selector.select(servers);
+            Integer c = picks.get(server);
+            picks.put(server, c != null ? c + 1 : 1);
+            connect(selector, server);
+        }
+        return picks;
+    }
+
+    private static int count(Map<EndpointServer, Integer> picks, EndpointServer server) {
+        Integer c = picks.get(server);
+        return c != null ? c : 0;
+    }
+
+    @Test
+    public void testEmpty() {
+        ServerSelector selector = new ServerSelector(new Random(1));
+        assertNull(selector.select(new ArrayList<EndpointServer>()));
+    }
+
+    @Test
+    public void testPrefersFastest() throws Exception {
+        EndpointServer slow = addEndpoint(150);
+        EndpointServer medium = addEndpoint(60);
+        EndpointServer fast = addEndpoint(5);
+        List<EndpointServer> servers = Arrays.asList(slow, medium, fast);
+
+        ServerSelector selector = new ServerSelector(new Random(42));
+        // learn about all servers first
+        for (EndpointServer server : servers)
+            connect(selector, server);
+
+        Map<EndpointServer, Integer> picks = run(selector, servers, 30);
+        assertTrue(count(picks, fast) >= 24);
+        assertTrue(selector.getScore(fast) < selector.getScore(medium));
+        assertTrue(selector.getScore(medium) < selector.getScore(slow));
+    }
+
+    @Test
+    public void testAvoidsFailingServer() throws Exception {
+        EndpointServer dead = deadEndpoint();
+        EndpointServer alive = addEndpoint(50);
+        List<EndpointServer> servers = Arrays.asList(dead, alive);
+
+        ServerSelector selector = new ServerSelector(new Random(42));
+        Map<EndpointServer, Integer> picks = run(selector, servers, 30);
+        // the failing server is tried once and then only explored
+        assertTrue(count(picks, dead) <= 5);
+        assertTrue(selector.getScore(dead) > selector.getScore(alive));
+    }
+
+    @Test
+    public void testExploration() throws Exception {
+        EndpointServer slow = addEndpoint(20);
+        EndpointServer fast = addEndpoint(1);
+        List<EndpointServer> servers = Arrays.asList(slow, fast);
+
+        ServerSelector selector = new ServerSelector(new Random(42));
+        selector.connected(fast, 1, 1);
+        selector.connected(slow, 1000, 1000);
+        Map<EndpointServer, Integer> picks = run(selector, servers, 100);
+        // the other server must be tried once in a while
+        assertTrue(count(picks, slow) > 0);
+        assertTrue(count(picks, slow) < 20);
+    }
+
+    @Test
+    public void testUnknownServerTried() {
+        EndpointServer known = new EndpointServer("kontalk.test", "known.kontalk.test", 5222);
+        EndpointServer unknown = new EndpointServer("kontalk.test", "unknown.kontalk.test", 5222);
+        ServerSelector selector = new ServerSelector(new Random(42));
+        // a slow server should leave room for trying other servers
+        selector.connected(known, ServerSelector.UNKNOWN_LATENCY * 2, 0);
+        int unknownPicks = 0;
+        for (int i = 0; i < 20; i++) {
+            if (unknown.equals(selector.select(Arrays.asList(known, unknown))))
+                unknownPicks++;
+        }
+        assertTrue(unknownPicks > 15);
+    }
+
+    @Test
+    public void testStoreLoad() {
+        EndpointServer s1 = new EndpointServer("kontalk.test", "s1.kontalk.test", 5222);
+        EndpointServer s2 = new EndpointServer("kontalk.test", "s2.kontalk.test", 7777);
+        ServerSelector selector = new ServerSelector(new Random(42));
+        selector.connected(s1, 100, 200);
+        selector.failed(s2);
+
+        Properties prop = selector.store();
+        ServerSelector restored = new ServerSelector(new Random(42));
+        restored.load(prop);
+        assertEquals(selector.getScore(s1), restored.getScore(s1), 0.001);
+        assertEquals(selector.getScore(s2), restored.getScore(s2), 0.001);
+
+        // invalid data is ignored
+        prop = new Properties();
+        prop.setProperty(s1.toString(), "garbage");
+        restored = new ServerSelector(new Random(42));
+        restored.load(prop);
+        assertEquals(ServerSelector.UNKNOWN_LATENCY, restored.getScore(s1), 0.001);
+    }
+
+}
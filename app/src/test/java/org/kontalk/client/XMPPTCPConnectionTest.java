@@ -0,0 +1,97 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import org.jivesoftware.smack.packet.Element;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.sm.packet.StreamManagement.AckRequest;
+import org.jivesoftware.smackx.chatstates.ChatState;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.ping.packet.Ping;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class XMPPTCPConnectionTest {
+
+    private static int priority(Element element) {
+        return XMPPTCPConnection.ELEMENT_PRIORITIZER.getPriority(element);
+    }
+
+    private static Message chatMessage() {
+        Message message = new Message();
+        message.setType(Message.Type.chat);
+        message.setBody("hello");
+        return message;
+    }
+
+    @Test
+    public void testPriorityClasses() {
+        assertEquals(XMPPTCPConnection.PRIORITY_NONZA, priority(AckRequest.INSTANCE));
+        assertEquals(XMPPTCPConnection.PRIORITY_MESSAGE, priority(chatMessage()));
+        assertEquals(XMPPTCPConnection.PRIORITY_MESSAGE, priority(new Ping()));
+        assertEquals(XMPPTCPConnection.PRIORITY_PRESENCE, priority(new Presence(Presence.Type.available)));
+        assertEquals(XMPPTCPConnection.PRIORITY_PRESENCE, priority(new Presence(Presence.Type.unavailable)));
+
+        Message composing = new Message();
+        composing.addExtension(new ChatStateExtension(ChatState.composing));
+        assertEquals(XMPPTCPConnection.PRIORITY_PRESENCE, priority(composing));
+    }
+
+    /** The server checks messages against subscriptions: they must not be reordered. */
+    @Test
+    public void testSubscriptionOrder() throws Exception {
+        PriorityBlockingQueueWithShutdown<Element> queue = new PriorityBlockingQueueWithShutdown<>(100,
+            XMPPTCPConnection.PRIORITY_CLASSES, XMPPTCPConnection.PRIORITY_MAX_SKIPS, XMPPTCPConnection.ELEMENT_PRIORITIZER);
+        for (int i = 0; i < 20; i++)
+            queue.put(new Presence(Presence.Type.available));
+        Presence.Type[] subscriptions = {
+            Presence.Type.subscribe,
+            Presence.Type.subscribed,
+            Presence.Type.unsubscribe,
+            Presence.Type.unsubscribed,
+        };
+        for (Presence.Type type : subscriptions) {
+            queue.put(new Presence(type));
+            queue.put(chatMessage());
+        }
+
+        // subscriptions and messages might overtake presence broadcasts, but not each other
+        for (Presence.Type type : subscriptions) {
+            Element element = takeOrdered(queue);
+            assertTrue(element instanceof Presence);
+            assertEquals(type, ((Presence) element).getType());
+            assertTrue(takeOrdered(queue) instanceof Message);
+        }
+    }
+
+    /** Takes the next element that is not a presence broadcast. */
+    private static Element takeOrdered(PriorityBlockingQueueWithShutdown<Element> queue)
+            throws InterruptedException {
+        while (true) {
+            Element element = queue.take();
+            if (priority(element) != XMPPTCPConnection.PRIORITY_PRESENCE)
+                return element;
+        }
+    }
+
+}
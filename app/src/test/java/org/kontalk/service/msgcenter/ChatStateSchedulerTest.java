@@ -0,0 +1,156 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ChatStateSchedulerTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final String BOB = "bob@example.com";
+
+    private List<String> mSent;
+    private int mQueueSize;
+    private ChatStateScheduler<String> mScheduler;
+
+    @Before
+    public void setUp() {
+        mSent = new ArrayList<>();
+        mQueueSize = 0;
+        mScheduler = new ChatStateScheduler<>(new ChatStateScheduler.Sender<String>() {
+            @Override
+            public int getOutgoingQueueSize() {
+                return mQueueSize;
+            }
+
+            @Override
+            public void sendChatState(String data) {
+                mSent.add(data);
+            }
+        });
+    }
+
+    /** Runs the scheduler until nothing is pending, returns the final time. */
+    private long run(long now, long delay) {
+        while (delay >= 0) {
+            now += delay;
+            delay = mScheduler.flush(now);
+        }
+        return now;
+    }
+
+    @Test
+    public void testDebounce() {
+        long delay = mScheduler.schedule(ALICE, "composing", "composing", 0);
+        assertEquals(ChatStateScheduler.DEBOUNCE_DELAY, delay);
+        // nothing is sent before the debounce delay
+        assertEquals(ChatStateScheduler.DEBOUNCE_DELAY - 100, mScheduler.flush(100));
+        assertTrue(mSent.isEmpty());
+
+        run(100, ChatStateScheduler.DEBOUNCE_DELAY - 100);
+        assertEquals(1, mSent.size());
+    }
+
+    @Test
+    public void testCoalesce() {
+        mScheduler.schedule(ALICE, "composing", "composing", 0);
+        mScheduler.schedule(ALICE, "paused", "paused", 100);
+        mScheduler.schedule(ALICE, "inactive", "inactive", 200);
+        run(200, ChatStateScheduler.DEBOUNCE_DELAY);
+
+        // only the last state is sent
+        assertEquals(1, mSent.size());
+        assertEquals("inactive", mSent.get(0));
+        assertEquals(2, mScheduler.getSuppressedCount());
+    }
+
+    @Test
+    public void testRedundant() {
+        mScheduler.schedule(ALICE, "composing", "composing", 0);
+        long now = run(0, ChatStateScheduler.DEBOUNCE_DELAY);
+        assertEquals(1, mSent.size());
+
+        // same state again
+        assertEquals(-1, mScheduler.schedule(ALICE, "composing", "composing", now + 1000));
+        // state change reverted before being sent
+        mScheduler.schedule(ALICE, "inactive", "inactive", now + 2000);
+        assertEquals(-1, mScheduler.schedule(ALICE, "composing", "composing", now + 2100));
+        assertFalse(mScheduler.hasPending());
+        assertEquals(1, mSent.size());
+
+        // redundant states are repeated after a while
+        mScheduler.schedule(ALICE, "composing", "composing", now + ChatStateScheduler.REPEAT_INTERVAL);
+        run(now + ChatStateScheduler.REPEAT_INTERVAL, ChatStateScheduler.DEBOUNCE_DELAY);
+        assertEquals(2, mSent.size());
+    }
+
+    @Test
+    public void testStateSentWithMessage() {
+        mScheduler.schedule(ALICE, "composing", "composing", 0);
+        // message sent before the typing notification
+        mScheduler.stateSent(ALICE, "active", 100);
+        assertFalse(mScheduler.hasPending());
+        assertEquals(-1, mScheduler.schedule(ALICE, "active", "active", 200));
+        assertTrue(mSent.isEmpty());
+    }
+
+    @Test
+    public void testConversations() {
+        mScheduler.schedule(ALICE, "composing", "alice", 0);
+        mScheduler.schedule(BOB, "composing", "bob", 100);
+        run(100, ChatStateScheduler.DEBOUNCE_DELAY);
+        assertEquals(2, mSent.size());
+        assertEquals("alice", mSent.get(0));
+        assertEquals("bob", mSent.get(1));
+    }
+
+    @Test
+    public void testCongestion() {
+        mQueueSize = ChatStateScheduler.CONGESTION_THRESHOLD;
+        mScheduler.schedule(ALICE, "composing", "composing", 0);
+        long delay = mScheduler.flush(ChatStateScheduler.DEBOUNCE_DELAY);
+        assertEquals(ChatStateScheduler.CONGESTION_RETRY, delay);
+        assertTrue(mSent.isEmpty());
+
+        // queue drained
+        mQueueSize = 0;
+        run(ChatStateScheduler.DEBOUNCE_DELAY, delay);
+        assertEquals(1, mSent.size());
+    }
+
+    @Test
+    public void testStaleDropped() {
+        mQueueSize = ChatStateScheduler.CONGESTION_THRESHOLD * 2;
+        mScheduler.schedule(ALICE, "composing", "composing", 0);
+        long now = run(0, ChatStateScheduler.DEBOUNCE_DELAY);
+
+        assertTrue(now > ChatStateScheduler.MAX_STATE_AGE);
+        assertTrue(mSent.isEmpty());
+        assertEquals(1, mScheduler.getDroppedCount());
+    }
+
+}
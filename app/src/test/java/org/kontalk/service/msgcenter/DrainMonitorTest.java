@@ -0,0 +1,324 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DrainMonitorTest {
+
+    /**
+     * Simulates a server delivering offline messages after login, followed by
+     * the reply to our ping. Each message takes some time to be processed.
+     * Time starts at 0 when authenticated.
+     */
+    private static final class ServerSimulator {
+        /** Delivery time of each stanza, last one is the ping reply. */
+        final long[] stanzas;
+        final long pingReply;
+        final long processing;
+
+        /**
+         * @param messages number of offline messages
+         * @param latency time before the first message is delivered
+         * @param spacing time between messages
+         * @param processing time needed to process each message
+         */
+        ServerSimulator(int messages, long latency, long spacing, long processing) {
+            stanzas = new long[messages + 1];
+            for (int i = 0; i < messages; i++)
+                stanzas[i] = latency + i * spacing;
+            pingReply = latency + messages * spacing;
+            stanzas[messages] = pingReply;
+            this.processing = processing;
+        }
+
+        long lastStanza(long now) {
+            long last = 0;
+            for (long t : stanzas) {
+                if (t <= now)
+                    last = t;
+            }
+            return last;
+        }
+
+        boolean pendingWork(long now) {
+            // messages are committed one after the other
+            long done = 0;
+            for (int i = 0; i < stanzas.length - 1; i++) {
+                if (stanzas[i] > now)
+                    return true;
+                done = Math.max(done, stanzas[i]) + processing;
+            }
+            return done > now;
+        }
+
+        /** Runs the monitor against the simulated server, returns the awake time. */
+        long run(DrainMonitor monitor, boolean reply) {
+            long now = 0;
+            while (true) {
+                if (reply && now >= pingReply)
+                    monitor.serverReplied();
+                long delay = monitor.check(now, lastStanza(now), pendingWork(now));
+                if (delay == 0)
+                    return monitor.getAwakeTime();
+                assertTrue(delay > 0);
+                now += delay;
+            }
+        }
+    }
+
+    @Test
+    public void testNoMessages() {
+        ServerSimulator server = new ServerSimulator(0, 200, 0, 0);
+        DrainMonitor monitor = new DrainMonitor(0);
+        long awake = server.run(monitor, true);
+
+        assertFalse(monitor.isTimedOut());
+        assertTrue(awake >= server.pingReply + DrainMonitor.QUIET_PERIOD);
+        assertTrue("awake for " + awake + " ms", awake < 2000);
+    }
+
+    @Test
+    public void testOfflineMessages() {
+        ServerSimulator server = new ServerSimulator(50, 100, 20, 30);
+        DrainMonitor monitor = new DrainMonitor(0);
+        long awake = server.run(monitor, true);
+
+        assertFalse(monitor.isTimedOut());
+        // everything must have been processed
+        assertFalse(server.pendingWork(awake));
+        assertTrue(awake >= server.pingReply + DrainMonitor.QUIET_PERIOD);
+        assertTrue("awake for " + awake + " ms", awake < server.pingReply + 2 * DrainMonitor.QUIET_PERIOD);
+    }
+
+    @Test
+    public void testSlowProcessing() {
+        // processing lags well behind delivery
+        ServerSimulator server = new ServerSimulator(20, 100, 10, 200);
+        DrainMonitor monitor = new DrainMonitor(0);
+        long awake = server.run(monitor, true);
+
+        assertFalse(monitor.isTimedOut());
+        assertFalse(server.pendingWork(awake));
+        assertTrue(awake < server.pingReply + 20 * 200 + DrainMonitor.QUIET_PERIOD);
+    }
+
+    @Test
+    public void testLateStanza() {
+        DrainMonitor monitor = new DrainMonitor(0);
+        monitor.serverReplied();
+        // a stanza arrived during the quiet period
+        long delay = monitor.check(1000, 900, false);
+        assertEquals(DrainMonitor.QUIET_PERIOD - 100, delay);
+        assertEquals(0, monitor.check(900 + DrainMonitor.QUIET_PERIOD, 900, false));
+    }
+
+    @Test
+    public void testNoReply() {
+        ServerSimulator server = new ServerSimulator(5, 100, 20, 10);
+        DrainMonitor monitor = new DrainMonitor(0);
+        long awake = server.run(monitor, false);
+
+        assertTrue(monitor.isTimedOut());
+        assertEquals(DrainMonitor.MAX_DRAIN_TIME, awake);
+    }
+
+    /**
+     * A local stand-in for an XMPP server holding offline messages. When the
+     * client pings it, it delivers the messages and only then the ping reply,
+     * one stanza per line.
+     */
+    private static final class XmppStandIn extends Thread {
+        private final ServerSocket mSocket;
+        private final int mMessages;
+        private final long mSpacing;
+        private final boolean mReply;
+
+        XmppStandIn(int messages, long spacing, boolean reply) throws IOException {
+            super("XmppStandIn");
+            mSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mMessages = messages;
+            mSpacing = spacing;
+            mReply = reply;
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket client = mSocket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+                // wait for the ping
+                in.readLine();
+                for (int i = 0; i < mMessages; i++) {
+                    out.write("<message type='chat' id='m" + i + "'><body>offline</body></message>\n");
+                    out.flush();
+                    Thread.sleep(mSpacing);
+                }
+                if (mReply) {
+                    out.write("<iq type='result' id='ping'/>\n");
+                    out.flush();
+                }
+                // keep the stream open until the client leaves
+                in.readLine();
+                client.close();
+            }
+            catch (Exception ignored) {
+            }
+            finally {
+                try {
+                    mSocket.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A client draining the stand-in server in real time: stanzas are read on
+     * their own thread and committed through an {@link OrderedWorkQueue}, while
+     * the monitor is polled like the message center does.
+     */
+    private static final class DrainingClient {
+        final AtomicLong lastStanza = new AtomicLong();
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicLong replyTime = new AtomicLong();
+
+        long run(final DrainMonitor monitor, int port, final long processing) throws Exception {
+            final OrderedWorkQueue queue = new OrderedWorkQueue("drain", 2, 8);
+            final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+
+                Thread reader = new Thread("DrainReader") {
+                    @Override
+                    public void run() {
+                        try {
+                            String stanza;
+                            while ((stanza = in.readLine()) != null) {
+                                lastStanza.set(System.currentTimeMillis());
+                                if (stanza.startsWith("<iq")) {
+                                    replyTime.set(System.currentTimeMillis());
+                                    monitor.serverReplied();
+                                }
+                                else {
+                                    queue.submit(new OrderedWorkQueue.Task<Void>() {
+                                        @Override
+                                        public Void process() throws Exception {
+                                            Thread.sleep(processing);
+                                            return null;
+                                        }
+
+                                        @Override
+                                        public void commit(Void result, Exception error) {
+                                            committed.incrementAndGet();
+                                        }
+                                    });
+                                }
+                            }
+                        }
+                        catch (Exception ignored) {
+                            // socket closed
+                        }
+                    }
+                };
+                reader.start();
+
+                out.write("<iq type='get' id='ping'><ping xmlns='urn:xmpp:ping'/></iq>\n");
+                out.flush();
+
+                while (true) {
+                    long delay = monitor.check(System.currentTimeMillis(), lastStanza.get(), !queue.isIdle());
+                    if (delay == 0)
+                        return monitor.getAwakeTime();
+                    assertTrue(delay > 0);
+                    Thread.sleep(delay);
+                }
+            }
+            finally {
+                socket.close();
+                queue.shutdown(1, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void testWallClock() throws Exception {
+        int messages = 20;
+        long quiet = 300;
+        XmppStandIn server = new XmppStandIn(messages, 10, true);
+        server.start();
+
+        long start = System.currentTimeMillis();
+        DrainMonitor monitor = new DrainMonitor(start, quiet, 10000);
+        DrainingClient client = new DrainingClient();
+        long awake = client.run(monitor, server.getPort(), 20);
+        server.join(1000);
+
+        assertFalse(monitor.isTimedOut());
+        // everything was committed before the session was closed
+        assertEquals(messages, client.committed.get());
+        long reply = client.replyTime.get() - start;
+        assertTrue(reply > 0);
+        assertTrue("awake for " + awake + " ms, reply after " + reply + " ms",
+            awake >= reply + quiet);
+        // the session closes soon after the quiet period, not at the deadline
+        assertTrue("awake for " + awake + " ms, reply after " + reply + " ms",
+            awake < reply + quiet + 1000);
+    }
+
+    @Test
+    public void testWallClockNoReply() throws Exception {
+        long maxTime = 800;
+        XmppStandIn server = new XmppStandIn(5, 10, false);
+        server.start();
+
+        DrainMonitor monitor = new DrainMonitor(System.currentTimeMillis(), 300, maxTime);
+        DrainingClient client = new DrainingClient();
+        long awake = client.run(monitor, server.getPort(), 0);
+        server.join(1000);
+
+        assertTrue(monitor.isTimedOut());
+        assertEquals(5, client.committed.get());
+        assertTrue("awake for " + awake + " ms", awake >= maxTime);
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MessageIdCacheTest {
+
+    @Test
+    public void testDuplicates() {
+        MessageIdCache cache = new MessageIdCache(10);
+        assertFalse(cache.contains("a"));
+        // not stored yet: not a duplicate
+        assertFalse(cache.contains("a"));
+        cache.add("a");
+        cache.add("b");
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        MessageIdCache cache = new MessageIdCache(3);
+        cache.add("a");
+        cache.add("b");
+        cache.add("c");
+        // refresh "a"
+        assertTrue(cache.contains("a"));
+        cache.add("d");
+        assertEquals(3, cache.size());
+        // "b" was the least recently seen
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+    }
+
+    @Test
+    public void testWarmUp() {
+        MessageIdCache cache = new MessageIdCache(3);
+        // newest first
+        cache.warmUp(Arrays.asList("e", "d", "c", "b", "a"));
+        assertEquals(3, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+
+        // oldest IDs are evicted
+        assertTrue(cache.contains("e"));
+        assertTrue(cache.contains("c"));
+        assertFalse(cache.contains("a"));
+    }
+
+    @Test
+    public void testRedeliveredBacklog() {
+        MessageIdCache cache = new MessageIdCache(MessageIdCache.DEFAULT_CAPACITY);
+        int backlog = 200;
+        for (int i = 0; i < backlog; i++) {
+            assertFalse(cache.contains("msg" + i));
+            // message stored
+            cache.add("msg" + i);
+        }
+
+        // stream resumption failed, everything is delivered again
+        for (int i = 0; i < backlog; i++)
+            assertTrue(cache.contains("msg" + i));
+
+        assertEquals(backlog, cache.getHits());
+        assertEquals(backlog, cache.getMisses());
+    }
+
+}
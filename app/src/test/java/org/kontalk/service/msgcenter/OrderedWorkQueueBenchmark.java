@@ -0,0 +1,122 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyAgreement;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Benchmark for {@link OrderedWorkQueue}, too slow for the regular test run.
+ */
+@Ignore("benchmark, run manually")
+public class OrderedWorkQueueBenchmark {
+
+    /** Size of the synthetic offline backlog. */
+    private static final int BACKLOG_SIZE = 300;
+
+    /**
+     * Benchmarks a synthetic encrypted backlog. Every message costs an ECDH
+     * key agreement and an ECDSA signature verification, like a decryption
+     * with signature verification would.
+     */
+    @Test
+    public void testBacklog() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"));
+        final KeyPair recipient = gen.generateKeyPair();
+        final KeyPair sender = gen.generateKeyPair();
+
+        final byte[][] backlog = new byte[BACKLOG_SIZE][];
+        final byte[][] signatures = new byte[BACKLOG_SIZE][];
+        Random rnd = new Random(1);
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        for (int i = 0; i < BACKLOG_SIZE; i++) {
+            backlog[i] = new byte[512];
+            rnd.nextBytes(backlog[i]);
+            signer.initSign(sender.getPrivate());
+            signer.update(backlog[i]);
+            signatures[i] = signer.sign();
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        long sequential = 0;
+        long best = Long.MAX_VALUE;
+        for (int workers = 1; workers <= cores; workers *= 2) {
+            OrderedWorkQueue queue = new OrderedWorkQueue("bench", workers, workers * 4);
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicInteger outOfOrder = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(BACKLOG_SIZE);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < BACKLOG_SIZE; i++) {
+                final int index = i;
+                queue.submit(new OrderedWorkQueue.Task<Boolean>() {
+                    @Override
+                    public Boolean process() throws Exception {
+                        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+                        agreement.init(recipient.getPrivate());
+                        agreement.doPhase(sender.getPublic(), true);
+                        agreement.generateSecret();
+
+                        Signature verifier = Signature.getInstance("SHA256withECDSA");
+                        verifier.initVerify(sender.getPublic());
+                        verifier.update(backlog[index]);
+                        return verifier.verify(signatures[index]);
+                    }
+
+                    @Override
+                    public void commit(Boolean result, Exception error) {
+                        if (next.getAndIncrement() != index || !Boolean.TRUE.equals(result))
+                            outOfOrder.incrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(2, TimeUnit.MINUTES));
+            long elapsed = System.nanoTime() - start;
+            queue.shutdown(1, TimeUnit.SECONDS);
+
+            assertEquals(0, outOfOrder.get());
+            if (workers == 1)
+                sequential = elapsed;
+            else
+                best = Math.min(best, elapsed);
+        }
+
+        // parallel decryption must pay off on multi-core devices
+        if (cores > 1)
+            assertTrue("no speedup: " + best + " ns vs " + sequential + " ns", best < sequential);
+    }
+
+}
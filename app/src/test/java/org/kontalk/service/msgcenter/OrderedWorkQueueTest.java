@@ -0,0 +1,169 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class OrderedWorkQueueTest {
+
+    /** Records committed tasks. */
+    private static final class Recorder {
+        final List<Integer> committed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done;
+
+        Recorder(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        OrderedWorkQueue.Task<Integer> task(final int index, final long delay, final boolean fail) {
+            return new OrderedWorkQueue.Task<Integer>() {
+                @Override
+                public Integer process() throws Exception {
+                    Thread.sleep(delay);
+                    if (fail)
+                        throw new IllegalStateException("failed " + index);
+                    return index;
+                }
+
+                @Override
+                public void commit(Integer result, Exception error) {
+                    committed.add(result != null ? result : -index);
+                    done.countDown();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testCommitOrder() throws Exception {
+        OrderedWorkQueue queue = new OrderedWorkQueue("test", 4, 8);
+        Random rnd = new Random(1);
+        int count = 100;
+        Recorder recorder = new Recorder(count);
+        for (int i = 1; i <= count; i++) {
+            // later tasks will often complete first
+            queue.submit(recorder.task(i, rnd.nextInt(10), false));
+        }
+
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++)
+            assertEquals(i + 1, (int) recorder.committed.get(i));
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        OrderedWorkQueue queue = new OrderedWorkQueue("test", 2, 4);
+        Recorder recorder = new Recorder(3);
+        queue.submit(recorder.task(1, 5, false));
+        queue.submit(recorder.task(2, 0, true));
+        queue.submit(recorder.task(3, 0, false));
+
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) recorder.committed.get(0));
+        // errors are committed too
+        assertEquals(-2, (int) recorder.committed.get(1));
+        assertEquals(3, (int) recorder.committed.get(2));
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMaxPending() throws Exception {
+        final int maxPending = 3;
+        OrderedWorkQueue queue = new OrderedWorkQueue("test", 8, maxPending);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            queue.submit(new OrderedWorkQueue.Task<Void>() {
+                @Override
+                public Void process() throws Exception {
+                    int r = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(r, maxRunning.get()));
+                    }
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return null;
+                }
+
+                @Override
+                public void commit(Void result, Exception error) {
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= maxPending);
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownCallback() throws Exception {
+        OrderedWorkQueue queue = new OrderedWorkQueue("test", 2, 8);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> committed = Collections.synchronizedList(new ArrayList<Integer>());
+        int count = 8;
+        for (int i = 1; i <= count; i++) {
+            final int index = i;
+            queue.submit(new OrderedWorkQueue.Task<Integer>() {
+                @Override
+                public Integer process() throws Exception {
+                    gate.await();
+                    return index;
+                }
+
+                @Override
+                public void commit(Integer result, Exception error) {
+                    committed.add(result);
+                }
+            });
+        }
+
+        final AtomicInteger committedAtTermination = new AtomicInteger(-1);
+        final CountDownLatch terminated = new CountDownLatch(1);
+        // tasks can't complete before this returns, so it must not block
+        queue.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                committedAtTermination.set(committed.size());
+                terminated.countDown();
+            }
+        });
+        assertEquals(0, committed.size());
+        gate.countDown();
+
+        assertTrue(terminated.await(5, TimeUnit.SECONDS));
+        assertEquals(count, committedAtTermination.get());
+        assertTrue(queue.isIdle());
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PendingAckHoldsTest {
+
+    /** Mimics the idle handler reference count and the waiting receipt list. */
+    private static final class FakeHolder implements PendingAckHolds.Holder {
+        int refCount;
+        final Set<Long> waiting = new HashSet<>();
+
+        @Override
+        public void hold(long databaseId) {
+            refCount++;
+            waiting.add(databaseId);
+        }
+
+        @Override
+        public void release(long databaseId) {
+            refCount--;
+            waiting.remove(databaseId);
+        }
+    }
+
+    @Test
+    public void testFailedResume() {
+        FakeHolder holder = new FakeHolder();
+        PendingAckHolds holds = new PendingAckHolds(holder);
+        holds.hold(1);
+        holds.hold(2);
+        holds.hold(3);
+        assertEquals(3, holder.refCount);
+
+        // stream could not be resumed: ack listeners are gone
+        assertEquals(Arrays.asList(1L, 2L, 3L), holds.releaseAll());
+        assertEquals(0, holder.refCount);
+        assertTrue(holder.waiting.isEmpty());
+        assertEquals(0, holds.size());
+    }
+
+    @Test
+    public void testResumed() {
+        FakeHolder holder = new FakeHolder();
+        PendingAckHolds holds = new PendingAckHolds(holder);
+        holds.hold(1);
+        holds.hold(2);
+
+        // holds now belong to the ack listeners
+        holds.resumed();
+        assertEquals(2, holder.refCount);
+        assertTrue(holds.releaseAll().isEmpty());
+        assertEquals(2, holder.refCount);
+    }
+
+    @Test
+    public void testRepeatedConnectionAttempts() {
+        FakeHolder holder = new FakeHolder();
+        PendingAckHolds holds = new PendingAckHolds(holder);
+        // connection reused twice before authentication
+        holds.hold(1);
+        holds.hold(2);
+        holds.hold(1);
+        holds.hold(2);
+        assertEquals(2, holder.refCount);
+
+        holds.releaseAll();
+        assertEquals(0, holder.refCount);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PingIntervalModelTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long MIN_INTERVAL = 90 * 1000;
+    private static final long MAX_INTERVAL = 30 * MINUTE;
+
+    /**
+     * Simulates a network with a NAT dropping idle connections after a
+     * given timeout. A failed ping causes a reconnection.
+     */
+    private static final class NatSimulator {
+        long timeout;
+        int pings;
+        int failures;
+
+        NatSimulator(long timeout) {
+            this.timeout = timeout;
+        }
+
+        /** Replays the given number of pings against the model. */
+        void run(PingIntervalModel model, int count) {
+            for (int i = 0; i < count; i++) {
+                pings++;
+                if (model.getInterval() < timeout) {
+                    model.pingSuccess();
+                }
+                else {
+                    failures++;
+                    model.pingFailed();
+                    // reconnection
+                    model.reset();
+                }
+            }
+        }
+    }
+
+    private static PingIntervalModel newModel() {
+        return new PingIntervalModel(MIN_INTERVAL, MAX_INTERVAL, MAX_INTERVAL);
+    }
+
+    @Test
+    public void testConvergeFromDefault() {
+        NatSimulator nat = new NatSimulator(5 * MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 30);
+
+        assertTrue(model.isConverged());
+        assertTrue(model.getInterval() < nat.timeout);
+        // we should be close to the NAT timeout
+        assertTrue(model.getInterval() >= nat.timeout * 0.8);
+        assertTrue(nat.failures <= 6);
+    }
+
+    @Test
+    public void testNoNatTimeout() {
+        NatSimulator nat = new NatSimulator(Long.MAX_VALUE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 10);
+
+        assertEquals(0, nat.failures);
+        assertEquals(MAX_INTERVAL, model.getInterval());
+        assertTrue(model.isConverged());
+        assertFalse(model.isProbing());
+    }
+
+    @Test
+    public void testShortNatTimeout() {
+        NatSimulator nat = new NatSimulator(MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 20);
+
+        // can't go lower than the minimum interval
+        assertEquals(MIN_INTERVAL, model.getInterval());
+    }
+
+    @Test
+    public void testRestore() {
+        NatSimulator nat = new NatSimulator(12 * MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 40);
+        assertTrue(model.isConverged());
+
+        // reconnecting on the same network must not fail again
+        PingIntervalModel restored = PingIntervalModel.restore(model.serialize(),
+            MIN_INTERVAL, MAX_INTERVAL, MAX_INTERVAL);
+        assertEquals(model.getGoodInterval(), restored.getGoodInterval());
+        assertEquals(model.getBadInterval(), restored.getBadInterval());
+        assertTrue(restored.isConverged());
+
+        NatSimulator nat2 = new NatSimulator(12 * MINUTE);
+        nat2.run(restored, 10);
+        assertEquals(0, nat2.failures);
+    }
+
+    @Test
+    public void testRestoreDuringProbe() {
+        PingIntervalModel model = newModel();
+        model.pingFailed();
+        model.reset();
+        model.pingSuccess();
+        model.pingSuccess();
+        assertTrue(model.isProbing());
+
+        PingIntervalModel restored = PingIntervalModel.restore(model.serialize(),
+            MIN_INTERVAL, MAX_INTERVAL, MAX_INTERVAL);
+        // probed interval must not be restored
+        assertEquals(model.getGoodInterval(), restored.getInterval());
+    }
+
+    @Test
+    public void testRestoreInvalid() {
+        PingIntervalModel model = PingIntervalModel.restore("garbage:1",
+            MIN_INTERVAL, MAX_INTERVAL, 10 * MINUTE);
+        assertEquals(10 * MINUTE, model.getInterval());
+        model = PingIntervalModel.restore(null,
+            MIN_INTERVAL, MAX_INTERVAL, 10 * MINUTE);
+        assertEquals(10 * MINUTE, model.getInterval());
+    }
+
+    @Test
+    public void testNatTimeoutDecrease() {
+        NatSimulator nat = new NatSimulator(20 * MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 40);
+        assertTrue(model.isConverged());
+
+        // NAT timeout suddenly drops
+        nat.timeout = 4 * MINUTE;
+        nat.failures = 0;
+        nat.run(model, 40);
+        assertTrue(model.getInterval() < nat.timeout);
+        assertTrue(model.getInterval() >= nat.timeout * 0.8);
+    }
+
+    @Test
+    public void testNatTimeoutIncrease() {
+        NatSimulator nat = new NatSimulator(4 * MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 40);
+        assertTrue(model.isConverged());
+
+        // NAT timeout increases: the stale upper bound must eventually be probed again
+        nat.timeout = 20 * MINUTE;
+        nat.run(model, 200);
+        assertTrue(model.getInterval() < nat.timeout);
+        assertTrue(model.getInterval() >= nat.timeout * 0.8);
+    }
+
+    @Test
+    public void testProbeBackoff() {
+        NatSimulator nat = new NatSimulator(10 * MINUTE);
+        PingIntervalModel model = newModel();
+        nat.run(model, 40);
+        assertTrue(model.isConverged());
+
+        // once converged, failed probes of the stale bound should become rare
+        nat.failures = 0;
+        nat.run(model, 200);
+        assertTrue("too many failures: " + nat.failures, nat.failures <= 5);
+    }
+
+}
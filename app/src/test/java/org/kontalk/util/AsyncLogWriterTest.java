@@ -0,0 +1,132 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncLogWriterTest {
+
+    private static List<String> readLines(File f) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        }
+        finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final int threads = 4;
+        final int count = 5000;
+        File f = File.createTempFile("log", null);
+        final AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f, Long.MAX_VALUE, 0),
+            64, AsyncLogWriter.OverflowPolicy.BLOCK);
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++)
+                            w.println(id + ":" + i);
+                    }
+                    catch (IOException e) {
+                        fail(e.toString());
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        w.flush();
+
+        // no line lost, each writer in order
+        List<String> lines = readLines(f);
+        assertEquals(threads * count, lines.size());
+        int[] next = new int[threads];
+        for (String line : lines) {
+            String[] parts = line.split(":");
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+        assertEquals(0, w.getDropped());
+
+        w.close();
+        f.delete();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testDrop() throws Exception {
+        File f = File.createTempFile("log", null);
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f, Long.MAX_VALUE, 0),
+            16, AsyncLogWriter.OverflowPolicy.DROP);
+
+        int written = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (w.println("line " + i))
+                written++;
+        }
+        w.flush();
+
+        // dropped lines are reported
+        int lineCount = 0;
+        long reported = 0;
+        for (String line : readLines(f)) {
+            if (line.endsWith(" log lines dropped]"))
+                reported += Long.parseLong(line.substring(1, line.indexOf(' ')));
+            else
+                lineCount++;
+        }
+        assertEquals(written, lineCount);
+        assertEquals(10000 - written, reported);
+
+        w.close();
+        try {
+            w.println("closed");
+            fail("writer should be closed");
+        }
+        catch (IOException expected) {
+        }
+        f.delete();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Date;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CPIMStreamParserTest {
+
+    private static final String FROM = "Alice <alice@kontalk.net>";
+    private static final String TO = "Bob <bob@kontalk.net>";
+    private static final String MIME = "application/xmpp+xml";
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int num;
+        while ((num = in.read(buf)) >= 0)
+            out.write(buf, 0, num);
+        return out.toString("UTF-8");
+    }
+
+    private static String buildBody(int length) {
+        StringBuilder body = new StringBuilder("<xmpp><message><body>");
+        while (body.length() < length)
+            body.append("Lorem ipsum dolor sit amet, àèìòù. ");
+        return body.append("</body></message></xmpp>").toString();
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        String body = buildBody(100);
+        Date date = new Date((System.currentTimeMillis() / 1000) * 1000);
+        byte[] data = new CPIMMessage(FROM, new String[] { TO }, date, MIME, body).toByteArray();
+
+        CPIMStreamParser p = new CPIMStreamParser(new ByteArrayInputStream(data));
+        p.parseHeaders();
+
+        // must match the reference parser
+        CPIMMessage ref = CPIMMessage.parse(new String(data, "UTF-8"));
+        assertEquals(ref.getFrom(), p.getFrom());
+        assertArrayEquals(ref.getTo(), p.getTo());
+        assertEquals(ref.getMime(), p.getMime());
+        assertEquals(ref.getDate(), p.getDate());
+        assertEquals(ref.getBody().toString(), readBody(p.getBody()));
+
+        assertEquals(FROM, p.getFrom());
+        assertTrue(p.hasRecipient(TO));
+        assertFalse(p.hasRecipient(FROM));
+        assertEquals(MIME, p.getMime());
+        assertEquals(date, p.getDate());
+    }
+
+    @Test
+    public void testCRLF() throws Exception {
+        String data = "From: " + FROM + "\r\nTo: " + TO + "\r\n" +
+            "DateTime: 2017-01-01T10:00:00Z\r\n\r\n" +
+            "Content-Type: text/plain; charset=utf-8\r\n\r\nhello\r\nworld";
+
+        CPIMStreamParser p = new CPIMStreamParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+        p.parseHeaders();
+        assertEquals(FROM, p.getFrom());
+        assertEquals("text/plain", p.getMime());
+        assertNotNull(p.getDate());
+        assertEquals("hello\r\nworld", readBody(p.getBody()));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String data = "just some plain text\nwithout headers";
+        CPIMStreamParser p = new CPIMStreamParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+        try {
+            p.parseHeaders();
+            fail("invalid data parsed");
+        }
+        catch (ParseException ignored) {
+        }
+
+        // data must be available as-is
+        p.reset();
+        assertEquals(data, readBody(p.getBody()));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        String data = "From: " + FROM + "\nTo: " + TO + "\n\nContent-Type: text/plain";
+        CPIMStreamParser p = new CPIMStreamParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+        try {
+            p.parseHeaders();
+            fail("truncated data parsed");
+        }
+        catch (ParseException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ImagePreparerTest {
+
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    @Test
+    public void testComputeSampleSize() throws Exception {
+        // 12MP photo to 1024px
+        assertEquals(2, ImagePreparer.computeSampleSize(4000, 3000, 1024, 1024, NO_LIMIT));
+        // thumbnail only
+        assertEquals(4, ImagePreparer.computeSampleSize(4000, 3000, 512, 512, NO_LIMIT));
+        // exact fit
+        assertEquals(4, ImagePreparer.computeSampleSize(2048, 1024, 512, 512, NO_LIMIT));
+        // smaller than requested
+        assertEquals(1, ImagePreparer.computeSampleSize(400, 300, 512, 512, NO_LIMIT));
+        // tall image
+        assertEquals(8, ImagePreparer.computeSampleSize(1000, 8000, 800, 800, NO_LIMIT));
+    }
+
+    @Test
+    public void testComputeSampleSizePowerOfTwo() throws Exception {
+        for (int size = 100; size < 10000; size += 37) {
+            int sampleSize = ImagePreparer.computeSampleSize(size, size, 300, 300, NO_LIMIT);
+            assertEquals(0, sampleSize & (sampleSize - 1));
+            // never smaller than requested
+            assertTrue(size < 300 || size / sampleSize >= 300);
+        }
+    }
+
+    @Test
+    public void testComputeSampleSizeMaxPixels() throws Exception {
+        assertEquals(4, ImagePreparer.computeSampleSize(4000, 3000, 2000, 2000, 1000000));
+    }
+
+}
@@ -58,4 +58,33 @@ public class RotatingFileWriterTest {
         f.delete();
     }
 
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testRotateSegments() throws Exception {
+        int lineSepLen = System.getProperty("line.separator").length();
+        File f = File.createTempFile("log", null);
+        RotatingFileWriter w = RotatingFileWriter.segmented(f, 3000, 2);
+        for (int i = 0; i < 5; i++)
+            w.println(StringUtils.randomString(512));
+        w.flush();
+        assertEquals(1, w.getFiles().size());
+        assertEquals((512*5)+(lineSepLen*5), f.length());
+        w.println(StringUtils.randomString(512));
+        // rotation threshold: the whole file becomes the first segment
+        w.flush();
+        assertEquals(0, f.length());
+        File segment1 = new File(f + ".1");
+        assertEquals((512*6)+(lineSepLen*6), segment1.length());
+        for (int i = 0; i < 12; i++)
+            w.println(StringUtils.randomString(512));
+        w.flush();
+        // two rotations more: oldest segment is gone
+        assertEquals(3, w.getFiles().size());
+        assertEquals(segment1, w.getFiles().get(1));
+        assertEquals(0, f.length());
+        w.abort();
+        assertFalse(f.exists());
+        assertFalse(segment1.exists());
+    }
+
 }